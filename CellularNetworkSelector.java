@@ -0,0 +1,87 @@
+package com.ciklum.pigabstractionlayer.WifiProvisioning;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.os.Build;
+import android.util.Log;
+
+import com.ciklum.pigabstractionlayer.PiggyBank;
+
+/**
+ * CellularNetworkSelector
+ * A CloudNetworkSelector that sends cloud calls over mobile data. Android normally tears mobile data
+ * down once the phone is on Wi-Fi, so start() requests a cellular network with internet access and
+ * keeps it up until release(). Until the network is available (or on phones without mobile data)
+ * selectNetwork() returns null and the default network is used.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class CellularNetworkSelector implements CloudNetworkSelector {
+
+    private static final String TAG = "CellularNetworkSelector";
+
+    private final ConnectivityManager connectivityManager;
+
+    private volatile Network cellularNetwork;
+    private ConnectivityManager.NetworkCallback networkCallback;
+
+    public CellularNetworkSelector(Context context) {
+        connectivityManager = (ConnectivityManager) context.getApplicationContext()
+                .getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    /**
+     * Asks Android to bring up mobile data. Call before joining the SoftAP; the network is
+     * usually available within a second or two.
+     */
+    public synchronized void start() {
+        if (networkCallback != null) {
+            return;
+        }
+        networkCallback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(Network network) {
+                if (PiggyBank.DEBUG) {
+                    Log.d(TAG, "Mobile data available: " + network);
+                }
+                cellularNetwork = network;
+            }
+
+            @Override
+            public void onLost(Network network) {
+                if (network.equals(cellularNetwork)) {
+                    Log.d(TAG, "Mobile data lost, using the default network");
+                    cellularNetwork = null;
+                }
+            }
+        };
+        connectivityManager.requestNetwork(new NetworkRequest.Builder()
+                .addTransportType(NetworkCapabilities.TRANSPORT_CELLULAR)
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .build(), networkCallback);
+    }
+
+    /**
+     * Lets Android tear mobile data down again.
+     */
+    public synchronized void release() {
+        if (networkCallback == null) {
+            return;
+        }
+        try {
+            connectivityManager.unregisterNetworkCallback(networkCallback);
+        } catch (IllegalArgumentException e) {
+            // already unregistered
+        }
+        networkCallback = null;
+        cellularNetwork = null;
+    }
+
+    @Override
+    public Network selectNetwork() {
+        return cellularNetwork;
+    }
+}
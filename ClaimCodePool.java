@@ -0,0 +1,164 @@
+package com.ciklum.pigabstractionlayer.WifiProvisioning;
+
+import android.util.Log;
+
+import com.ciklum.pigabstractionlayer.PiggyBank;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * ClaimCodePool
+ * Pre-generates claim codes while the phone still has internet, so that back to back provisioning
+ * sessions do not each pay a round trip to the Particle Cloud before joining the device's SoftAP.
+ *
+ * Claim codes are bound to the customer that generated them, so the pool only ever holds codes for
+ * a single access token; handing out a code for a different token empties the pool first. Codes
+ * older than the maximum age are dropped, since the cloud only honours them for a limited time.
+ */
+class ClaimCodePool {
+
+    private static final String TAG = "ClaimCodePool";
+
+    static final int DEFAULT_TARGET_SIZE = 3;
+    static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+    private static ClaimCodePool instance;
+
+    private static class PooledClaimCode {
+
+        final String claimCode;
+        final long createdAtMillis;
+
+        PooledClaimCode(String claimCode, long createdAtMillis) {
+            this.claimCode = claimCode;
+            this.createdAtMillis = createdAtMillis;
+        }
+    }
+
+    private final Deque<PooledClaimCode> codes = new ArrayDeque<PooledClaimCode>();
+
+    private String ownerAccessToken;
+    private int targetSize = DEFAULT_TARGET_SIZE;
+    private long maxAgeMillis = DEFAULT_MAX_AGE_MILLIS;
+    private boolean refillScheduled;
+
+    static synchronized ClaimCodePool get() {
+        if (instance == null) {
+            instance = new ClaimCodePool();
+        }
+        return instance;
+    }
+
+    synchronized void setTargetSize(int targetSize) {
+        this.targetSize = Math.max(0, targetSize);
+    }
+
+    synchronized void setMaxAgeMillis(long maxAgeMillis) {
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Hands out a claim code for the customer's access token. A pooled code is returned if there
+     * is a fresh one; otherwise a code is generated on the calling thread. Either way the pool is
+     * topped up again in the background.
+     *
+     * @param accessToken the customer's access token
+     * @return claim code
+     * @throws IOException
+     */
+    String take(String accessToken) throws IOException {
+        PooledClaimCode pooled;
+        synchronized (this) {
+            switchOwner(accessToken);
+            dropExpired(System.currentTimeMillis());
+            pooled = codes.pollFirst();
+            if (pooled != null && PiggyBank.DEBUG) {
+                Log.d(TAG, "Using pooled claim code, " + codes.size() + " left");
+            }
+        }
+
+        String claimCode;
+        if (pooled != null) {
+            claimCode = pooled.claimCode;
+        } else {
+            claimCode = ParticleCloudAuthentication.generateClaimCodeBlocking(accessToken);
+        }
+
+        refill(accessToken);
+        return claimCode;
+    }
+
+    /**
+     * Tops the pool up to its target size on a background thread. Safe to call repeatedly; only
+     * one refill runs at a time.
+     *
+     * @param accessToken the customer's access token
+     */
+    void refill(final String accessToken) {
+        if (accessToken == null) {
+            return;
+        }
+        synchronized (this) {
+            switchOwner(accessToken);
+            if (refillScheduled) {
+                return;
+            }
+            refillScheduled = true;
+        }
+
+        ProvisioningExecutors.background().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (needsMoreCodes(accessToken)) {
+                        String claimCode = ParticleCloudAuthentication.generateClaimCodeBlocking(accessToken);
+                        synchronized (ClaimCodePool.this) {
+                            if (!accessToken.equals(ownerAccessToken)) {
+                                return;
+                            }
+                            codes.addLast(new PooledClaimCode(claimCode, System.currentTimeMillis()));
+                        }
+                    }
+                } catch (IOException e) {
+                    // Most likely the phone has lost internet (e.g. it already joined the SoftAP).
+                    // The next take() will fall back to generating a code directly.
+                    Log.d(TAG, "Could not refill the claim code pool", e);
+                } finally {
+                    synchronized (ClaimCodePool.this) {
+                        refillScheduled = false;
+                    }
+                }
+            }
+        });
+    }
+
+    synchronized void clear() {
+        codes.clear();
+        ownerAccessToken = null;
+    }
+
+    private synchronized boolean needsMoreCodes(String accessToken) {
+        if (!accessToken.equals(ownerAccessToken)) {
+            return false;
+        }
+        dropExpired(System.currentTimeMillis());
+        return codes.size() < targetSize;
+    }
+
+    private void switchOwner(String accessToken) {
+        if (accessToken != null && !accessToken.equals(ownerAccessToken)) {
+            codes.clear();
+            ownerAccessToken = accessToken;
+        }
+    }
+
+    private void dropExpired(long now) {
+        while (!codes.isEmpty() && now - codes.peekFirst().createdAtMillis > maxAgeMillis) {
+            codes.pollFirst();
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.ciklum.pigabstractionlayer.WifiProvisioning;
+
+import android.net.Network;
+
+/**
+ * CloudNetworkSelector
+ * Picks the network the library's cloud calls go out on. While the phone is joined to the Photon's
+ * SoftAP, which has no internet, a selector that returns another network (mobile data, a second
+ * interface) lets authentication, claim codes and the device event stream reach the cloud at the
+ * same time as the device is being configured.
+ *
+ * Set with ParticleCloudTransport.setNetworkSelector() and WifiProvisionManager.setCloudNetworkSelector().
+ * Only used on Lollipop and above.
+ */
+public interface CloudNetworkSelector {
+
+    /**
+     * Called for every new connection to the cloud, so it must return quickly.
+     *
+     * @return the network to connect over, or null for the system's default network
+     */
+    Network selectNetwork();
+}
@@ -0,0 +1,383 @@
+package com.ciklum.pigabstractionlayer.WifiProvisioning;
+
+import android.util.Log;
+
+import com.ciklum.pigabstractionlayer.PiggyBank;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import io.particle.android.sdk.devicesetup.commands.CeciNestPasUnSocketFactory;
+import io.particle.android.sdk.devicesetup.commands.Command;
+
+/**
+ * CommandSession
+ * Sends the commands of one provisioning session (device-id, public-key, set, configure-ap,
+ * connect-ap) to the device, in place of a CommandClient per command.
+ *
+ * The Photon firmware answers exactly one command per TCP connection and then closes it, so the
+ * connections themselves cannot be shared. What the session does instead is open the next
+ * connection while the current command is still in flight: by the time the next command is sent,
+ * its TCP handshake over the SoftAP is already done. If the device did not accept the spare
+ * connection, or it went stale, the command falls back to a fresh connection.
+ *
+ * Connections are opened through a Connector: NioCommandTransport in production, or blocking
+ * sockets from a CeciNestPasUnSocketFactory.
+ *
+ * The session counts round trips and connections so the saving can be measured per session.
+ */
+class CommandSession {
+
+    /**
+     * Opens connections to the device.
+     */
+    interface Connector {
+
+        /**
+         * May return before the connection is established; exchange() then waits for it.
+         */
+        Connection connect(InetSocketAddress address) throws IOException;
+    }
+
+    /**
+     * A connection good for one command.
+     */
+    interface Connection {
+
+        /**
+         * Sends the frame and returns everything the device sent before closing the connection.
+         */
+        String exchange(String frame) throws IOException;
+
+        void close();
+    }
+
+    private static final String TAG = "CommandSession";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final int DEFAULT_READ_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(10);
+    private static final int CONNECT_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(5);
+    // The firmware drops connections that stay silent for too long; older spares are not used.
+    private static final long SPARE_MAX_IDLE_MILLIS = TimeUnit.SECONDS.toMillis(2);
+
+    private static final Gson gson = new Gson();
+
+    private final Connector connector;
+    private final InetSocketAddress deviceAddress;
+
+    private boolean preconnect = true;
+    private Future<Connection> spare;
+    private long spareRequestedAt;
+    private Connection inFlight;
+    private boolean closed;
+
+    private int roundTrips;
+    private int connectionsOpened;
+    private int spareConnectionsUsed;
+
+    /**
+     * Talks to the device at its usual SoftAP address with blocking sockets from the factory.
+     *
+     * @param socketFactory
+     */
+    CommandSession(CeciNestPasUnSocketFactory socketFactory) {
+        this(new SocketConnector(socketFactory, DEFAULT_READ_TIMEOUT_MILLIS), defaultDeviceAddress());
+    }
+
+    CommandSession(Connector connector, InetSocketAddress deviceAddress) {
+        this.connector = connector;
+        this.deviceAddress = deviceAddress;
+    }
+
+    static InetSocketAddress defaultDeviceAddress() {
+        return new InetSocketAddress(SoftApReadinessProbe.DEFAULT_DEVICE_IP,
+                SoftApReadinessProbe.DEFAULT_DEVICE_PORT);
+    }
+
+    /**
+     * @param preconnect false to open every connection only when its command is sent
+     */
+    synchronized void setPreconnect(boolean preconnect) {
+        this.preconnect = preconnect;
+    }
+
+    /**
+     * Sends the command and parses the device's answer.
+     *
+     * @param command
+     * @param responseType
+     * @return the parsed response
+     * @throws IOException if the device could not be reached or its answer could not be read
+     */
+    <T> T send(Command command, Class<T> responseType) throws IOException {
+        String frame = encode(command);
+        Connection connection = takeSpare();
+        boolean usedSpare = connection != null;
+        if (connection == null) {
+            connection = connect();
+        }
+        requestSpare();
+
+        String response;
+        try {
+            response = roundTrip(connection, frame);
+        } catch (IOException e) {
+            if (!usedSpare || isClosed()) {
+                throw e;
+            }
+            // The spare was dropped by the device before it was used; these commands are safe
+            // to send again.
+            response = roundTrip(connect(), frame);
+        }
+
+        synchronized (this) {
+            roundTrips++;
+        }
+        try {
+            T parsed = gson.fromJson(response, responseType);
+            if (parsed == null) {
+                throw new IOException("Empty response to " + command.getCommandName());
+            }
+            return parsed;
+        } catch (JsonParseException e) {
+            throw new IOException("Could not parse response to " + command.getCommandName(), e);
+        }
+    }
+
+    /**
+     * Closes the spare connection and fails a command in flight. The session cannot be used
+     * afterwards.
+     */
+    void close() {
+        Future<Connection> spareToClose;
+        Connection inFlightToClose;
+        synchronized (this) {
+            closed = true;
+            spareToClose = spare;
+            spare = null;
+            inFlightToClose = inFlight;
+        }
+        discard(spareToClose);
+        if (inFlightToClose != null) {
+            inFlightToClose.close();
+        }
+        if (PiggyBank.DEBUG) {
+            Log.d(TAG, "Session closed: " + this);
+        }
+    }
+
+    synchronized int getRoundTrips() {
+        return roundTrips;
+    }
+
+    synchronized int getConnectionsOpened() {
+        return connectionsOpened;
+    }
+
+    /**
+     * @return how many commands went out on a connection opened ahead of time
+     */
+    synchronized int getSpareConnectionsUsed() {
+        return spareConnectionsUsed;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "roundTrips=" + roundTrips + " connections=" + connectionsOpened
+                + " preconnected=" + spareConnectionsUsed;
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    private Connection connect() throws IOException {
+        if (isClosed()) {
+            throw new IOException("Command session closed");
+        }
+        Connection connection = connector.connect(deviceAddress);
+        synchronized (this) {
+            connectionsOpened++;
+        }
+        return connection;
+    }
+
+    private void requestSpare() {
+        synchronized (this) {
+            if (!preconnect || closed || spare != null) {
+                return;
+            }
+            spareRequestedAt = System.nanoTime();
+            // Bounded by CONNECT_TIMEOUT_MILLIS for blocking sockets, and immediate for the
+            // NioCommandTransport.
+            spare = ProvisioningExecutors.background().submit(new Callable<Connection>() {
+                @Override
+                public Connection call() throws IOException {
+                    return connect();
+                }
+            });
+        }
+    }
+
+    /**
+     * @return a spare connection, or null if there is none that can be used
+     */
+    private Connection takeSpare() {
+        Future<Connection> candidate;
+        long requestedAt;
+        synchronized (this) {
+            candidate = spare;
+            requestedAt = spareRequestedAt;
+            spare = null;
+        }
+        if (candidate == null) {
+            return null;
+        }
+        if (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - requestedAt) > SPARE_MAX_IDLE_MILLIS) {
+            discard(candidate);
+            return null;
+        }
+        try {
+            Connection connection = candidate.get(CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            synchronized (this) {
+                spareConnectionsUsed++;
+            }
+            return connection;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            discard(candidate);
+            return null;
+        } catch (ExecutionException | TimeoutException e) {
+            // the device did not accept the spare; connect the usual way
+            discard(candidate);
+            return null;
+        }
+    }
+
+    /**
+     * Closes a spare once its connect() has finished. A blocking connect cannot be interrupted,
+     * and an unused connection left open would keep the device waiting for a command.
+     */
+    private static void discard(final Future<Connection> future) {
+        if (future == null || future.cancel(false)) {
+            // never started, so there is no connection to close
+            return;
+        }
+        ProvisioningExecutors.background().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    future.get().close();
+                } catch (InterruptedException | ExecutionException ignored) {
+                }
+            }
+        });
+    }
+
+    /**
+     * Exchanges the frame and strips the header off the device's answer.
+     */
+    private String roundTrip(Connection connection, String frame) throws IOException {
+        synchronized (this) {
+            inFlight = connection;
+        }
+        try {
+            String raw = connection.exchange(frame);
+            // The answer starts with a length line, followed by a blank line and the JSON body.
+            int bodyStart = raw.indexOf('\n');
+            if (bodyStart < 0) {
+                throw new IOException("Device closed the connection without answering");
+            }
+            return raw.substring(bodyStart + 1).trim();
+        } finally {
+            synchronized (this) {
+                inFlight = null;
+            }
+        }
+    }
+
+    /**
+     * Builds the frame CommandClient would send: name, payload length, blank line, payload.
+     */
+    static String encode(Command command) {
+        StringBuilder frame = new StringBuilder(command.getCommandName()).append('\n');
+        String args = command.argsAsJsonString(gson);
+        if (args != null && !args.isEmpty()) {
+            frame.append(args.length()).append("\n\n").append(args);
+        } else {
+            frame.append("0\n\n");
+        }
+        return frame.toString();
+    }
+
+
+    /**
+     * Blocking sockets from a CeciNestPasUnSocketFactory, connected when they are opened.
+     */
+    static class SocketConnector implements Connector {
+
+        private final CeciNestPasUnSocketFactory socketFactory;
+        private final int readTimeoutMillis;
+
+        SocketConnector(CeciNestPasUnSocketFactory socketFactory, int readTimeoutMillis) {
+            this.socketFactory = socketFactory;
+            this.readTimeoutMillis = readTimeoutMillis;
+        }
+
+        @Override
+        public Connection connect(InetSocketAddress address) throws IOException {
+            final Socket socket = socketFactory.buildSocket(readTimeoutMillis);
+            try {
+                socket.connect(address, CONNECT_TIMEOUT_MILLIS);
+            } catch (IOException e) {
+                closeQuietly(socket);
+                throw e;
+            }
+            return new Connection() {
+                @Override
+                public String exchange(String frame) throws IOException {
+                    try {
+                        OutputStream out = socket.getOutputStream();
+                        out.write(frame.getBytes(UTF8));
+                        out.flush();
+
+                        InputStream in = socket.getInputStream();
+                        ByteArrayOutputStream response = new ByteArrayOutputStream();
+                        byte[] buffer = new byte[512];
+                        int count;
+                        while ((count = in.read(buffer)) != -1) {
+                            response.write(buffer, 0, count);
+                        }
+                        return new String(response.toByteArray(), UTF8);
+                    } finally {
+                        closeQuietly(socket);
+                    }
+                }
+
+                @Override
+                public void close() {
+                    closeQuietly(socket);
+                }
+            };
+        }
+
+        private static void closeQuietly(Socket socket) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -4,19 +4,17 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.net.NetworkInfo;
 import android.net.wifi.WifiConfiguration;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.os.Build;
 import android.os.Handler;
 
-import com.ciklum.pigabstractionlayer.PiggyBank;
-
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import io.particle.android.sdk.utils.SoftAPConfigRemover;
-import io.particle.android.sdk.utils.TLog;
 import io.particle.android.sdk.utils.WiFi;
 
 import static io.particle.android.sdk.utils.Py.list;
@@ -45,7 +43,10 @@ public class ConnectToAp {
 
 
     public static final String TAG = "ConnectToAp";
-    private static final TLog log = TLog.get(ConnectToAp.class);
+
+    // How long a join action that waits for a broadcast (e.g. disconnect) may take before the
+    // next action is started anyway.
+    static final long ACTION_TIMEOUT_MILLIS = 1500;
 
 
     public static WifiConfiguration buildUnsecuredConfig(String ssid, boolean isHidden) {
@@ -59,28 +60,40 @@ public class ConnectToAp {
 
     private WifiManager wifiManager;
     private BroadcastReceiver wifiStateChangeListener;
-    private WifiStateChangeLogger wifiStateChangeLogger;
 
     private ClientDecorator client;
     private SoftAPConfigRemover softAPConfigRemover;
 
-    // for handling through the runloop
+    // for handling through the runloop: join actions, timeouts and the broadcasts all run on it.
+    // cancel() may come from any thread, so the join state is also guarded by this object's lock.
     private Handler mainThreadHandler;
     private Runnable onTimeoutRunnable;
-    private final List<Runnable> setupRunnables = list();
+    private final List<JoinAction> joinActions = list();
+    private int currentActionIndex = -1;
+    private Runnable actionTimeoutRunnable;
+    private ProvisioningTimeline timeline;
 
 
     public ConnectToAp(Context context, Client callback, Handler threadHandler){
-        wifiManager = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
-        softAPConfigRemover = new SoftAPConfigRemover(context);
+        // The WifiManager keeps the context it was obtained from.
+        wifiManager = (WifiManager) context.getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+        softAPConfigRemover = new SoftAPConfigRemover(context.getApplicationContext());
         mainThreadHandler = threadHandler;
-        wifiStateChangeLogger = new WifiStateChangeLogger();
         client = new ClientDecorator();
         client.setDecoratedClient(callback);
     }
 
 
 
+    /**
+     * Records the duration of every join action on the given timeline.
+     *
+     * @param timeline
+     */
+    public void setTimeline(ProvisioningTimeline timeline) {
+        this.timeline = timeline;
+    }
+
     /**
      * Connect this Android device to the specified AP.
      *
@@ -90,7 +103,7 @@ public class ConnectToAp {
      * @return the SSID that was connected prior to calling this method.  Will be null if
      *          there was no network connected, or if already connected to the target network.
      */
-    public String connectToAP(final WifiConfiguration config, long timeoutInMillis, final Context appContext) {
+    public synchronized String connectToAP(final WifiConfiguration config, long timeoutInMillis, final Context appContext) {
         // cancel any currently running timeout, etc
         clearState(appContext);
 
@@ -111,8 +124,9 @@ public class ConnectToAp {
             }
         };
 
+        // delivered on the runloop, like the join actions it confirms
         appContext.registerReceiver(wifiStateChangeListener,
-                new IntentFilter(WifiManager.NETWORK_STATE_CHANGED_ACTION));
+                new IntentFilter(WifiManager.NETWORK_STATE_CHANGED_ACTION), null, mainThreadHandler);
 
         final boolean useMoreComplexConnectionProcess = Build.VERSION.SDK_INT < 18;
 
@@ -121,9 +135,11 @@ public class ConnectToAp {
         // integer which can be shared by a couple of the Runnables below
         final AtomicInteger networkID = new AtomicInteger(-1);
 
-        // everything below is created in Runnables and scheduled on the runloop to avoid some
-        // wonkiness I ran into when trying to do every one of these steps one right after
-        // the other on the same thread.
+        // everything below is created as JoinActions and posted to the runloop one at a time to
+        // avoid some wonkiness I ran into when trying to do every one of these steps one right
+        // after the other on the same thread. Each action is posted as soon as the previous one is
+        // confirmed, either by the WifiManager's return value or by the NETWORK_STATE_CHANGED
+        // broadcast, instead of on a fixed schedule.
 
         final int alreadyConfiguredId = WiFi.getConfiguredNetworkId(config.SSID, appContext);
         if (alreadyConfiguredId != -1 && !useMoreComplexConnectionProcess) {
@@ -135,71 +151,70 @@ public class ConnectToAp {
             //
             // As a remedy, we pre-emptively remove that config.  *shakes fist toward Mountain View*
 
-            setupRunnables.add(new Runnable() {
+            joinActions.add(new JoinAction("removeNetwork") {
                 @Override
-                public void run() {
-                    if (wifiManager.removeNetwork(alreadyConfiguredId)) {
-                        if(PiggyBank.DEBUG) {
-                            log.d("Removed already-configured " + config.SSID + " network successfully");
-                        }
-                    } else {
-                        if(PiggyBank.DEBUG) {
-                            log.e("Somehow failed to remove the already-configured network!?");
-                        }
-                        // not calling this state an actual failure, since it might succeed anyhow,
-                        // and if it doesn't, the worst case is a longer wait to find that out.
-                    }
+                boolean perform() {
+                    boolean removed = wifiManager.removeNetwork(alreadyConfiguredId);
+                    // not calling a failure to remove an actual failure, since it might succeed
+                    // anyhow, and if it doesn't, the worst case is a longer wait to find that out.
+                    ProvisioningTrace.record(timeline, ProvisioningPhase.CONNECT_TO_SOFT_AP,
+                            ProvisioningTrace.NETWORK_REMOVED, alreadyConfiguredId, removed ? 1 : 0);
+                    return true;
                 }
             });
         }
 
         if (alreadyConfiguredId == -1 || !useMoreComplexConnectionProcess) {
-            setupRunnables.add(new Runnable() {
+            joinActions.add(new JoinAction("addNetwork") {
                 @Override
-                public void run() {
-                    if(PiggyBank.DEBUG) {
-                        log.d("Adding network " + config.SSID);
-                    }
+                boolean perform() {
                     networkID.set(wifiManager.addNetwork(config));
+                    ProvisioningTrace.record(timeline, ProvisioningPhase.CONNECT_TO_SOFT_AP,
+                            ProvisioningTrace.NETWORK_ADDED, networkID.get());
                     if (networkID.get() == -1) {
-                        if(PiggyBank.DEBUG) {
-                            log.e("Adding network " + config.SSID + " failed.");
-                        }
                         client.onApConnectionFailed(config, appContext);
-
-                    } else {
-                        if(PiggyBank.DEBUG) {
-                            log.i("Added network with ID " + networkID + " successfully");
-                        }
+                        return false;
                     }
+                    return true;
                 }
             });
         }
 
         if (useMoreComplexConnectionProcess) {
-            setupRunnables.add(new Runnable() {
+            joinActions.add(new JoinAction("disconnect") {
                 @Override
-                public void run() {
-                    log.d("Disconnecting from networks; reconnecting momentarily.");
-                    wifiManager.disconnect();
+                boolean perform() {
+                    ProvisioningTrace.record(timeline, ProvisioningPhase.CONNECT_TO_SOFT_AP,
+                            ProvisioningTrace.WIFI_DISCONNECT);
+                    // if the call was rejected there's no broadcast coming, so move straight on
+                    return !wifiManager.disconnect() || !isCurrentlyConnectedToAWifiNetwork(wifiManager.getConnectionInfo());
+                }
+
+                @Override
+                boolean isConfirmedBy(NetworkInfo networkInfo) {
+                    return networkInfo.getState() == NetworkInfo.State.DISCONNECTED;
                 }
             });
         }
 
-        setupRunnables.add(new Runnable() {
+        joinActions.add(new JoinAction("enableNetwork") {
             @Override
-            public void run() {
-                log.i("Enabling network " + config.SSID + " with network ID " + networkID.get());
+            boolean perform() {
+                ProvisioningTrace.record(timeline, ProvisioningPhase.CONNECT_TO_SOFT_AP,
+                        ProvisioningTrace.NETWORK_ENABLED, networkID.get());
                 wifiManager.enableNetwork(networkID.get(),
                         !useMoreComplexConnectionProcess);
+                return true;
             }
         });
         if (useMoreComplexConnectionProcess) {
-            setupRunnables.add(new Runnable() {
+            joinActions.add(new JoinAction("reconnect") {
                 @Override
-                public void run() {
-                    log.d("Disconnecting from networks; reconnecting momentarily.");
+                boolean perform() {
+                    ProvisioningTrace.record(timeline, ProvisioningPhase.CONNECT_TO_SOFT_AP,
+                            ProvisioningTrace.WIFI_RECONNECT);
                     wifiManager.reconnect();
+                    return true;
                 }
             });
         }
@@ -207,15 +222,22 @@ public class ConnectToAp {
         String currentlyConnectedSSID = WiFi.getCurrentlyConnectedSSID(appContext);
         softAPConfigRemover.onWifiNetworkDisabled(currentlyConnectedSSID);
 
-        long timeout = 0;
-        for (Runnable runnable : setupRunnables) {
-            mainThreadHandler.postDelayed(runnable, timeout);
-            timeout += 1500;
-        }
+        currentActionIndex = -1;
+        startNextAction();
 
         return currentConnectionInfo.getSSID();
     }
 
+    /**
+     * Stops the connection attempt without calling the client back: pending join actions and the
+     * timeout are dropped and the broadcast receiver is unregistered.
+     *
+     * @param appContext
+     */
+    public synchronized void cancel(Context appContext) {
+        clearState(appContext);
+    }
+
     private static boolean isAlreadyConnectedToTargetNetwork(WifiInfo currentConnectionInfo,
                                                              String targetNetworkSsid) {
         return (isCurrentlyConnectedToAWifiNetwork(currentConnectionInfo)
@@ -232,17 +254,27 @@ public class ConnectToAp {
     }
 
     private void scheduleTimeoutCheck(long timeoutInMillis, final WifiConfiguration config, final Context appContext) {
+        if (timeoutInMillis <= 0) {
+            // no timeout configured, rely on the broadcasts alone
+            return;
+        }
         onTimeoutRunnable = new Runnable() {
 
             @Override
             public void run() {
-                client.onApConnectionFailed(config, appContext);
+                synchronized (ConnectToAp.this) {
+                    if (onTimeoutRunnable != this) {
+                        // cancelled while it was being run
+                        return;
+                    }
+                    client.onApConnectionFailed(config, appContext);
+                }
             }
         };
         mainThreadHandler.postDelayed(onTimeoutRunnable, timeoutInMillis);
     }
 
-    private void clearState(Context appContext) {
+    private synchronized void clearState(Context appContext) {
         if (onTimeoutRunnable != null) {
             mainThreadHandler.removeCallbacks(onTimeoutRunnable);
             onTimeoutRunnable = null;
@@ -253,23 +285,73 @@ public class ConnectToAp {
             wifiStateChangeListener = null;
         }
 
-        for (Runnable runnable : setupRunnables) {
-            mainThreadHandler.removeCallbacks(runnable);
+        cancelActionTimeout();
+        JoinAction interrupted = currentAction();
+        if (interrupted != null && interrupted.span != null) {
+            interrupted.span.end(false);
+        }
+        for (JoinAction action : joinActions) {
+            mainThreadHandler.removeCallbacks(action);
+        }
+        joinActions.clear();
+        currentActionIndex = -1;
+    }
+
+    private synchronized void startNextAction() {
+        cancelActionTimeout();
+        JoinAction finished = currentAction();
+        if (finished != null && finished.span != null) {
+            finished.span.end(true);
+        }
+        currentActionIndex++;
+        if (currentActionIndex < joinActions.size()) {
+            mainThreadHandler.post(joinActions.get(currentActionIndex));
         }
-        setupRunnables.clear();
     }
 
-    private void onWifiChangeBroadcastReceived(Intent intent, WifiConfiguration config, Context appContext) {
-        // this will only be present if the new state is CONNECTED
+    private void cancelActionTimeout() {
+        if (actionTimeoutRunnable != null) {
+            mainThreadHandler.removeCallbacks(actionTimeoutRunnable);
+            actionTimeoutRunnable = null;
+        }
+    }
+
+    private JoinAction currentAction() {
+        if (currentActionIndex < 0 || currentActionIndex >= joinActions.size()) {
+            return null;
+        }
+        return joinActions.get(currentActionIndex);
+    }
+
+    private synchronized void onWifiChangeBroadcastReceived(Intent intent, WifiConfiguration config, Context appContext) {
+        if (wifiStateChangeListener == null) {
+            // delivered to the runloop before cancel() unregistered the receiver
+            return;
+        }
+        // first see whether this confirms the join action we are waiting on
+        JoinAction waitingAction = currentAction();
+        NetworkInfo networkInfo = intent.getParcelableExtra(WifiManager.EXTRA_NETWORK_INFO);
         WifiInfo wifiInfo = intent.getParcelableExtra(WifiManager.EXTRA_WIFI_INFO);
+        ProvisioningTrace.record(timeline, ProvisioningPhase.CONNECT_TO_SOFT_AP,
+                ProvisioningTrace.WIFI_STATE_CHANGED,
+                networkInfo == null ? -1 : networkInfo.getDetailedState().ordinal(),
+                wifiInfo == null ? 0 : 1);
+        if (waitingAction != null && waitingAction.awaitingConfirmation && networkInfo != null
+                && waitingAction.isConfirmedBy(networkInfo)) {
+            waitingAction.awaitingConfirmation = false;
+            startNextAction();
+        }
+
+        // the WifiInfo will only be present if the new state is CONNECTED
         if (wifiInfo == null || wifiInfo.getSSID() == null) {
             // no WifiInfo or SSID means we're not interested.
             return;
         }
 
-        log.i("Connected to: " + wifiInfo.getSSID());
         String ssid = wifiInfo.getSSID();
         if (ssid.equals(config.SSID) || WiFi.enQuotifySsid(ssid).equals(config.SSID)) {
+            ProvisioningTrace.record(timeline, ProvisioningPhase.CONNECT_TO_SOFT_AP,
+                    ProvisioningTrace.SOFT_AP_JOINED, wifiInfo.getNetworkId());
             // FIXME: find a way to record success in memory in case this happens to happen
             // during a config change (etc)?
             client.onApConnectionSuccessful(config, appContext);
@@ -286,20 +368,71 @@ public class ConnectToAp {
     }
 
 
-    private class WifiStateChangeLogger extends BroadcastReceiver {
+    /**
+     * One step of joining the AP. perform() makes the WifiManager call and returns true when the
+     * next action can start right away. Otherwise the action waits until a NETWORK_STATE_CHANGED
+     * broadcast satisfies isConfirmedBy(), or until ACTION_TIMEOUT_MILLIS has passed.
+     */
+    private abstract class JoinAction implements Runnable {
+
+        final String name;
+        boolean awaitingConfirmation;
+        ProvisioningTimeline.Span span;
+
+        JoinAction(String name) {
+            this.name = name;
+        }
+
+        abstract boolean perform();
+
+        boolean isConfirmedBy(NetworkInfo networkInfo) {
+            return false;
+        }
 
         @Override
-        public void onReceive(Context context, Intent intent) {
-            log.d("WifiStateChangeLogger - onRecieve");
-            log.d("Received " + WifiManager.NETWORK_STATE_CHANGED_ACTION);
-            log.d("EXTRA_NETWORK_INFO: " + intent.getParcelableExtra(WifiManager.EXTRA_NETWORK_INFO));
-            // this will only be present if the new state is CONNECTED
-            WifiInfo wifiInfo = intent.getParcelableExtra(WifiManager.EXTRA_WIFI_INFO);
-            log.d("WIFI_INFO: " + wifiInfo);
+        public void run() {
+            synchronized (ConnectToAp.this) {
+                if (currentAction() != this) {
+                    // cancelled after it was posted
+                    return;
+                }
+                runAction();
+            }
         }
 
-        IntentFilter buildIntentFilter() {
-            return new IntentFilter(WifiManager.NETWORK_STATE_CHANGED_ACTION);
+        private void runAction() {
+            if (timeline != null) {
+                span = timeline.begin(ProvisioningPhase.CONNECT_TO_SOFT_AP, name);
+            }
+            ProvisioningTrace.record(timeline, ProvisioningPhase.CONNECT_TO_SOFT_AP,
+                    ProvisioningTrace.JOIN_ACTION_STARTED, currentActionIndex);
+            if (perform()) {
+                startNextAction();
+                return;
+            }
+            if (currentAction() != this) {
+                // perform() failed the whole connection attempt, which cleared the state
+                if (span != null) {
+                    span.end(false);
+                }
+                return;
+            }
+            awaitingConfirmation = true;
+            actionTimeoutRunnable = new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (ConnectToAp.this) {
+                        if (actionTimeoutRunnable != this) {
+                            return;
+                        }
+                        ProvisioningTrace.record(timeline, ProvisioningPhase.CONNECT_TO_SOFT_AP,
+                                ProvisioningTrace.JOIN_ACTION_UNCONFIRMED, currentActionIndex);
+                        awaitingConfirmation = false;
+                        startNextAction();
+                    }
+                }
+            };
+            mainThreadHandler.postDelayed(actionTimeoutRunnable, ACTION_TIMEOUT_MILLIS);
         }
     }
 
@@ -1,34 +1,28 @@
 package com.ciklum.pigabstractionlayer.WifiProvisioning;
 
-import android.app.Activity;
-import android.content.Context;
 import android.util.Log;
 import android.util.SparseArray;
 
 import com.ciklum.pigabstractionlayer.PiggyBank;
 import com.ciklum.pigabstractionlayer.PiggyBankException;
 
-import java.util.List;
-
 import io.particle.android.sdk.devicesetup.SetupProcessException;
-import io.particle.android.sdk.devicesetup.setupsteps.SetupStep;
-import io.particle.android.sdk.devicesetup.setupsteps.SetupStepsRunnerTask;
-import io.particle.android.sdk.devicesetup.setupsteps.StepProgress;
 
 /**
- * This class extends SetupStepsRunnerTask (a particle class), which in return extends an AsyncTask.
- * It basically is used to run through the steps defined in buildSteps in ConnectToNetwork. The steps
+ * This class runs the steps defined in buildSteps in ConnectToNetwork through a ParallelStepRunner,
+ * on the library's own threads rather than an AsyncTask executor shared with the host app. The steps
  * in buildSteps send network information to the device. At the end, once the device succesfully goes
  * through provisioning, we claim the device against the particle cloud network using product
  * information. (In particle's implementation, claiming against a product is not possible).
  */
 
-class ConnectingProcessWorkerTask extends SetupStepsRunnerTask {
+class ConnectingProcessWorkerTask implements ParallelStepRunner.Listener {
 
     public static final String TAG = "ConnectingProcessWorker";
 
     private WifiProvisionManager wifiProvisionManager;
-    private Context mContext;
+    private final ParallelStepRunner runner;
+    private volatile boolean cancelled = false;
 
 
     /**
@@ -60,16 +54,31 @@ class ConnectingProcessWorkerTask extends SetupStepsRunnerTask {
         resultCodesToStringIds.put(RESULT_FAILURE_LOST_CONNECTION_TO_DEVICE, "Setup process lost connection to the device before being able to configure it");
     }
 
-    ConnectingProcessWorkerTask(List<SetupStep> steps, int max, WifiProvisionManager wifiState, Context context) {
-        super(steps, max);
+    ConnectingProcessWorkerTask(ParallelStepRunner runner, WifiProvisionManager wifiState) {
+        this.runner = runner;
         wifiProvisionManager = wifiState;
-        mContext = context;
+    }
+
+    /**
+     * Starts the steps. Returns straight away; the result is handled on the step thread that
+     * finished last, and the callback is delivered on the manager's callback executor.
+     */
+    void start() {
+        runner.start(this);
+    }
+
+    /**
+     * Interrupts the running steps. Neither the success nor the failure path is run afterwards.
+     */
+    void cancel() {
+        cancelled = true;
+        runner.cancel();
     }
 
     @Override
-    protected void onProgressUpdate(StepProgress... values) {
-        for (StepProgress progress : values) {
-            Log.d(TAG, "Step has progressed " + progress.status);
+    public void onFinished(SetupProcessException error) {
+        if (!cancelled) {
+            onPostExecute(error);
         }
     }
 
@@ -81,36 +90,25 @@ class ConnectingProcessWorkerTask extends SetupStepsRunnerTask {
      * @param error
      */
 
-    @Override
-    protected void onPostExecute(SetupProcessException error) {
+    private void onPostExecute(SetupProcessException error) {
         int resultCode;
+        ProvisioningTimeline timeline = wifiProvisionManager.getTimeline();
         if (error == null) {
-            if(PiggyBank.DEBUG){
-                Log.d(TAG, "HUZZAH, VICTORY!");
-            }
+            ProvisioningTrace.record(timeline, ProvisioningPhase.SETUP_STEPS, ProvisioningTrace.SETUP_FINISHED);
             final PiggyBank pig = wifiProvisionManager.createWifiProvisionPiggybank();
-            if(PiggyBank.DEBUG) {
-                Log.d(TAG, "Pig was just created");
-            }
-
-            ( (Activity) mContext).runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    wifiProvisionManager.mCallback.onSuccess(pig);
-                }
-            });
-
-
+            wifiProvisionManager.wifiProvisionSucceeded(pig);
         } else {
             resultCode = error.failedStep.getStepConfig().resultCode;
-            Log.d(TAG, "There was an issue with Wifi Provisioning at step " + resultCode);
-            Log.d(TAG, "The issue was " + resultCodesToStringIds.get(resultCode));
+            ProvisioningTrace.record(timeline, ProvisioningPhase.SETUP_STEPS, ProvisioningTrace.SETUP_FINISHED,
+                    resultCode);
+            if (PiggyBank.DEBUG) {
+                Log.d(TAG, "Wifi Provisioning failed at step " + resultCode + ": "
+                        + resultCodesToStringIds.get(resultCode));
+            }
 
-            // TODO: reset softAp here connection here!!!
-            wifiProvisionManager.mCallback.onFailure(new PiggyBankException(resultCodesToStringIds.get(resultCode)));
+            wifiProvisionManager.wifiProvisionFailed(
+                    new PiggyBankException(resultCodesToStringIds.get(resultCode)));
         }
-
-        Log.d(TAG, "Wifi Provision as ended");
     }
 
 }
\ No newline at end of file
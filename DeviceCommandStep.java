@@ -0,0 +1,82 @@
+package com.ciklum.pigabstractionlayer.WifiProvisioning;
+
+import com.google.gson.annotations.SerializedName;
+
+import java.io.IOException;
+
+import io.particle.android.sdk.devicesetup.commands.Command;
+import io.particle.android.sdk.devicesetup.setupsteps.SetupStep;
+import io.particle.android.sdk.devicesetup.setupsteps.SetupStepException;
+import io.particle.android.sdk.devicesetup.setupsteps.StepConfig;
+import io.particle.android.sdk.utils.Crypto;
+
+/**
+ * DeviceCommandStep
+ * Sends one command to the device over the session's CommandSession and succeeds once the device
+ * answers with a zero result code. Takes the place of the particle ConfigureAPStep and
+ * ConnectDeviceToNetworkStep, which open their own CommandClient connection per command.
+ */
+class DeviceCommandStep extends SetupStep {
+
+    /**
+     * Builds the command when the step runs, so e.g. encryption errors fail the step rather than
+     * buildSteps().
+     */
+    interface CommandBuilder {
+
+        /**
+         * @param previousAttemptRejected whether the device answered the previous attempt with a
+         *                                non-zero result code
+         */
+        Command build(boolean previousAttemptRejected) throws Crypto.CryptoException, IOException;
+    }
+
+    // Every command sent by these steps answers with just a result code.
+    private static class ResultResponse {
+
+        @SerializedName("r")
+        Integer responseCode;
+    }
+
+    private final CommandSession session;
+    private final CommandBuilder commandBuilder;
+
+    private volatile boolean commandSent = false;
+    private volatile boolean lastAttemptRejected = false;
+
+    DeviceCommandStep(StepConfig stepConfig, CommandSession session, CommandBuilder commandBuilder) {
+        super(stepConfig);
+        this.session = session;
+        this.commandBuilder = commandBuilder;
+    }
+
+    @Override
+    protected void onRunStep() throws SetupStepException {
+        if (commandSent) {
+            return;
+        }
+        Command command;
+        try {
+            command = commandBuilder.build(lastAttemptRejected);
+        } catch (Crypto.CryptoException | IOException e) {
+            throw new SetupStepException("Unable to build command", e);
+        }
+        lastAttemptRejected = false;
+        try {
+            ResultResponse response = session.send(command, ResultResponse.class);
+            if (response.responseCode == null || response.responseCode != 0) {
+                lastAttemptRejected = true;
+                throw new SetupStepException(command.getCommandName()
+                        + " returned non-zero response code: " + response.responseCode);
+            }
+            commandSent = true;
+        } catch (IOException e) {
+            throw new SetupStepException(e);
+        }
+    }
+
+    @Override
+    public boolean isStepFulfilled() {
+        return commandSent;
+    }
+}
@@ -0,0 +1,269 @@
+package com.ciklum.pigabstractionlayer.WifiProvisioning;
+
+import android.net.ConnectivityManager;
+import android.util.Log;
+
+import com.ciklum.pigabstractionlayer.PiggyBank;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.BufferedSource;
+
+/**
+ * DeviceEventStream
+ * Subscribes to the Particle event stream (server-sent events on /v1/devices/events) of the
+ * session's customer, and reports the moment the device being set up shows up on it.
+ *
+ * The stream only carries events of devices owned by the token's user, so any event from the
+ * device (its spark/status "online" in particular) means that the device is on the cloud and has
+ * been claimed, and that the phone itself can reach the cloud again. That is everything
+ * WaitForCloudConnectivityStep and CheckIfDeviceClaimedStep poll for.
+ *
+ * The stream is only connected once the phone can reach the internet (over the selected cloud
+ * network, or a validated default network), since it is usually started while the phone is still
+ * leaving the SoftAP. A failed or dropped stream is reconnected with a growing delay, up to
+ * MAX_RECONNECTS times in a row. The stream does not replay events sent before it connected, so
+ * polling remains the fallback; awaitDeviceEvent() returns early once the stream has given up.
+ */
+class DeviceEventStream {
+
+    private static final String TAG = "DeviceEventStream";
+
+    static final String EVENTS_ENDPOINT = "/v1/devices/events";
+    private static final String STATUS_EVENT = "spark/status";
+    private static final String STATUS_OFFLINE = "offline";
+
+    private static final int MAX_RECONNECTS = 5;
+    private static final long FIRST_RECONNECT_DELAY_MILLIS = 1000;
+    private static final long MAX_RECONNECT_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    // How often to check whether the phone has internet access yet.
+    private static final long NETWORK_CHECK_MILLIS = 500;
+
+    private final String deviceId;
+    private final String accessToken;
+    private final ConnectivityManager connectivityManager;
+
+    // Counted down by the first event of the device.
+    private final CountDownLatch deviceSeen = new CountDownLatch(1);
+    // Counted down once the stream has ended, or failed to connect.
+    private final CountDownLatch streamEnded = new CountDownLatch(1);
+
+    private Call call;
+    private ScheduledFuture<?> pendingConnect;
+    private boolean started;
+    private boolean closed;
+    // Reconnects since the stream was last open.
+    private int reconnects;
+
+    /**
+     * @param deviceId
+     * @param accessToken the customer's token, under which the device gets claimed
+     * @param connectivityManager to wait for internet access; null to connect straight away
+     */
+    DeviceEventStream(String deviceId, String accessToken, ConnectivityManager connectivityManager) {
+        this.deviceId = deviceId;
+        this.accessToken = accessToken;
+        this.connectivityManager = connectivityManager;
+    }
+
+    /**
+     * Connects to the stream in the background once the phone has internet access. Calls after the
+     * first have no effect.
+     */
+    synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        connectWhenOnline();
+    }
+
+    private synchronized void connectWhenOnline() {
+        pendingConnect = null;
+        if (closed || hasSeenDevice()) {
+            return;
+        }
+        if (!ParticleCloudTransport.canReachCloud(connectivityManager)) {
+            schedule(NETWORK_CHECK_MILLIS);
+            return;
+        }
+        ParticleCloudTransport transport = ParticleCloudTransport.get();
+        // The stream stays open for as long as the session waits; only the connect is bounded.
+        OkHttpClient streamClient = transport.client().newBuilder()
+                .readTimeout(0, TimeUnit.MILLISECONDS)
+                .build();
+        Request request = new Request.Builder()
+                .url(transport.url(EVENTS_ENDPOINT))
+                .header("Authorization", "Bearer " + accessToken)
+                .header("Accept", "text/event-stream")
+                .build();
+        call = streamClient.newCall(request);
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call failedCall, IOException e) {
+                if (PiggyBank.DEBUG) {
+                    Log.d(TAG, "Event stream failed to connect", e);
+                }
+                reconnect();
+            }
+
+            @Override
+            public void onResponse(Call streamCall, Response response) {
+                try {
+                    if (response.code() == 401 || response.code() == 403) {
+                        // the token will not get any better; leave it to polling
+                        Log.d(TAG, "Event stream refused: " + response.code());
+                        giveUp();
+                        return;
+                    }
+                    if (!response.isSuccessful()) {
+                        if (PiggyBank.DEBUG) {
+                            Log.d(TAG, "Event stream unavailable: " + response.code());
+                        }
+                        reconnect();
+                        return;
+                    }
+                    onConnected();
+                    readEvents(response.body().source());
+                    reconnect();
+                } catch (IOException e) {
+                    if (PiggyBank.DEBUG) {
+                        Log.d(TAG, "Event stream closed", e);
+                    }
+                    reconnect();
+                } finally {
+                    response.close();
+                }
+            }
+        });
+    }
+
+    private synchronized void onConnected() {
+        reconnects = 0;
+    }
+
+    /**
+     * Connects again after a delay that doubles with every reconnect in a row, or gives up.
+     */
+    private synchronized void reconnect() {
+        if (closed || hasSeenDevice()) {
+            return;
+        }
+        if (reconnects >= MAX_RECONNECTS) {
+            if (PiggyBank.DEBUG) {
+                Log.d(TAG, "Event stream gave up after " + reconnects + " reconnects, polling only");
+            }
+            giveUp();
+            return;
+        }
+        long delay = Math.min(FIRST_RECONNECT_DELAY_MILLIS << reconnects, MAX_RECONNECT_DELAY_MILLIS);
+        reconnects++;
+        schedule(delay);
+    }
+
+    private synchronized void schedule(long delayMillis) {
+        pendingConnect = ProvisioningExecutors.timer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                connectWhenOnline();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void giveUp() {
+        streamEnded.countDown();
+    }
+
+    /**
+     * Waits for an event of the device.
+     *
+     * @param timeoutMillis
+     * @return true once the device has been seen on the stream; false on timeout, or straight
+     * away if the stream has ended
+     * @throws InterruptedException
+     */
+    boolean awaitDeviceEvent(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (deviceSeen.getCount() > 0) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || streamEnded.getCount() == 0) {
+                return hasSeenDevice();
+            }
+            // Wake up now and then to notice the end of the stream.
+            deviceSeen.await(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(250)),
+                    TimeUnit.NANOSECONDS);
+        }
+        return true;
+    }
+
+    boolean hasSeenDevice() {
+        return deviceSeen.getCount() == 0;
+    }
+
+    synchronized void close() {
+        closed = true;
+        if (pendingConnect != null) {
+            pendingConnect.cancel(false);
+            pendingConnect = null;
+        }
+        if (call != null) {
+            call.cancel();
+        }
+        streamEnded.countDown();
+    }
+
+    /**
+     * Reads server-sent events until the stream ends: "event:" and "data:" lines, dispatched at
+     * each blank line. Comment lines (":ok" keep-alives) are skipped.
+     */
+    private void readEvents(BufferedSource source) throws IOException {
+        String eventName = null;
+        StringBuilder data = new StringBuilder();
+        String line;
+        while ((line = source.readUtf8Line()) != null) {
+            if (line.isEmpty()) {
+                if (eventName != null && data.length() > 0) {
+                    onEvent(eventName, data.toString());
+                }
+                eventName = null;
+                data.setLength(0);
+            } else if (line.startsWith("event:")) {
+                eventName = line.substring(6).trim();
+            } else if (line.startsWith("data:")) {
+                if (data.length() > 0) {
+                    data.append('\n');
+                }
+                data.append(line.substring(5).trim());
+            }
+        }
+    }
+
+    private void onEvent(String name, String data) {
+        try {
+            JSONObject event = new JSONObject(data);
+            if (!deviceId.equalsIgnoreCase(event.optString("coreid"))) {
+                return;
+            }
+            if (STATUS_EVENT.equals(name) && STATUS_OFFLINE.equals(event.optString("data"))) {
+                return;
+            }
+            if (PiggyBank.DEBUG) {
+                Log.d(TAG, "Device " + deviceId + " sent " + name);
+            }
+            deviceSeen.countDown();
+        } catch (JSONException e) {
+            Log.d(TAG, "Unreadable event " + name + ": " + data);
+        }
+    }
+}
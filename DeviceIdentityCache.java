@@ -0,0 +1,167 @@
+package com.ciklum.pigabstractionlayer.WifiProvisioning;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.ciklum.pigabstractionlayer.PiggyBank;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.security.PublicKey;
+import java.util.HashMap;
+import java.util.Map;
+
+import io.particle.android.sdk.devicesetup.commands.ScanApCommand;
+import io.particle.android.sdk.utils.Crypto;
+
+/**
+ * DeviceIdentityCache
+ * Remembers, per device id, the device's public key, whether it was last seen claimed and the last
+ * network it was successfully provisioned onto. Devices are often provisioned again (new router,
+ * back from repair); with the key cached, discovery only needs the device id before the Wi-Fi
+ * credentials can be encrypted and sent, which shortens the time spent on the SoftAP.
+ *
+ * An entry whose key no longer parses is dropped rather than used. A key the device has since
+ * rotated cannot be detected up front; the session replaces the entry with the key the device
+ * reports when configure-ap rejects the credentials encrypted with the cached one.
+ */
+class DeviceIdentityCache {
+
+    private static final String TAG = "DeviceIdentityCache";
+    private static final String PREFS_NAME = "com.ciklum.pigabstractionlayer.device_identities";
+
+    private static final String KEY_PUBLIC_KEY = "public_key";
+    private static final String KEY_CLAIMED = "claimed";
+    private static final String KEY_NETWORK_SSID = "network_ssid";
+    private static final String KEY_NETWORK_SECURITY = "network_security";
+    private static final String KEY_NETWORK_CHANNEL = "network_channel";
+
+    private static DeviceIdentityCache instance;
+
+    /**
+     * What is known about one device.
+     */
+    static class Entry {
+
+        final String deviceId;
+        final String publicKeyHex;
+        final PublicKey publicKey;
+        final boolean claimed;
+        // null until the device has been provisioned successfully
+        final ScanApCommand.Scan lastNetwork;
+
+        Entry(String deviceId, String publicKeyHex, PublicKey publicKey, boolean claimed,
+              ScanApCommand.Scan lastNetwork) {
+            this.deviceId = deviceId;
+            this.publicKeyHex = publicKeyHex;
+            this.publicKey = publicKey;
+            this.claimed = claimed;
+            this.lastNetwork = lastNetwork;
+        }
+    }
+
+    private final SharedPreferences prefs;
+    // Parsed entries, so a key is only decoded once per process.
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    private DeviceIdentityCache(Context context) {
+        prefs = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    static synchronized DeviceIdentityCache get(Context context) {
+        if (instance == null) {
+            instance = new DeviceIdentityCache(context);
+        }
+        return instance;
+    }
+
+    /**
+     * @param deviceId
+     * @return the cached entry, or null if there is none or it could not be read
+     */
+    synchronized Entry lookup(String deviceId) {
+        Entry entry = entries.get(deviceId);
+        if (entry != null) {
+            return entry;
+        }
+        String stored = prefs.getString(deviceId, null);
+        if (stored == null) {
+            return null;
+        }
+        try {
+            JSONObject json = new JSONObject(stored);
+            String publicKeyHex = json.getString(KEY_PUBLIC_KEY);
+            ScanApCommand.Scan lastNetwork = null;
+            if (json.has(KEY_NETWORK_SSID)) {
+                lastNetwork = new ScanApCommand.Scan(json.getString(KEY_NETWORK_SSID),
+                        json.getInt(KEY_NETWORK_SECURITY), json.getInt(KEY_NETWORK_CHANNEL));
+            }
+            entry = new Entry(deviceId, publicKeyHex,
+                    Crypto.readPublicKeyFromHexEncodedDerString(publicKeyHex),
+                    json.optBoolean(KEY_CLAIMED), lastNetwork);
+            entries.put(deviceId, entry);
+            return entry;
+        } catch (JSONException | Crypto.CryptoException e) {
+            Log.d(TAG, "Dropping unreadable entry for " + deviceId, e);
+            evict(deviceId);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the key the device has just reported, keeping its last network.
+     *
+     * @param deviceId
+     * @param publicKeyHex as reported by the device
+     * @param publicKey the parsed key
+     * @param claimed
+     */
+    synchronized void rememberKey(String deviceId, String publicKeyHex, PublicKey publicKey,
+                                  boolean claimed) {
+        Entry previous = lookup(deviceId);
+        ScanApCommand.Scan lastNetwork = previous != null && publicKeyHex.equals(previous.publicKeyHex)
+                ? previous.lastNetwork : null;
+        store(new Entry(deviceId, publicKeyHex, publicKey, claimed, lastNetwork));
+    }
+
+    /**
+     * Records a successful provisioning: the device is now claimed and on the given network.
+     *
+     * @param deviceId
+     * @param network
+     */
+    synchronized void rememberProvisioned(String deviceId, ScanApCommand.Scan network) {
+        Entry previous = lookup(deviceId);
+        if (previous == null) {
+            return;
+        }
+        store(new Entry(deviceId, previous.publicKeyHex, previous.publicKey, true, network));
+    }
+
+    synchronized void evict(String deviceId) {
+        entries.remove(deviceId);
+        prefs.edit().remove(deviceId).apply();
+    }
+
+    private void store(Entry entry) {
+        try {
+            JSONObject json = new JSONObject();
+            json.put(KEY_PUBLIC_KEY, entry.publicKeyHex);
+            json.put(KEY_CLAIMED, entry.claimed);
+            if (entry.lastNetwork != null) {
+                json.put(KEY_NETWORK_SSID, entry.lastNetwork.ssid);
+                json.put(KEY_NETWORK_SECURITY, entry.lastNetwork.wifiSecurityType);
+                json.put(KEY_NETWORK_CHANNEL, entry.lastNetwork.channel);
+            }
+            entries.put(entry.deviceId, entry);
+            prefs.edit().putString(entry.deviceId, json.toString()).apply();
+            if (PiggyBank.DEBUG) {
+                Log.d(TAG, "Cached identity of " + entry.deviceId);
+            }
+        } catch (JSONException e) {
+            Log.d(TAG, "Could not cache identity of " + entry.deviceId, e);
+        }
+    }
+}
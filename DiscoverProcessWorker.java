@@ -1,13 +1,13 @@
 package com.ciklum.pigabstractionlayer.WifiProvisioning;
 
-import android.util.Log;
+import com.ciklum.pigabstractionlayer.PiggyBankException;
 
 import org.apache.commons.lang3.StringUtils;
 
 import java.io.IOException;
 import java.security.PublicKey;
 
-import io.particle.android.sdk.devicesetup.commands.CommandClient;
+import io.particle.android.sdk.devicesetup.commands.Command;
 import io.particle.android.sdk.devicesetup.commands.DeviceIdCommand;
 import io.particle.android.sdk.devicesetup.commands.PublicKeyCommand;
 import io.particle.android.sdk.devicesetup.commands.SetCommand;
@@ -28,7 +28,7 @@ public class DiscoverProcessWorker {
 
     public static final String TAG = "DiscoverProcessWorker";
 
-    private final CommandClient client;
+    private final CommandSession session;
     private WifiProvisionManager wifiProvisionManager;
 
     private String detectedDeviceID;
@@ -38,19 +38,19 @@ public class DiscoverProcessWorker {
     private volatile boolean needToClaimDevice;
 
 
-    DiscoverProcessWorker(CommandClient client, WifiProvisionManager wifiSetup) {
-        this.client = client;
+    DiscoverProcessWorker(CommandSession session, WifiProvisionManager wifiSetup) {
+        this.session = session;
         this.wifiProvisionManager = wifiSetup;
     }
 
 
 
-    public void doTheThing(InterfaceBindingSocketFactoryDev socketFactory) throws SetupStepException {
+    public void doTheThing() throws SetupStepException {
         // 1. get device ID
         if (!truthy(detectedDeviceID)) {
             try {
-                DeviceIdCommand.Response response = client.sendCommandAndReturnResponse(
-                        new DeviceIdCommand(), DeviceIdCommand.Response.class, socketFactory);
+                DeviceIdCommand.Response response = sendCommand(
+                        new DeviceIdCommand(), DeviceIdCommand.Response.class);
                 detectedDeviceID = response.deviceIdHex.toLowerCase();
                 wifiProvisionManager.mDeviceToBeSetUpId = detectedDeviceID;
                 isDetectedDeviceClaimed = truthy(response.isClaimed);
@@ -59,10 +59,18 @@ public class DiscoverProcessWorker {
             }
         }
 
-        // 2. Get public key
+        // 2. Get public key, from the DeviceIdentityCache if this device has been set up before
         if (wifiProvisionManager.mPublicKey == null) {
+            DeviceIdentityCache cache = wifiProvisionManager.getDeviceIdentityCache();
+            DeviceIdentityCache.Entry cached = cache == null ? null : cache.lookup(detectedDeviceID);
             try {
-                wifiProvisionManager.mPublicKey = getPublicKey(socketFactory);
+                if (cached != null) {
+                    wifiProvisionManager.mPublicKey = cached.publicKey;
+                    wifiProvisionManager.mPublicKeyHex = cached.publicKeyHex;
+                    wifiProvisionManager.mPublicKeyFromCache = true;
+                } else {
+                    fetchPublicKey();
+                }
             } catch (Crypto.CryptoException e) {
                 throw new SetupStepException("Unable to get public key: ", e);
 
@@ -71,6 +79,9 @@ public class DiscoverProcessWorker {
             }
         }
 
+        // Encrypt the Wi-Fi credentials while the claim code is being sent.
+        wifiProvisionManager.encryptCredentialsAhead();
+
         // 3. check ownership
         //
         // all cases:
@@ -85,7 +96,7 @@ public class DiscoverProcessWorker {
 
             // device was never claimed before - so we need to claim it anyways
             if (!isDetectedDeviceClaimed) {
-                setClaimCode(socketFactory);
+                setClaimCode();
                 needToClaimDevice = true;
 
             } else {
@@ -98,7 +109,7 @@ public class DiscoverProcessWorker {
 
                     //change the ownership and set the claim code.
 
-                    setClaimCode(socketFactory);
+                    setClaimCode();
 
                 } else {
                     // Success: no exception thrown, this part of the process is complete.
@@ -109,7 +120,7 @@ public class DiscoverProcessWorker {
 
         } else {
             if (needToClaimDevice) {
-                setClaimCode(socketFactory);
+                setClaimCode();
             }
             // Success: no exception thrown, the part of the process is complete.  Let the caller
             // continue on with the setup process.
@@ -117,39 +128,92 @@ public class DiscoverProcessWorker {
         }
     }
 
-    private void setClaimCode(InterfaceBindingSocketFactoryDev socketFactory)
+    private void setClaimCode()
             throws SetupStepException {
 
+        // The claim code may still be on its way over the cloud network.
+        try {
+            wifiProvisionManager.awaitCloudAuth();
+        } catch (PiggyBankException e) {
+            throw new SetupStepException("Claim Code could not be fetched", e);
+        }
+
         if(wifiProvisionManager.mClaimCode == null){
             throw new SetupStepException("Claim Code was not Set");
         }
 
         try {
-            Log.d(TAG, "Setting claim code using code: " + wifiProvisionManager.mClaimCode);
-
-            SetCommand.Response response = client.sendCommandAndReturnResponse(
+            SetCommand.Response response = sendCommand(
                     new SetCommand("cc", StringUtils.remove(wifiProvisionManager.mClaimCode, "\\")),
-                    SetCommand.Response.class, socketFactory);
+                    SetCommand.Response.class);
 
+            ProvisioningTrace.record(wifiProvisionManager.getTimeline(),
+                    ProvisioningPhase.DISCOVER_DEVICE, ProvisioningTrace.CLAIM_CODE_SET,
+                    response.responseCode);
             if (truthy(response.responseCode)) {
                 // a non-zero response indicates an error, ala UNIX return codes
                 throw new SetupStepException("Received non-zero return code from set command: "
                         + response.responseCode);
             }
 
-            Log.d(TAG, "Successfully set claim code");
-
         } catch (IOException e) {
             throw new SetupStepException(e);
         }
     }
 
-    private PublicKey getPublicKey(InterfaceBindingSocketFactoryDev socketFactory)
+    /**
+     * Asks the device for its current public key, replacing a cached one. Used when the device
+     * rejected credentials encrypted with the cached key.
+     *
+     * @throws Crypto.CryptoException
+     * @throws IOException
+     */
+    void refreshPublicKey() throws Crypto.CryptoException, IOException {
+        DeviceIdentityCache cache = wifiProvisionManager.getDeviceIdentityCache();
+        if (cache != null) {
+            cache.evict(detectedDeviceID);
+        }
+        fetchPublicKey();
+    }
+
+    private void fetchPublicKey() throws Crypto.CryptoException, IOException {
+        wifiProvisionManager.mPublicKey = getPublicKey();
+        wifiProvisionManager.mPublicKeyFromCache = false;
+        DeviceIdentityCache cache = wifiProvisionManager.getDeviceIdentityCache();
+        if (cache != null) {
+            cache.rememberKey(detectedDeviceID, wifiProvisionManager.mPublicKeyHex,
+                    wifiProvisionManager.mPublicKey, isDetectedDeviceClaimed);
+        }
+    }
+
+    private PublicKey getPublicKey()
             throws Crypto.CryptoException, IOException {
-        PublicKeyCommand.Response response = this.client.sendCommandAndReturnResponse(
-                new PublicKeyCommand(), PublicKeyCommand.Response.class, socketFactory);
+        PublicKeyCommand.Response response = sendCommand(
+                new PublicKeyCommand(), PublicKeyCommand.Response.class);
 
-        return Crypto.readPublicKeyFromHexEncodedDerString(response.publicKey);
+        PublicKey publicKey = Crypto.readPublicKeyFromHexEncodedDerString(response.publicKey);
+        wifiProvisionManager.mPublicKeyHex = response.publicKey;
+        return publicKey;
+    }
+
+    /**
+     * Sends a command to the device, recording how long the round trip took on the session's
+     * timeline, if the manager has one yet.
+     */
+    private <T> T sendCommand(Command command, Class<T> responseType) throws IOException {
+        ProvisioningTimeline timeline = wifiProvisionManager.getTimeline();
+        if (timeline == null) {
+            return session.send(command, responseType);
+        }
+        ProvisioningTimeline.Span span = timeline.begin(
+                ProvisioningPhase.DISCOVER_DEVICE, command.getCommandName());
+        try {
+            T response = session.send(command, responseType);
+            span.end(true);
+            return response;
+        } finally {
+            span.end(false);
+        }
     }
 }
 
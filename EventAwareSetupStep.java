@@ -0,0 +1,42 @@
+package com.ciklum.pigabstractionlayer.WifiProvisioning;
+
+import io.particle.android.sdk.devicesetup.SetupProcessException;
+import io.particle.android.sdk.devicesetup.setupsteps.SetupStep;
+import io.particle.android.sdk.devicesetup.setupsteps.SetupStepException;
+
+/**
+ * EventAwareSetupStep
+ * Wraps one of the polling cloud steps (WaitForCloudConnectivityStep, CheckIfDeviceClaimedStep) so
+ * that it is fulfilled as soon as the device shows up on the DeviceEventStream. Until then the
+ * wrapped step polls as before; RetryingSetupStep waits for the event in place of its backoff
+ * sleep, so an event arriving between two polls ends the wait straight away.
+ */
+class EventAwareSetupStep extends SetupStep implements RetryingSetupStep.EarlyCompletion {
+
+    private final SetupStep delegate;
+    private final DeviceEventStream eventStream;
+
+    EventAwareSetupStep(SetupStep delegate, DeviceEventStream eventStream) {
+        super(delegate.getStepConfig());
+        this.delegate = delegate;
+        this.eventStream = eventStream;
+    }
+
+    @Override
+    protected void onRunStep() throws SetupStepException, SetupProcessException {
+        if (eventStream.hasSeenDevice()) {
+            return;
+        }
+        delegate.runStep();
+    }
+
+    @Override
+    public boolean isStepFulfilled() {
+        return eventStream.hasSeenDevice() || delegate.isStepFulfilled();
+    }
+
+    @Override
+    public boolean awaitCompletion(long timeoutMillis) throws InterruptedException {
+        return eventStream.awaitDeviceEvent(timeoutMillis);
+    }
+}
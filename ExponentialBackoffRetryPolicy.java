@@ -0,0 +1,139 @@
+package com.ciklum.pigabstractionlayer.WifiProvisioning;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ExponentialBackoffRetryPolicy
+ * Retries each phase up to its attempt budget, waiting baseDelay * 2^(failedAttempts - 1) between
+ * attempts (capped at maxDelay), with part of every delay randomised so that retries against the
+ * device or the cloud don't line up. No retry is scheduled that would end after the overall session
+ * deadline, so a dead device gives up as soon as the deadline makes further attempts pointless.
+ *
+ * The defaults match the attempt counts the library has always used (MAX_RETRIES_CLAIM was 5 for
+ * the claim code).
+ */
+public class ExponentialBackoffRetryPolicy implements RetryPolicy {
+
+    private final Map<ProvisioningPhase, Integer> maxAttempts;
+    private final Map<ProvisioningPhase, Long> timeouts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final double jitter;
+    private final long sessionDeadlineMillis;
+    private final Random random = new Random();
+
+    private ExponentialBackoffRetryPolicy(Builder builder) {
+        maxAttempts = new EnumMap<ProvisioningPhase, Integer>(builder.maxAttempts);
+        timeouts = new EnumMap<ProvisioningPhase, Long>(builder.timeouts);
+        baseDelayMillis = builder.baseDelayMillis;
+        maxDelayMillis = builder.maxDelayMillis;
+        jitter = builder.jitter;
+        sessionDeadlineMillis = builder.sessionDeadlineMillis;
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    @Override
+    public int getMaxAttempts(ProvisioningPhase phase) {
+        Integer attempts = maxAttempts.get(phase);
+        return attempts == null ? 1 : attempts;
+    }
+
+    @Override
+    public long getTimeoutMillis(ProvisioningPhase phase) {
+        Long timeout = timeouts.get(phase);
+        return timeout == null ? 0 : timeout;
+    }
+
+    @Override
+    public long getRetryDelayMillis(ProvisioningPhase phase, int failedAttempts, long sessionElapsedMillis) {
+        if (failedAttempts >= getMaxAttempts(phase)) {
+            return STOP;
+        }
+
+        long delay = baseDelayMillis << Math.min(Math.max(failedAttempts - 1, 0), 20);
+        delay = Math.min(delay, maxDelayMillis);
+        synchronized (random) {
+            delay -= (long) (delay * jitter * random.nextDouble());
+        }
+
+        if (sessionDeadlineMillis > 0 && sessionElapsedMillis + delay >= sessionDeadlineMillis) {
+            return STOP;
+        }
+        return delay;
+    }
+
+
+    public static class Builder {
+
+        private final Map<ProvisioningPhase, Integer> maxAttempts =
+                new EnumMap<ProvisioningPhase, Integer>(ProvisioningPhase.class);
+        private final Map<ProvisioningPhase, Long> timeouts =
+                new EnumMap<ProvisioningPhase, Long>(ProvisioningPhase.class);
+        private long baseDelayMillis = 250;
+        private long maxDelayMillis = TimeUnit.SECONDS.toMillis(5);
+        private double jitter = 0.5;
+        private long sessionDeadlineMillis = TimeUnit.MINUTES.toMillis(5);
+
+        private Builder() {
+            maxAttempts.put(ProvisioningPhase.AUTH, 1);
+            maxAttempts.put(ProvisioningPhase.CLAIM_CODE, 5);
+            maxAttempts.put(ProvisioningPhase.CONNECT_TO_SOFT_AP, 4);
+            maxAttempts.put(ProvisioningPhase.DISCOVER_DEVICE, 5);
+            maxAttempts.put(ProvisioningPhase.CONFIGURE_AP, 5);
+            maxAttempts.put(ProvisioningPhase.CONNECT_DEVICE_TO_NETWORK, 5);
+            maxAttempts.put(ProvisioningPhase.WAIT_FOR_DISCONNECTION, 5);
+            maxAttempts.put(ProvisioningPhase.ENSURE_SOFT_AP_NOT_VISIBLE, 5);
+            maxAttempts.put(ProvisioningPhase.WAIT_FOR_CLOUD_CONNECTIVITY, 5);
+            maxAttempts.put(ProvisioningPhase.CHECK_DEVICE_CLAIMED, 5);
+            maxAttempts.put(ProvisioningPhase.SETUP_STEPS, 15);
+
+            timeouts.put(ProvisioningPhase.CONNECT_TO_SOFT_AP, TimeUnit.SECONDS.toMillis(20));
+        }
+
+        public Builder setMaxAttempts(ProvisioningPhase phase, int attempts) {
+            maxAttempts.put(phase, Math.max(1, attempts));
+            return this;
+        }
+
+        public Builder setTimeoutMillis(ProvisioningPhase phase, long timeoutMillis) {
+            timeouts.put(phase, timeoutMillis);
+            return this;
+        }
+
+        public Builder setBaseDelayMillis(long baseDelayMillis) {
+            this.baseDelayMillis = baseDelayMillis;
+            return this;
+        }
+
+        public Builder setMaxDelayMillis(long maxDelayMillis) {
+            this.maxDelayMillis = maxDelayMillis;
+            return this;
+        }
+
+        /**
+         * @param jitter fraction (0 to 1) of each delay that is randomised
+         */
+        public Builder setJitter(double jitter) {
+            this.jitter = Math.max(0, Math.min(1, jitter));
+            return this;
+        }
+
+        /**
+         * @param sessionDeadlineMillis overall time budget for a session, or 0 for no deadline
+         */
+        public Builder setSessionDeadlineMillis(long sessionDeadlineMillis) {
+            this.sessionDeadlineMillis = sessionDeadlineMillis;
+            return this;
+        }
+
+        public ExponentialBackoffRetryPolicy build() {
+            return new ExponentialBackoffRetryPolicy(this);
+        }
+    }
+}
@@ -4,27 +4,48 @@ import android.annotation.TargetApi;
 import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.Network;
+import android.net.NetworkCapabilities;
 import android.net.NetworkInfo;
+import android.net.NetworkRequest;
 import android.os.Build;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
 
 import io.particle.android.sdk.devicesetup.commands.CeciNestPasUnSocketFactory;
-import io.particle.android.sdk.utils.TLog;
 import io.particle.android.sdk.utils.WiFi;
 
 
 /**
  * Factory for Sockets which binds communication to a particular {@link android.net.Network}
+ *
+ * The SoftAP's Network is looked up once and reused for every socket, until a registered
+ * NetworkCallback reports it lost. Call release() when the factory is no longer needed.
  */
 public class InterfaceBindingSocketFactoryDev implements CeciNestPasUnSocketFactory {
 
-    private static final TLog log = TLog.get(InterfaceBindingSocketFactoryDev.class);
 
     private final Context ctx;
     private final String softAPSSID;
 
+    // Every socket handed out, so that a cancelled session can unblock pending reads. Weak, since
+    // the command client closes and forgets the sockets itself.
+    private final Set<Socket> sockets = Collections.newSetFromMap(new WeakHashMap<Socket, Boolean>());
+
+    // The SoftAP's Network once found; cleared by the callback when that network goes away.
+    private volatile Network softApNetwork;
+    private Object networkCallback;
+    // Once released, the Network is still looked up for late sockets, but no longer watched.
+    private boolean released;
+    // Tags the trace events with the session; null outside a session.
+    private volatile ProvisioningTimeline timeline;
+
     // FIXME: bad design, fix in next release
     public InterfaceBindingSocketFactoryDev(Context ctx) {
         // just use whatever we're connected to now
@@ -36,6 +57,13 @@ public class InterfaceBindingSocketFactoryDev implements CeciNestPasUnSocketFact
         this.softAPSSID = softAPSSID;
     }
 
+    /**
+     * @param timeline the session the ProvisioningTrace events of this factory belong to
+     */
+    public void setTimeline(ProvisioningTimeline timeline) {
+        this.timeline = timeline;
+    }
+
     public Socket buildSocket(int readTimeoutMillis) throws IOException {
         Socket socket = new Socket();
         socket.setSoTimeout(readTimeoutMillis);
@@ -43,42 +71,132 @@ public class InterfaceBindingSocketFactoryDev implements CeciNestPasUnSocketFact
             try {
                 bindSocketToSoftAp(socket);
             } catch (SocketBindingException e) {
-                log.i("Unable to bind to the socket; connection is probably going to fail...");
+                // connection is probably going to fail...
+                ProvisioningTrace.record(timeline, ProvisioningPhase.DISCOVER_DEVICE,
+                        ProvisioningTrace.SOCKET_BIND_FAILED, 0);
             }
         }
+        synchronized (sockets) {
+            sockets.add(socket);
+        }
         return socket;
     }
 
+    /**
+     * Binds a channel of the NioCommandTransport to the SoftAP's Network, as buildSocket() does
+     * for blocking sockets. Must be called before the channel connects.
+     *
+     * @param channel
+     */
+    public void bindChannel(SocketChannel channel) throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            try {
+                bindSocketToSoftAp(channel.socket());
+            } catch (SocketBindingException e) {
+                ProvisioningTrace.record(timeline, ProvisioningPhase.DISCOVER_DEVICE,
+                        ProvisioningTrace.SOCKET_BIND_FAILED, 1);
+            }
+        }
+    }
+
+    /**
+     * Closes every socket this factory has built that is still open.
+     */
+    public void closeAllSockets() {
+        List<Socket> toClose;
+        synchronized (sockets) {
+            toClose = new ArrayList<Socket>(sockets);
+            sockets.clear();
+        }
+        for (Socket socket : toClose) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                ProvisioningTrace.record(timeline, null, ProvisioningTrace.SOCKET_CLOSE_FAILED);
+            }
+        }
+    }
+
+    /**
+     * Stops watching for the SoftAP network going away, for good. Sockets already built are not
+     * affected.
+     */
+    public synchronized void release() {
+        released = true;
+        if (networkCallback != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            unregisterNetworkCallback();
+        }
+        networkCallback = null;
+        softApNetwork = null;
+    }
+
     @TargetApi(Build.VERSION_CODES.LOLLIPOP)
     private void bindSocketToSoftAp(Socket socket) throws SocketBindingException, IOException {
+        Network softAp = softApNetwork;
+        if (softAp == null) {
+            softAp = findSoftApNetwork();
+        }
+        softAp.bindSocket(socket);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private synchronized Network findSoftApNetwork() throws SocketBindingException {
+        if (softApNetwork != null) {
+            return softApNetwork;
+        }
         ConnectivityManager connMan = (ConnectivityManager) ctx.getSystemService(Context.CONNECTIVITY_SERVICE);
-        Network softAp = null;
+        String dequotifiedTargetSsid = WiFi.deQuotifySsid(softAPSSID);
         for (Network network : connMan.getAllNetworks()) {
-            log.i("Inspecting network:  " + network);
             NetworkInfo networkInfo = connMan.getNetworkInfo(network);
-            log.i("Inspecting network info:  " + networkInfo);
+            if (networkInfo == null) {
+                continue;
+            }
             // Android doesn't have any means of directly
             // asking "I want the Network obj for the Wi-Fi network with SSID <foo>".
             // Instead, you have to infer it.  Let's hope that getExtraInfo() doesn't
             // ever change...
             String dequotifiedNetworkExtraSsid = WiFi.deQuotifySsid(networkInfo.getExtraInfo());
-            String dequotifiedTargetSsid = WiFi.deQuotifySsid(softAPSSID);
-            log.i("Network extra info: '" + dequotifiedNetworkExtraSsid + "'");
-            log.i("And the SSID we were to connect to: '" + dequotifiedTargetSsid + "'");
             if (dequotifiedTargetSsid.equalsIgnoreCase(dequotifiedNetworkExtraSsid)) {
-                softAp = network;
-                break;
+                ProvisioningTrace.record(timeline, ProvisioningPhase.DISCOVER_DEVICE,
+                        ProvisioningTrace.SOFT_AP_NETWORK_FOUND, network.hashCode());
+                if (networkCallback == null && !released) {
+                    registerNetworkCallback(connMan);
+                }
+                softApNetwork = network;
+                return network;
             }
         }
+        // If this ever fails, fail VERY LOUDLY to make sure we hear about it...
+        throw new SocketBindingException("Could not find Network for SSID " + softAPSSID);
+    }
 
-        if (softAp == null) {
-            // If this ever fails, fail VERY LOUDLY to make sure we hear about it...
-            throw new SocketBindingException("Could not find Network for SSID " + softAPSSID);
-        }
-
-        log.i("About to bind the Socket");
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void registerNetworkCallback(ConnectivityManager connMan) {
+        ConnectivityManager.NetworkCallback callback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onLost(Network network) {
+                if (network.equals(softApNetwork)) {
+                    // looked up again for the next socket
+                    ProvisioningTrace.record(timeline, null, ProvisioningTrace.SOFT_AP_NETWORK_LOST,
+                            network.hashCode());
+                    softApNetwork = null;
+                }
+            }
+        };
+        connMan.registerNetworkCallback(new NetworkRequest.Builder()
+                .addTransportType(NetworkCapabilities.TRANSPORT_WIFI)
+                .build(), callback);
+        networkCallback = callback;
+    }
 
-        softAp.bindSocket(socket);
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void unregisterNetworkCallback() {
+        ConnectivityManager connMan = (ConnectivityManager) ctx.getSystemService(Context.CONNECTIVITY_SERVICE);
+        try {
+            connMan.unregisterNetworkCallback((ConnectivityManager.NetworkCallback) networkCallback);
+        } catch (IllegalArgumentException e) {
+            // already unregistered
+        }
     }
 
     private static class SocketBindingException extends Exception {
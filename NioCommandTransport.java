@@ -0,0 +1,457 @@
+package com.ciklum.pigabstractionlayer.WifiProvisioning;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * NioCommandTransport
+ * Non-blocking transport for the device command protocol. Every connection is a SocketChannel
+ * driven by one shared selector thread, with explicit connect, write and read deadlines: a
+ * half-associated SoftAP fails a connect after the connect deadline instead of blocking a thread
+ * for the OS default, and a provisioning station can talk to many devices without a thread per
+ * socket.
+ *
+ * A connection carries exactly one command, as the Photon firmware expects: open() starts the TCP
+ * connect, send() writes the frame and reads until the device closes the connection. Callbacks
+ * are called on the selector thread and must return quickly.
+ */
+public class NioCommandTransport {
+
+    private static final String TAG = "NioCommandTransport";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static final long DEFAULT_CONNECT_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    public static final long DEFAULT_WRITE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    public static final long DEFAULT_READ_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    // Pause after a failed select(), doubled for each failure in a row up to the max.
+    private static final long SELECT_FAILURE_BACKOFF_MILLIS = 50;
+    private static final long MAX_SELECT_FAILURE_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    private static NioCommandTransport instance;
+
+    /**
+     * Prepares a channel before it connects, e.g. binds it to the SoftAP's Network.
+     */
+    public interface ChannelBinder {
+
+        void bind(SocketChannel channel) throws IOException;
+    }
+
+    /**
+     * Result of one command. Exactly one method is called, on the selector thread.
+     */
+    public interface Callback {
+
+        /**
+         * @param rawResponse everything the device sent before closing the connection
+         */
+        void onResponse(String rawResponse);
+
+        void onFailure(IOException error);
+    }
+
+    private final long connectTimeoutMillis;
+    private final long writeTimeoutMillis;
+    private final long readTimeoutMillis;
+
+    private final ConcurrentLinkedQueue<Runnable> pendingTasks = new ConcurrentLinkedQueue<Runnable>();
+    // Only touched on the selector thread.
+    private final Set<Connection> activeConnections = new HashSet<Connection>();
+
+    // Replaced by the selector thread when select() fails.
+    private volatile Selector selector;
+
+    public static synchronized NioCommandTransport get() {
+        if (instance == null) {
+            instance = new NioCommandTransport(DEFAULT_CONNECT_TIMEOUT_MILLIS,
+                    DEFAULT_WRITE_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS);
+        }
+        return instance;
+    }
+
+    /**
+     * @param connectTimeoutMillis how long the TCP connect may take
+     * @param writeTimeoutMillis how long writing a command frame may take
+     * @param readTimeoutMillis how long the device may take to answer once the frame is written
+     */
+    public NioCommandTransport(long connectTimeoutMillis, long writeTimeoutMillis,
+                               long readTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.writeTimeoutMillis = writeTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    /**
+     * Starts connecting to the device. Returns straight away; the connect completes on the
+     * selector thread.
+     *
+     * @param address
+     * @param binder may be null
+     * @return the connection, to send() one command on
+     * @throws IOException if the channel could not be created or bound
+     */
+    public Connection open(InetSocketAddress address, ChannelBinder binder) throws IOException {
+        ensureSelectorThread();
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            if (binder != null) {
+                binder.bind(channel);
+            }
+            final Connection connection = new Connection(channel);
+            final boolean connected = channel.connect(address);
+            runOnSelectorThread(new Runnable() {
+                @Override
+                public void run() {
+                    connection.register(connected);
+                }
+            });
+            return connection;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * A CommandSession.Connector opening its connections through this transport.
+     */
+    CommandSession.Connector connector(final ChannelBinder binder) {
+        return new CommandSession.Connector() {
+            @Override
+            public CommandSession.Connection connect(InetSocketAddress address) throws IOException {
+                return open(address, binder);
+            }
+        };
+    }
+
+    private synchronized void ensureSelectorThread() throws IOException {
+        if (selector != null) {
+            return;
+        }
+        selector = Selector.open();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                selectLoop();
+            }
+        }, TAG);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void runOnSelectorThread(Runnable task) {
+        pendingTasks.add(task);
+        selector.wakeup();
+    }
+
+    private void selectLoop() {
+        int failuresInARow = 0;
+        while (true) {
+            try {
+                selector.select(millisUntilNextDeadline());
+
+                Runnable task;
+                while ((task = pendingTasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isValid()) {
+                        connection.onReady(key);
+                    }
+                }
+
+                expireDeadlines();
+                failuresInARow = 0;
+            } catch (IOException e) {
+                onSelectFailed(e, failuresInARow++);
+            } catch (ClosedSelectorException e) {
+                onSelectFailed(new IOException("Selector closed", e), failuresInARow++);
+            }
+        }
+    }
+
+    /**
+     * A failing select() is not recoverable for the connections it holds, and a broken selector
+     * would fail every select() straight away, so it is replaced by a new one. The loop pauses
+     * before selecting again so that a selector that keeps failing does not spin the thread.
+     *
+     * @param error
+     * @param previousFailures failures in a row before this one
+     */
+    private void onSelectFailed(IOException error, int previousFailures) {
+        Log.d(TAG, "Selector failed", error);
+        for (Connection connection : new ArrayList<Connection>(activeConnections)) {
+            connection.fail(error);
+        }
+        try {
+            reopenSelector();
+        } catch (IOException e) {
+            Log.d(TAG, "Could not reopen the selector", e);
+        }
+        long backoffMillis = SELECT_FAILURE_BACKOFF_MILLIS << Math.min(previousFailures, 16);
+        try {
+            Thread.sleep(Math.min(backoffMillis, MAX_SELECT_FAILURE_BACKOFF_MILLIS));
+        } catch (InterruptedException ignored) {
+            // the selector thread lives as long as the process; nothing interrupts it to stop it
+        }
+    }
+
+    private synchronized void reopenSelector() throws IOException {
+        Selector newSelector = Selector.open();
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+        selector = newSelector;
+        // tasks queued while the old selector was being replaced woke up the old one
+        newSelector.wakeup();
+    }
+
+    private long millisUntilNextDeadline() {
+        long now = System.nanoTime();
+        long next = Long.MAX_VALUE;
+        for (Connection connection : activeConnections) {
+            if (connection.deadline != 0) {
+                next = Math.min(next, connection.deadline - now);
+            }
+        }
+        if (next == Long.MAX_VALUE) {
+            // 0 blocks until woken up
+            return 0;
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(next));
+    }
+
+    private void expireDeadlines() {
+        long now = System.nanoTime();
+        List<Connection> expired = new ArrayList<Connection>();
+        for (Connection connection : activeConnections) {
+            if (connection.deadline != 0 && now - connection.deadline >= 0) {
+                expired.add(connection);
+            }
+        }
+        for (Connection connection : expired) {
+            connection.fail(new SocketTimeoutException(connection.state + " timed out"));
+        }
+    }
+
+
+    private enum State {
+        CONNECTING, CONNECTED, WRITING, READING, DONE
+    }
+
+    /**
+     * One connection to the device, good for one command. Everything except the public methods
+     * runs on the selector thread.
+     */
+    public class Connection implements CommandSession.Connection {
+
+        private final SocketChannel channel;
+        private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(512);
+
+        private SelectionKey key;
+        private State state = State.CONNECTING;
+        // System.nanoTime() by which the current state has to be left, or 0 for none
+        private long deadline;
+        private ByteBuffer frame;
+        private Callback callback;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(connectTimeoutMillis);
+        }
+
+        /**
+         * Sends the command frame and reads the answer. Only one frame can be sent per connection.
+         *
+         * @param frameToSend
+         * @param resultCallback
+         */
+        public void send(String frameToSend, final Callback resultCallback) {
+            final ByteBuffer buffer = ByteBuffer.wrap(frameToSend.getBytes(UTF8));
+            runOnSelectorThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (state == State.DONE) {
+                        resultCallback.onFailure(new IOException("Connection already closed"));
+                        return;
+                    }
+                    if (callback != null) {
+                        resultCallback.onFailure(new IOException("Only one command per connection"));
+                        return;
+                    }
+                    frame = buffer;
+                    callback = resultCallback;
+                    if (state == State.CONNECTED) {
+                        startWriting();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Blocking variant of send().
+         *
+         * @param frameToSend
+         * @return everything the device sent before closing the connection
+         * @throws IOException
+         */
+        @Override
+        public String exchange(String frameToSend) throws IOException {
+            final CountDownLatch done = new CountDownLatch(1);
+            final String[] response = new String[1];
+            final IOException[] error = new IOException[1];
+            send(frameToSend, new Callback() {
+                @Override
+                public void onResponse(String rawResponse) {
+                    response[0] = rawResponse;
+                    done.countDown();
+                }
+
+                @Override
+                public void onFailure(IOException e) {
+                    error[0] = e;
+                    done.countDown();
+                }
+            });
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new IOException("Interrupted while waiting for the device", e);
+            }
+            if (error[0] != null) {
+                throw error[0];
+            }
+            return response[0];
+        }
+
+        /**
+         * Closes the connection; a command in flight fails.
+         */
+        @Override
+        public void close() {
+            runOnSelectorThread(new Runnable() {
+                @Override
+                public void run() {
+                    fail(new IOException("Connection closed"));
+                }
+            });
+        }
+
+        void register(boolean connected) {
+            if (state == State.DONE) {
+                return;
+            }
+            activeConnections.add(this);
+            try {
+                key = channel.register(selector, connected ? 0 : SelectionKey.OP_CONNECT, this);
+                if (connected) {
+                    onConnected();
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        void onReady(SelectionKey readyKey) {
+            try {
+                if (readyKey.isConnectable() && channel.finishConnect()) {
+                    onConnected();
+                } else if (readyKey.isWritable()) {
+                    channel.write(frame);
+                    if (!frame.hasRemaining()) {
+                        state = State.READING;
+                        deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(readTimeoutMillis);
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                } else if (readyKey.isReadable()) {
+                    readBuffer.clear();
+                    int count = channel.read(readBuffer);
+                    if (count == -1) {
+                        // the device closes the connection once it has answered
+                        complete();
+                    } else {
+                        received.write(readBuffer.array(), 0, count);
+                    }
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void onConnected() {
+            state = State.CONNECTED;
+            deadline = 0;
+            key.interestOps(0);
+            if (callback != null) {
+                startWriting();
+            }
+        }
+
+        private void startWriting() {
+            state = State.WRITING;
+            deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(writeTimeoutMillis);
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        private void complete() {
+            Callback resultCallback = finish();
+            if (resultCallback != null) {
+                resultCallback.onResponse(new String(received.toByteArray(), UTF8));
+            }
+        }
+
+        void fail(IOException error) {
+            if (state == State.DONE) {
+                return;
+            }
+            Callback resultCallback = finish();
+            if (resultCallback != null) {
+                resultCallback.onFailure(error);
+            }
+        }
+
+        private Callback finish() {
+            state = State.DONE;
+            deadline = 0;
+            activeConnections.remove(this);
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            Callback resultCallback = callback;
+            callback = null;
+            return resultCallback;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.ciklum.pigabstractionlayer.WifiProvisioning;
+
+import io.particle.android.sdk.devicesetup.SetupProcessException;
+import io.particle.android.sdk.devicesetup.setupsteps.SetupStep;
+import io.particle.android.sdk.devicesetup.setupsteps.SetupStepException;
+
+/**
+ * ObservedSetupStep
+ * Wraps one of the particle SetupSteps so that the library can react once the step has been
+ * fulfilled, without changing the particle step itself. The wrapped step keeps its StepConfig, so
+ * result codes reported by the runner are unchanged.
+ */
+class ObservedSetupStep extends SetupStep {
+
+    interface Listener {
+
+        void onStepFulfilled(SetupStep step);
+    }
+
+    private final SetupStep delegate;
+    private final Listener listener;
+    private boolean notified;
+
+    ObservedSetupStep(SetupStep delegate, Listener listener) {
+        super(delegate.getStepConfig());
+        this.delegate = delegate;
+        this.listener = listener;
+    }
+
+    @Override
+    protected void onRunStep() throws SetupStepException, SetupProcessException {
+        delegate.runStep();
+        if (delegate.isStepFulfilled() && !notified) {
+            notified = true;
+            listener.onStepFulfilled(delegate);
+        }
+    }
+
+    @Override
+    public boolean isStepFulfilled() {
+        return delegate.isStepFulfilled();
+    }
+
+    SetupStep getDelegate() {
+        return delegate;
+    }
+}
@@ -0,0 +1,276 @@
+package com.ciklum.pigabstractionlayer.WifiProvisioning;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import io.particle.android.sdk.devicesetup.SetupProcessException;
+import io.particle.android.sdk.devicesetup.setupsteps.SetupStep;
+import io.particle.android.sdk.devicesetup.setupsteps.SetupStepException;
+
+/**
+ * ParallelStepRunner
+ * Runs setup steps as a dependency graph, in place of the particle SetupStepsRunnerTask, which runs
+ * them one after the other on an AsyncTask executor shared with the host app. A step starts as soon
+ * as all the steps it depends on are fulfilled, so independent steps (e.g. EnsureSoftApNotVisible
+ * and WaitForCloudConnectivityStep) run at the same time.
+ *
+ * Each step is retried on its own until it is fulfilled, up to the given number of attempts; the
+ * backoff between attempts is up to the step itself (RetryingSetupStep). The run fails as soon as
+ * any step gives up, and the other running steps are interrupted.
+ *
+ * Steps run on the library's bounded ProvisioningExecutors.steps() pool. When the run succeeds,
+ * the chain of steps that decided its duration (the critical path) is written to the
+ * ProvisioningTimeline.
+ */
+class ParallelStepRunner {
+
+    /**
+     * Called once, on a step thread, unless the run was cancelled.
+     */
+    interface Listener {
+
+        /**
+         * @param error null if every step was fulfilled; otherwise its failedStep is the step that
+         *              gave up
+         */
+        void onFinished(SetupProcessException error);
+    }
+
+    private static class Node {
+
+        final SetupStep step;
+        final ProvisioningPhase phase;
+        final List<Node> dependencies = new ArrayList<Node>();
+        final List<Node> dependents = new ArrayList<Node>();
+
+        int pendingDependencies;
+        Future<?> future;
+        long startedAt = -1;
+        long finishedAt = -1;
+
+        Node(SetupStep step, ProvisioningPhase phase) {
+            this.step = step;
+            this.phase = phase;
+        }
+    }
+
+    private final List<Node> nodes;
+    private final int maxAttemptsPerStep;
+    private final ProvisioningTimeline timeline;
+
+    private Listener listener;
+    private int remaining;
+    private boolean finished;
+
+    private ParallelStepRunner(Builder builder) {
+        this.nodes = builder.nodes;
+        this.maxAttemptsPerStep = builder.maxAttemptsPerStep;
+        this.timeline = builder.timeline;
+    }
+
+    static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * Starts every step that has no dependencies. Returns straight away.
+     *
+     * @param resultListener
+     */
+    synchronized void start(Listener resultListener) {
+        listener = resultListener;
+        remaining = nodes.size();
+        if (remaining == 0) {
+            finish(null);
+            return;
+        }
+        for (Node node : nodes) {
+            node.pendingDependencies = node.dependencies.size();
+        }
+        for (Node node : nodes) {
+            if (node.pendingDependencies == 0) {
+                submit(node);
+            }
+        }
+    }
+
+    /**
+     * Interrupts the running steps; the listener is not called.
+     */
+    synchronized void cancel() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        interruptRunningSteps();
+    }
+
+    private void submit(final Node node) {
+        node.startedAt = timeline.elapsedMillis();
+        node.future = ProvisioningExecutors.steps().submit(new Runnable() {
+            @Override
+            public void run() {
+                runStep(node);
+            }
+        });
+    }
+
+    private void runStep(Node node) {
+        int attempts = 0;
+        while (!node.step.isStepFulfilled()) {
+            if (isFinished() || Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            attempts++;
+            try {
+                node.step.runStep();
+            } catch (SetupStepException e) {
+                ProvisioningTrace.record(timeline, node.phase, ProvisioningTrace.STEP_ATTEMPT_FAILED, attempts);
+                if (attempts >= maxAttemptsPerStep) {
+                    onStepFailed(new SetupProcessException("Giving up on " + node.phase + " after "
+                            + attempts + " attempts", node.step));
+                    return;
+                }
+            } catch (SetupProcessException e) {
+                onStepFailed(e);
+                return;
+            } catch (RuntimeException e) {
+                onStepFailed(new SetupProcessException(node.phase + " failed: " + e.getMessage(),
+                        node.step));
+                return;
+            }
+        }
+        onStepFulfilled(node);
+    }
+
+    private synchronized void onStepFulfilled(Node node) {
+        if (finished) {
+            return;
+        }
+        node.finishedAt = timeline.elapsedMillis();
+        ProvisioningTrace.record(timeline, node.phase, ProvisioningTrace.STEP_FULFILLED,
+                node.finishedAt - node.startedAt);
+        remaining--;
+        for (Node dependent : node.dependents) {
+            dependent.pendingDependencies--;
+            if (dependent.pendingDependencies == 0) {
+                submit(dependent);
+            }
+        }
+        if (remaining == 0) {
+            timeline.setCriticalPath(criticalPath());
+            finish(null);
+        }
+    }
+
+    private synchronized void onStepFailed(SetupProcessException error) {
+        if (finished) {
+            return;
+        }
+        interruptRunningSteps();
+        finish(error);
+    }
+
+    private void finish(SetupProcessException error) {
+        finished = true;
+        listener.onFinished(error);
+    }
+
+    private synchronized boolean isFinished() {
+        return finished;
+    }
+
+    private void interruptRunningSteps() {
+        for (Node node : nodes) {
+            if (node.future != null) {
+                node.future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Walks back from the step that finished last, each time to the dependency that finished last.
+     */
+    private List<ProvisioningTimeline.CriticalStep> criticalPath() {
+        Node node = null;
+        for (Node candidate : nodes) {
+            if (node == null || candidate.finishedAt > node.finishedAt) {
+                node = candidate;
+            }
+        }
+        List<ProvisioningTimeline.CriticalStep> path = new ArrayList<ProvisioningTimeline.CriticalStep>();
+        while (node != null) {
+            path.add(new ProvisioningTimeline.CriticalStep(node.phase, node.startedAt,
+                    node.finishedAt - node.startedAt));
+            Node latest = null;
+            for (Node dependency : node.dependencies) {
+                if (latest == null || dependency.finishedAt > latest.finishedAt) {
+                    latest = dependency;
+                }
+            }
+            node = latest;
+        }
+        Collections.reverse(path);
+        return path;
+    }
+
+
+    static class Builder {
+
+        private final List<Node> nodes = new ArrayList<Node>();
+        private final Map<SetupStep, Node> nodesBySteps = new IdentityHashMap<SetupStep, Node>();
+        private int maxAttemptsPerStep = 1;
+        private ProvisioningTimeline timeline;
+
+        private Builder() {
+        }
+
+        /**
+         * Adds a step that starts once all the given steps are fulfilled.
+         *
+         * @param step
+         * @param phase
+         * @param dependsOn steps added before this one
+         * @return Builder
+         */
+        Builder addStep(SetupStep step, ProvisioningPhase phase, List<SetupStep> dependsOn) {
+            Node node = new Node(step, phase);
+            for (SetupStep dependency : dependsOn) {
+                Node dependencyNode = nodesBySteps.get(dependency);
+                if (dependencyNode == null) {
+                    throw new IllegalArgumentException(phase + " depends on a step that was not added");
+                }
+                node.dependencies.add(dependencyNode);
+                dependencyNode.dependents.add(node);
+            }
+            nodes.add(node);
+            nodesBySteps.put(step, node);
+            return this;
+        }
+
+        /**
+         * @param maxAttempts how many times each step is run before the whole run fails
+         * @return Builder
+         */
+        Builder setMaxAttemptsPerStep(int maxAttempts) {
+            this.maxAttemptsPerStep = Math.max(1, maxAttempts);
+            return this;
+        }
+
+        Builder setTimeline(ProvisioningTimeline timeline) {
+            this.timeline = timeline;
+            return this;
+        }
+
+        ParallelStepRunner build() {
+            if (timeline == null) {
+                throw new IllegalStateException("A timeline is required");
+            }
+            return new ParallelStepRunner(this);
+        }
+    }
+}
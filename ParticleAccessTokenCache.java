@@ -0,0 +1,166 @@
+package com.ciklum.pigabstractionlayer.WifiProvisioning;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.ciklum.pigabstractionlayer.PiggyBank;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ParticleAccessTokenCache
+ * Keeps the customer access tokens returned by the two legged authentication on disk, keyed by the
+ * customer's email. A provisioning session asks the cache first and only goes to the Particle Cloud
+ * when there is no usable token. Tokens that are getting close to their expiry are handed back
+ * immediately and refreshed on a background thread, so the next session finds a fresh one.
+ */
+class ParticleAccessTokenCache {
+
+    private static final String TAG = "ParticleAccessTokenCache";
+    private static final String PREFS_NAME = "com.ciklum.pigabstractionlayer.particle_tokens";
+
+    private static final String KEY_TOKEN = "token";
+    private static final String KEY_EXPIRES_AT = "expires_at";
+
+    // A token is never handed out if it expires within this margin - a provisioning session can
+    // take several minutes and the token has to survive until the claim check at the end.
+    private static final long MIN_REMAINING_VALIDITY_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+    // Once less than this is left on a token, it is still used but refreshed in the background.
+    private static final long REFRESH_AHEAD_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+    private static ParticleAccessTokenCache instance;
+
+    /**
+     * Fetches a brand new token from the Particle Cloud for the given email. Implemented by
+     * ParticleCloudAuthentication.
+     */
+    interface TokenFetcher {
+
+        CachedToken fetch(String userEmail) throws Exception;
+    }
+
+    /**
+     * An access token and the absolute time (in ms since epoch) it expires at.
+     */
+    static class CachedToken {
+
+        final String accessToken;
+        final long expiresAtMillis;
+
+        CachedToken(String accessToken, long expiresAtMillis) {
+            this.accessToken = accessToken;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+
+        boolean isUsable(long now) {
+            return expiresAtMillis - now > MIN_REMAINING_VALIDITY_MILLIS;
+        }
+
+        boolean needsRefresh(long now) {
+            return expiresAtMillis - now < REFRESH_AHEAD_MILLIS;
+        }
+    }
+
+    private final SharedPreferences prefs;
+    private final Set<String> refreshesInFlight = Collections.synchronizedSet(new HashSet<String>());
+
+    private ParticleAccessTokenCache(Context context) {
+        prefs = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    static synchronized ParticleAccessTokenCache get(Context context) {
+        if (instance == null) {
+            instance = new ParticleAccessTokenCache(context);
+        }
+        return instance;
+    }
+
+    /**
+     * Returns a usable token for the email. A cached token is returned straight away (and refreshed
+     * in the background if it is about to expire); otherwise the fetcher is called on the calling
+     * thread and its result is stored.
+     *
+     * @param userEmail
+     * @param fetcher
+     * @return CachedToken
+     */
+    CachedToken getToken(String userEmail, TokenFetcher fetcher) throws Exception {
+        long now = System.currentTimeMillis();
+        CachedToken cached = read(userEmail);
+
+        if (cached != null && cached.isUsable(now)) {
+            if (cached.needsRefresh(now)) {
+                refreshInBackground(userEmail, fetcher);
+            }
+            if (PiggyBank.DEBUG) {
+                Log.d(TAG, "Using cached access token, expires at " + cached.expiresAtMillis);
+            }
+            return cached;
+        }
+
+        CachedToken fresh = fetcher.fetch(userEmail);
+        write(userEmail, fresh);
+        return fresh;
+    }
+
+    /**
+     * Drops the cached token for the email, e.g. once the cloud has rejected it.
+     *
+     * @param userEmail
+     */
+    void invalidate(String userEmail) {
+        prefs.edit().remove(userEmail).apply();
+    }
+
+    private void refreshInBackground(final String userEmail, final TokenFetcher fetcher) {
+        if (!refreshesInFlight.add(userEmail)) {
+            return;
+        }
+        ProvisioningExecutors.background().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(userEmail, fetcher.fetch(userEmail));
+                } catch (Exception e) {
+                    // The cached token is still valid; the next session will try again.
+                    Log.d(TAG, "Background refresh of the access token failed", e);
+                } finally {
+                    refreshesInFlight.remove(userEmail);
+                }
+            }
+        });
+    }
+
+    private CachedToken read(String userEmail) {
+        String stored = prefs.getString(userEmail, null);
+        if (stored == null) {
+            return null;
+        }
+        try {
+            JSONObject json = new JSONObject(stored);
+            return new CachedToken(json.getString(KEY_TOKEN), json.getLong(KEY_EXPIRES_AT));
+        } catch (JSONException e) {
+            invalidate(userEmail);
+            return null;
+        }
+    }
+
+    private void write(String userEmail, CachedToken token) {
+        try {
+            JSONObject json = new JSONObject();
+            json.put(KEY_TOKEN, token.accessToken);
+            json.put(KEY_EXPIRES_AT, token.expiresAtMillis);
+            prefs.edit().putString(userEmail, json.toString()).apply();
+        } catch (JSONException e) {
+            Log.d(TAG, "Could not store the access token", e);
+        }
+    }
+}
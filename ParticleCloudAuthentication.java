@@ -1,9 +1,10 @@
 package com.ciklum.pigabstractionlayer.WifiProvisioning;
 
 import android.annotation.SuppressLint;
+import android.content.Context;
+import android.net.ConnectivityManager;
 import android.util.Log;
 
-import com.ciklum.pigabstractionlayer.BasicAuthInterceptor;
 import com.ciklum.pigabstractionlayer.HttpUtil;
 import com.ciklum.pigabstractionlayer.PiggyBank;
 import com.ciklum.pigabstractionlayer.PiggyBankException;
@@ -14,17 +15,16 @@ import org.json.JSONObject;
 import java.io.IOException;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
 
 import io.particle.android.sdk.cloud.ParticleCloudException;
 import io.particle.android.sdk.cloud.ParticleCloudSDK;
-import io.particle.android.sdk.cloud.Responses;
 import okhttp3.Request;
 import okhttp3.Response;
 
 
 public class ParticleCloudAuthentication {
 
-    private final static String BASE_URL = "https://api.particle.io";
     private final static String TAG = "ParticleCloudAuthentication";
 
     private static final String GRANT_TYPE = "grant_type";
@@ -33,7 +33,15 @@ public class ParticleCloudAuthentication {
     private static final String CUSTOMER = "customer=";
     private static final String NO_PASSWORD = "no_password";
     private static final String ACCESS_TOKEN = "access_token";
-    private static final String EMAIL = "email"; 
+    private static final String EMAIL = "email";
+    private static final String EXPIRES_IN = "expires_in";
+    private static final String CLAIM_CODE = "claim_code";
+    private static final String AUTHORIZATION = "Authorization";
+    private static final String BEARER = "Bearer ";
+    private static final int HTTP_UNAUTHORIZED = 401;
+    private static final int HTTP_FORBIDDEN = 403;
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final String RETRY_AFTER = "Retry-After";
 
 
     // These are the oAuth credentials that allow for us to grab an access token to the particle
@@ -45,30 +53,65 @@ public class ParticleCloudAuthentication {
     private static String productSlug = "oink-v100";
 
 
-    //The oAuth tokens are included in the header of calls to Particle endpoitns.
-    private okhttp3.OkHttpClient client = new okhttp3.OkHttpClient.Builder()
-            .addInterceptor(new BasicAuthInterceptor(oAuthId, oAuthSecret))
-            .build();
-
+    //Particle Cloud Endpoints (relative to the ParticleCloudTransport base URL):
+    final static String CREATE_USER_ENDPOINT = "/v1/products/"+ productSlug + "/customers";
+    private final static String ACCESS_TOKEN_ENDPOINT = "/oauth/token";
+    private final static String CLAIM_CODE_ENDPOINT = "/v1/device_claims";
 
-    //Particle Cloud Endpoints:
-    private final static String CREATE_USER_ENDPOINT = BASE_URL + "/v1/products/"+ productSlug + "/customers";
-    private final static String ACCESS_TOKEN_ENDPOINT = BASE_URL + "/oauth/token";
 
+    //Used for the access token expiry when the cloud does not return an expires_in value:
+    private static final long DEFAULT_TOKEN_LIFETIME_MILLIS = TimeUnit.DAYS.toMillis(100);
+    private static final long WARM_UP_CHECK_MILLIS = TimeUnit.SECONDS.toMillis(2);
+    private static final long WARM_UP_MAX_WAIT_MILLIS = TimeUnit.MINUTES.toMillis(2);
 
-    //Expiry for the access token is set to 100 days after creation:
-    private long now = new Date().getTime();
-    private long hundredDaysInMs = now + (24*60*60*100);
-    private Date hundredDaysFromNow = new Date(hundredDaysInMs);
+    private static final ParticleAccessTokenCache.TokenFetcher TOKEN_FETCHER =
+            new ParticleAccessTokenCache.TokenFetcher() {
+                @Override
+                public ParticleAccessTokenCache.CachedToken fetch(String email) throws Exception {
+                    return getAccessTokenBlocking(email);
+                }
+            };
 
     private WifiProvisionManager wifiProvisionManager;
+    private ParticleAccessTokenCache tokenCache;
+    private String userEmail;
+    // A rejected token is only replaced once per session.
+    private boolean tokenRefreshed;
+
+    /**
+     * The cloud refused the access token (401 or 403).
+     */
+    static class AccessTokenRejectedException extends IOException {
+
+        AccessTokenRejectedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The cloud is throttling requests (429). Carries how long its Retry-After header asked the
+     * client to wait, so a retry is not sent before then.
+     */
+    static class ThrottledException extends IOException {
+
+        // -1 when the response had no usable Retry-After header
+        final long retryAfterMillis;
+
+        ThrottledException(String message, long retryAfterMillis) {
+            super(message);
+            this.retryAfterMillis = retryAfterMillis;
+        }
+    }
 
-    public ParticleCloudAuthentication(WifiProvisionManager wifiProvision){
+    public ParticleCloudAuthentication(WifiProvisionManager wifiProvision, Context context){
         wifiProvisionManager = wifiProvision;
+        tokenCache = ParticleAccessTokenCache.get(context);
     }
 
     /**
-     * Logs into the particle cloud using the user's access token.
+     * Logs into the particle cloud using the user's access token. The token comes from the
+     * ParticleAccessTokenCache when there is a valid one for this email, and from the cloud
+     * otherwise.
      *
      *  @param userEmail
      *
@@ -78,9 +121,17 @@ public class ParticleCloudAuthentication {
         if(PiggyBank.DEBUG) {
             Log.d("ParticleCloudLogin", "trying to log in");
         }
+        this.userEmail = userEmail;
         try {
             wifiProvisionManager.mParticleCloud = ParticleCloudSDK.getCloud();
-            getAccessTokenBlocking(userEmail);
+            ParticleAccessTokenCache.CachedToken token = tokenCache.getToken(userEmail, TOKEN_FETCHER);
+            wifiProvisionManager.mParticleAccessToken = token.accessToken;
+            wifiProvisionManager.mParticleCloud.setAccessToken(token.accessToken,
+                    new Date(token.expiresAtMillis));
+            if(PiggyBank.DEBUG) {
+                Log.d(TAG, "The particle access token is: " + wifiProvisionManager.mParticleAccessToken);
+                Log.d(TAG, "Is loggedIn:" + wifiProvisionManager.mParticleCloud.isLoggedIn());
+            }
         } catch (Exception e) {
             Log.d(TAG, "error in logging in", e);
             throw new PiggyBankException("Could not authenticate the user. " +
@@ -94,91 +145,271 @@ public class ParticleCloudAuthentication {
      * If the user does not exist on the particle cloud, it creates an account for them using
      * two legged authentication (createUserAndGetAccessTokenBlocking)
      *
+     * This does not touch the WifiProvisionManager, so that the token cache can also call it
+     * from its background refresh, and the benchmarks can call it without a session.
+     *
      * @param userEmail
+     * @return the token together with its expiry
      *
      */
-    @SuppressLint("LongLogTag")
-    private void getAccessTokenBlocking(final String userEmail){
+    static ParticleAccessTokenCache.CachedToken getAccessTokenBlocking(final String userEmail)
+            throws IOException, JSONException, PiggyBankException {
 
         HashMap<String, String> formValues = new HashMap<String, String>();
         formValues.put(GRANT_TYPE, CLIENT_CREDENTIALS);
         formValues.put(SCOPE, CUSTOMER + userEmail);
 
-        Request request = HttpUtil.buildPostRequest(ACCESS_TOKEN_ENDPOINT, formValues);
-        Response response = null;
+        Request request = HttpUtil.buildPostRequest(
+                ParticleCloudTransport.get().url(ACCESS_TOKEN_ENDPOINT), formValues);
+        Response response = oAuthClient().newCall(request).execute();
         try {
-            response = client.newCall(request).execute();
             if(response.isSuccessful()){
-                String responseString = response.body().string();
-                JSONObject currentSettings = new JSONObject(responseString);
-                wifiProvisionManager.mParticleAccessToken = currentSettings.getString(ACCESS_TOKEN);
-                wifiProvisionManager.mParticleCloud.setAccessToken(wifiProvisionManager.mParticleAccessToken, hundredDaysFromNow);
-                if(PiggyBank.DEBUG) {
-                    Log.d(TAG, "The particle access token is: " + wifiProvisionManager.mParticleAccessToken);
-                    Log.d(TAG, "Is loggedIn:" + wifiProvisionManager.mParticleCloud.isLoggedIn());
-                }
-            } else{
-                createUserAndGetAccessTokenBlocking(userEmail);
+                return parseToken(response.body().string());
+            }
+            // A throttled or failing cloud says nothing about whether the customer exists; creating
+            // one would only add load.
+            if(response.code() == HTTP_TOO_MANY_REQUESTS){
+                throw throttled("Access token request", response);
+            }
+            if(response.code() >= 500){
+                throw new IOException("Access token request failed with HTTP " + response.code());
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }catch (JSONException e) {
-            e.printStackTrace();
+        } finally {
+            response.close();
         }
-
-
-
+        return createUserAndGetAccessTokenBlocking(userEmail);
     }
 
     /**
      * Gets an access token for the user email by creating an new account for them without a password
      *
      * @param userEmail
+     * @return the token together with its expiry
      *
      */
 
-    private void createUserAndGetAccessTokenBlocking(String userEmail) {
+    private static ParticleAccessTokenCache.CachedToken createUserAndGetAccessTokenBlocking(String userEmail)
+            throws IOException, JSONException, PiggyBankException {
 
         HashMap<String, String> formValues = new HashMap<String, String>();
         formValues.put(NO_PASSWORD, "true");
         formValues.put(EMAIL, userEmail);
 
-        Request request = HttpUtil.buildPostRequest(CREATE_USER_ENDPOINT, formValues);
-        Response response = null;
+        Request request = HttpUtil.buildPostRequest(
+                ParticleCloudTransport.get().url(CREATE_USER_ENDPOINT), formValues);
+        Response response = oAuthClient().newCall(request).execute();
         try {
-            response = client.newCall(request).execute();
             if(response.isSuccessful()){
-                String responseString = response.body().string();
-                JSONObject currentSettings = new JSONObject(responseString);
-                wifiProvisionManager.mParticleAccessToken = currentSettings.getString(ACCESS_TOKEN);
-                wifiProvisionManager.mParticleCloud.setAccessToken(wifiProvisionManager.mParticleAccessToken, hundredDaysFromNow);
-            } else{
-                wifiProvisionManager.mCallback.onFailure(new PiggyBankException("Could not complete two legged authentication"));
+                return parseToken(response.body().string());
+            }
+        } finally {
+            response.close();
+        }
+        throw new PiggyBankException("Could not complete two legged authentication");
+    }
+
+    /**
+     * Generates a new claim code for the customer the access token belongs to. Goes through the
+     * shared ParticleCloudTransport rather than the Particle SDK, so it benefits from the pooled
+     * connection to the cloud.
+     *
+     * @param accessToken
+     * @return claim code
+     */
+    static String generateClaimCodeBlocking(String accessToken) throws IOException {
+        Request request = HttpUtil.buildPostRequest(
+                ParticleCloudTransport.get().url(CLAIM_CODE_ENDPOINT), new HashMap<String, String>())
+                .newBuilder()
+                .header(AUTHORIZATION, BEARER + accessToken)
+                .build();
+        Response response = ParticleCloudTransport.get().client().newCall(request).execute();
+        try {
+            if (response.code() == HTTP_UNAUTHORIZED || response.code() == HTTP_FORBIDDEN) {
+                throw new AccessTokenRejectedException("Claim code request failed with HTTP " + response.code());
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+            if (response.code() == HTTP_TOO_MANY_REQUESTS) {
+                throw throttled("Claim code request", response);
+            }
+            if (!response.isSuccessful()) {
+                throw new IOException("Claim code request failed with HTTP " + response.code());
+            }
+            return new JSONObject(response.body().string()).getString(CLAIM_CODE);
         } catch (JSONException e) {
-            e.printStackTrace();
+            throw new IOException("Could not parse the claim code response", e);
+        } finally {
+            response.close();
+        }
+    }
+
+    private static ThrottledException throttled(String request, Response response) {
+        return new ThrottledException(request + " failed with HTTP " + response.code(),
+                parseRetryAfterMillis(response.header(RETRY_AFTER)));
+    }
+
+    /**
+     * @param retryAfter value of a Retry-After header, in delay-seconds; the HTTP-date form is not
+     *                   sent by the Particle cloud
+     * @return the delay in milliseconds, or -1 if there is none
+     */
+    static long parseRetryAfterMillis(String retryAfter) {
+        if (retryAfter == null) {
+            return -1;
+        }
+        try {
+            long seconds = Long.parseLong(retryAfter.trim());
+            return seconds < 0 ? -1 : TimeUnit.SECONDS.toMillis(seconds);
+        } catch (NumberFormatException e) {
+            return -1;
         }
+    }
+
+    /**
+     * How long the cloud asked to wait before the failed request is sent again.
+     *
+     * @param error what the request failed with, possibly wrapped
+     * @return milliseconds, or -1 if the cloud did not say
+     */
+    static long getRetryAfterMillis(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ThrottledException) {
+                return ((ThrottledException) cause).retryAfterMillis;
+            }
+        }
+        return -1;
+    }
+
+    //The oAuth tokens are included in the header of calls to Particle endpoitns.
+    private static okhttp3.OkHttpClient oAuthClient() {
+        return ParticleCloudTransport.get().clientWithBasicAuth(oAuthId, oAuthSecret);
+    }
 
+    /**
+     * Reads the access token and its lifetime (expires_in, in seconds) out of a token response.
+     *
+     * @param responseString
+     * @return CachedToken
+     */
+    static ParticleAccessTokenCache.CachedToken parseToken(String responseString)
+            throws JSONException {
+        JSONObject currentSettings = new JSONObject(responseString);
+        long lifetimeMillis = currentSettings.has(EXPIRES_IN)
+                ? TimeUnit.SECONDS.toMillis(currentSettings.getLong(EXPIRES_IN))
+                : DEFAULT_TOKEN_LIFETIME_MILLIS;
+        return new ParticleAccessTokenCache.CachedToken(currentSettings.getString(ACCESS_TOKEN),
+                System.currentTimeMillis() + lifetimeMillis);
     }
 
 
+    /**
+     * Tops the ClaimCodePool up for the customer once the phone can reach the cloud, so that the
+     * next session takes a pooled code instead of generating one just before it joins the SoftAP.
+     * The phone is checked every WARM_UP_CHECK_MILLIS, for up to WARM_UP_MAX_WAIT_MILLIS, e.g. while
+     * it rejoins its own network after a session. Returns straight away.
+     *
+     * @param context
+     * @param userEmail the customer's email
+     */
+    static void warmUpClaimCodes(Context context, String userEmail) {
+        if (userEmail == null) {
+            return;
+        }
+        Context appContext = context.getApplicationContext();
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) appContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        scheduleWarmUp(ParticleAccessTokenCache.get(appContext), connectivityManager, userEmail,
+                System.currentTimeMillis() + WARM_UP_MAX_WAIT_MILLIS, 0);
+    }
+
+    private static void scheduleWarmUp(final ParticleAccessTokenCache tokenCache,
+                                       final ConnectivityManager connectivityManager,
+                                       final String userEmail, final long giveUpAtMillis,
+                                       long delayMillis) {
+        ProvisioningExecutors.timer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!ParticleCloudTransport.canReachCloud(connectivityManager)) {
+                    if (System.currentTimeMillis() < giveUpAtMillis) {
+                        scheduleWarmUp(tokenCache, connectivityManager, userEmail, giveUpAtMillis,
+                                WARM_UP_CHECK_MILLIS);
+                    }
+                    return;
+                }
+                ProvisioningExecutors.background().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            ClaimCodePool.get().refill(
+                                    tokenCache.getToken(userEmail, TOKEN_FETCHER).accessToken);
+                        } catch (Exception e) {
+                            Log.d(TAG, "Could not warm up the claim code pool", e);
+                        }
+                    }
+                });
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
     /**
      * Generates a claim code to send to the device in the DiscoverProcessWorker process.
+     * The code is taken from the ClaimCodePool when it has a fresh one for this customer, which
+     * also starts topping the pool up for the next session.
      *
-     * @throws ParticleCloudException
+     * @throws IOException if no claim code could be taken; the caller decides whether to retry
      *
      */
-    @SuppressLint("LongLogTag")
-    public void setClaimToken(){
+    public void setClaimToken() throws IOException {
+        try {
+            wifiProvisionManager.mClaimCode = ClaimCodePool.get().take(wifiProvisionManager.mParticleAccessToken);
+        } catch (AccessTokenRejectedException e) {
+            if (!refreshRejectedToken()) {
+                throw e;
+            }
+            wifiProvisionManager.mClaimCode = ClaimCodePool.get().take(wifiProvisionManager.mParticleAccessToken);
+        }
+    }
+
+    /**
+     * Drops the cached access token the cloud has rejected and logs in again with a new one, the
+     * first time it is called for the session.
+     *
+     * @return true if a new token is in place
+     */
+    synchronized boolean refreshRejectedToken() {
+        if (tokenRefreshed || userEmail == null) {
+            return false;
+        }
+        tokenRefreshed = true;
+        if(PiggyBank.DEBUG) {
+            Log.d(TAG, "The cloud rejected the access token, fetching a new one");
+        }
+        tokenCache.invalidate(userEmail);
         try {
-            Responses.ClaimCodeResponse response = wifiProvisionManager.mParticleCloud.generateClaimCode();
-            wifiProvisionManager.mClaimCode = response.claimCode;
-            Log.d(TAG, "Claim Code: " + wifiProvisionManager.mClaimCode);
-        } catch (ParticleCloudException e) {
-            e.printStackTrace();
+            particleCloudLogin(userEmail);
+            return true;
+        } catch (PiggyBankException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param error
+     * @return whether the error, or one of its causes, is the cloud refusing the access token
+     */
+    static boolean isTokenRejection(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof AccessTokenRejectedException) {
+                return true;
+            }
+            if (cause instanceof ParticleCloudException) {
+                ParticleCloudException.ResponseErrorData data =
+                        ((ParticleCloudException) cause).getResponseData();
+                if (data != null && (data.getHttpStatusCode() == HTTP_UNAUTHORIZED
+                        || data.getHttpStatusCode() == HTTP_FORBIDDEN)) {
+                    return true;
+                }
+            }
         }
+        return false;
     }
 
 
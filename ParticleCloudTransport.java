@@ -0,0 +1,376 @@
+package com.ciklum.pigabstractionlayer.WifiProvisioning;
+
+import android.annotation.TargetApi;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.os.Build;
+import android.util.Log;
+
+import com.ciklum.pigabstractionlayer.BasicAuthInterceptor;
+import com.ciklum.pigabstractionlayer.PiggyBank;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.X509TrustManager;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dns;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * ParticleCloudTransport
+ * The single HTTP stack used for the library's own calls to the Particle Cloud (two legged
+ * authentication, customer creation and claim code generation). Every provisioning session used to
+ * build its own OkHttpClient, which threw away pooled connections, DNS results and TLS sessions;
+ * this keeps one client for the whole process instead.
+ *
+ * Clients that need extra interceptors (e.g. the oAuth client credentials) are derived from the
+ * shared client with newBuilder(), so they share its connection pool and dispatcher.
+ *
+ * The base URL and TLS configuration can be replaced with configure(), which lets the transport be
+ * pointed at a local HTTPS stand-in server.
+ *
+ * With a CloudNetworkSelector set, every new connection (and its DNS lookup) goes over the network
+ * the selector picks at that moment, e.g. mobile data while the phone is joined to a SoftAP. When
+ * the selected network changes, the idle pooled connections, which are bound to the previous one,
+ * are evicted before the next call.
+ */
+public class ParticleCloudTransport {
+
+    private static final String TAG = "ParticleCloudTransport";
+
+    public static final String DEFAULT_BASE_URL = "https://api.particle.io";
+
+    private static final int MAX_IDLE_CONNECTIONS = 4;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+    private static final long CONNECT_TIMEOUT_SECONDS = 10;
+    private static final long READ_TIMEOUT_SECONDS = 20;
+
+    private static ParticleCloudTransport instance;
+    private static volatile CloudNetworkSelector networkSelector;
+
+    private final String baseUrl;
+    private final OkHttpClient client;
+    private final LatencyStats latencyStats = new LatencyStats();
+    private final Map<String, OkHttpClient> basicAuthClients = new HashMap<String, OkHttpClient>();
+    // The network the pooled connections were opened on; null for the default one.
+    private Network pooledNetwork;
+
+    public static synchronized ParticleCloudTransport get() {
+        if (instance == null) {
+            instance = new ParticleCloudTransport(DEFAULT_BASE_URL, null, null);
+        }
+        return instance;
+    }
+
+    /**
+     * Replaces the process-wide transport, e.g. to talk to a local HTTPS stand-in server. Pass null
+     * for the socket factory and trust manager to use the platform defaults.
+     *
+     * @param baseUrl
+     * @param sslSocketFactory
+     * @param trustManager
+     */
+    public static synchronized void configure(String baseUrl, SSLSocketFactory sslSocketFactory,
+                                              X509TrustManager trustManager) {
+        instance = new ParticleCloudTransport(baseUrl, sslSocketFactory, trustManager);
+    }
+
+    /**
+     * Sends new cloud connections over the network the selector picks. Pass null to use the
+     * system's default network again. Applies to every client of the transport.
+     *
+     * @param selector
+     */
+    public static void setNetworkSelector(CloudNetworkSelector selector) {
+        networkSelector = selector;
+    }
+
+    /**
+     * @return the network new cloud connections currently go over, or null for the default one
+     */
+    static Network selectedNetwork() {
+        CloudNetworkSelector selector = networkSelector;
+        if (selector == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return null;
+        }
+        return selector.selectNetwork();
+    }
+
+    /**
+     * @param connectivityManager
+     * @return whether new connections to the cloud can currently get through
+     */
+    static boolean canReachCloud(ConnectivityManager connectivityManager) {
+        if (connectivityManager == null || selectedNetwork() != null) {
+            return true;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            Network network = connectivityManager.getActiveNetwork();
+            NetworkCapabilities capabilities = network == null
+                    ? null : connectivityManager.getNetworkCapabilities(network);
+            // validated: Android has reached the internet over it, which the SoftAP never is
+            return capabilities != null
+                    && capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED);
+        }
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        return networkInfo != null && networkInfo.isConnected();
+    }
+
+    private ParticleCloudTransport(String baseUrl, SSLSocketFactory sslSocketFactory,
+                                   X509TrustManager trustManager) {
+        this.baseUrl = baseUrl;
+        OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .connectTimeout(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .readTimeout(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .retryOnConnectionFailure(true)
+                .socketFactory(new SelectedNetworkSocketFactory())
+                .dns(new SelectedNetworkDns())
+                .addInterceptor(new NetworkChangeInterceptor())
+                .addInterceptor(new LatencyInterceptor(latencyStats));
+        if (sslSocketFactory != null && trustManager != null) {
+            // One socket factory for the lifetime of the client keeps its TLS session cache, so
+            // reconnects resume the previous session instead of doing a full handshake.
+            builder.sslSocketFactory(sslSocketFactory, trustManager);
+        }
+        client = builder.build();
+    }
+
+    public String url(String path) {
+        return baseUrl + path;
+    }
+
+    public OkHttpClient client() {
+        return client;
+    }
+
+    /**
+     * Returns a client that adds basic authentication with the given oAuth client credentials. It
+     * shares the connection pool of the process-wide client.
+     *
+     * @param oAuthId
+     * @param oAuthSecret
+     * @return OkHttpClient
+     */
+    public synchronized OkHttpClient clientWithBasicAuth(String oAuthId, String oAuthSecret) {
+        String key = oAuthId + ":" + oAuthSecret;
+        OkHttpClient authClient = basicAuthClients.get(key);
+        if (authClient == null) {
+            authClient = client.newBuilder()
+                    .addInterceptor(new BasicAuthInterceptor(oAuthId, oAuthSecret))
+                    .build();
+            basicAuthClients.put(key, authClient);
+        }
+        return authClient;
+    }
+
+    public LatencyStats getLatencyStats() {
+        return latencyStats;
+    }
+
+    /**
+     * Opens (or keeps alive) a connection to the cloud in the background, so that the first real
+     * request of a session does not have to pay for DNS, TCP and the TLS handshake.
+     */
+    public void prewarm() {
+        Request request = new Request.Builder().url(url("/")).head().build();
+        client.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                if (PiggyBank.DEBUG) {
+                    Log.d(TAG, "Pre-connect to " + baseUrl + " failed", e);
+                }
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                response.close();
+            }
+        });
+    }
+
+
+    /**
+     * Per-endpoint request latency, recorded for every call that goes through the transport.
+     */
+    public static class LatencyStats {
+
+        public static class Entry {
+            public long count;
+            public long failures;
+            public long totalMillis;
+            public long maxMillis;
+            public long lastMillis;
+
+            public long averageMillis() {
+                return count == 0 ? 0 : totalMillis / count;
+            }
+        }
+
+        private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+        synchronized void record(String endpoint, long millis, boolean failed) {
+            Entry entry = entries.get(endpoint);
+            if (entry == null) {
+                entry = new Entry();
+                entries.put(endpoint, entry);
+            }
+            entry.count++;
+            if (failed) {
+                entry.failures++;
+            }
+            entry.totalMillis += millis;
+            entry.lastMillis = millis;
+            entry.maxMillis = Math.max(entry.maxMillis, millis);
+        }
+
+        public synchronized Map<String, Entry> snapshot() {
+            Map<String, Entry> copy = new HashMap<String, Entry>();
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = new Entry();
+                entry.count = e.getValue().count;
+                entry.failures = e.getValue().failures;
+                entry.totalMillis = e.getValue().totalMillis;
+                entry.maxMillis = e.getValue().maxMillis;
+                entry.lastMillis = e.getValue().lastMillis;
+                copy.put(e.getKey(), entry);
+            }
+            return copy;
+        }
+    }
+
+    /**
+     * Creates sockets bound to the selected network, or plain sockets without a selection.
+     * OkHttp only uses createSocket(); the others are there for completeness.
+     */
+    private static class SelectedNetworkSocketFactory extends SocketFactory {
+
+        private SocketFactory delegate() {
+            Network network = selectedNetwork();
+            return network == null ? SocketFactory.getDefault() : networkSocketFactory(network);
+        }
+
+        @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+        private static SocketFactory networkSocketFactory(Network network) {
+            return network.getSocketFactory();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return delegate().createSocket();
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return delegate().createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+                throws IOException {
+            return delegate().createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return delegate().createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+                                   int localPort) throws IOException {
+            return delegate().createSocket(address, port, localAddress, localPort);
+        }
+    }
+
+    /**
+     * Resolves host names on the selected network; the default network's DNS server may not be
+     * reachable from it (a SoftAP has none).
+     */
+    private static class SelectedNetworkDns implements Dns {
+
+        @Override
+        public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+            Network network = selectedNetwork();
+            if (network == null) {
+                return Dns.SYSTEM.lookup(hostname);
+            }
+            return Arrays.asList(lookupOn(network, hostname));
+        }
+
+        @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+        private static InetAddress[] lookupOn(Network network, String hostname)
+                throws UnknownHostException {
+            return network.getAllByName(hostname);
+        }
+    }
+
+    /**
+     * Evicts the idle pooled connections when the selected network has changed since the last
+     * call; they would otherwise be reused on a network that may be gone.
+     */
+    private class NetworkChangeInterceptor implements Interceptor {
+
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            Network network = selectedNetwork();
+            boolean changed;
+            synchronized (ParticleCloudTransport.this) {
+                changed = network == null ? pooledNetwork != null : !network.equals(pooledNetwork);
+                pooledNetwork = network;
+            }
+            if (changed) {
+                if (PiggyBank.DEBUG) {
+                    Log.d(TAG, "Cloud network changed to " + network + ", evicting pooled connections");
+                }
+                client.connectionPool().evictAll();
+            }
+            return chain.proceed(chain.request());
+        }
+    }
+
+    private static class LatencyInterceptor implements Interceptor {
+
+        private final LatencyStats stats;
+
+        LatencyInterceptor(LatencyStats stats) {
+            this.stats = stats;
+        }
+
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            Request request = chain.request();
+            String endpoint = request.method() + " " + request.url().encodedPath();
+            long start = System.nanoTime();
+            try {
+                Response response = chain.proceed(request);
+                stats.record(endpoint, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                        !response.isSuccessful());
+                return response;
+            } catch (IOException e) {
+                stats.record(endpoint, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), true);
+                throw e;
+            }
+        }
+    }
+}
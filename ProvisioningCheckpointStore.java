@@ -0,0 +1,180 @@
+package com.ciklum.pigabstractionlayer.WifiProvisioning;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import io.particle.android.sdk.devicesetup.commands.ScanApCommand;
+
+/**
+ * ProvisioningCheckpointStore
+ * Saves the progress of a provisioning session to local storage after every completed phase, so a
+ * session that failed late (e.g. in WaitForCloudConnectivityStep) can be resumed from its first
+ * incomplete phase with WifiProvisionManager.resume() instead of starting over.
+ *
+ * The Wi-Fi password is never stored; it has to be supplied again when resuming a session that
+ * has not yet configured the device.
+ *
+ * Checkpoints of sessions that failed or were cancelled are kept for MAX_AGE_MILLIS after they were
+ * last saved; purgeExpired() drops older ones, and unreadable ones are dropped when loaded.
+ */
+class ProvisioningCheckpointStore {
+
+    private static final String TAG = "ProvisioningCheckpoints";
+    private static final String PREFS_NAME = "com.ciklum.pigabstractionlayer.provisioning_checkpoints";
+
+    private static final String KEY_EMAIL = "email";
+    private static final String KEY_SOFT_AP_SSID = "soft_ap_ssid";
+    private static final String KEY_COMPLETED_PHASE = "completed_phase";
+    private static final String KEY_DEVICE_ID = "device_id";
+    private static final String KEY_PUBLIC_KEY = "public_key";
+    private static final String KEY_CLAIM_CODE = "claim_code";
+    private static final String KEY_NEED_TO_CLAIM = "need_to_claim";
+    private static final String KEY_NETWORK_SSID = "network_ssid";
+    private static final String KEY_NETWORK_SECURITY = "network_security";
+    private static final String KEY_NETWORK_CHANNEL = "network_channel";
+    private static final String KEY_COMPLETED_STEPS = "completed_steps";
+    private static final String KEY_SAVED_AT = "saved_at";
+
+    // A session is not worth resuming after this; the device has most likely been reset or set
+    // up some other way, and its claim code has expired.
+    static final long MAX_AGE_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+    // The phase of the first setup step from buildSteps().
+    static final ProvisioningPhase FIRST_STEP_PHASE = ProvisioningPhase.CONFIGURE_AP;
+
+    /**
+     * Everything needed to pick a session up again.
+     */
+    static class Checkpoint {
+
+        String userEmail;
+        String softApSsid;
+        // last phase before the setup steps that completed, or null if none has
+        ProvisioningPhase completedPhase;
+        String deviceId;
+        String publicKeyHex;
+        String claimCode;
+        boolean needToClaimDevice;
+        ScanApCommand.Scan networkToConnectTo;
+        // number of setup steps from buildSteps() that have been fulfilled, in order
+        int completedSteps;
+
+        boolean isComplete(ProvisioningPhase phase) {
+            if (phase.ordinal() < FIRST_STEP_PHASE.ordinal()) {
+                return completedPhase != null && completedPhase.ordinal() >= phase.ordinal();
+            }
+            // The setup steps run in parallel and finish in any order; only the ones fulfilled
+            // without a gap count. Their phases are in the order of buildSteps().
+            ProvisioningPhase step = phase == ProvisioningPhase.SETUP_STEPS
+                    ? ProvisioningPhase.CHECK_DEVICE_CLAIMED : phase;
+            return step.ordinal() - FIRST_STEP_PHASE.ordinal() < completedSteps;
+        }
+    }
+
+    private final SharedPreferences prefs;
+
+    ProvisioningCheckpointStore(Context context) {
+        prefs = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    void save(String sessionId, Checkpoint checkpoint) {
+        try {
+            JSONObject json = new JSONObject();
+            json.put(KEY_EMAIL, checkpoint.userEmail);
+            json.put(KEY_SOFT_AP_SSID, checkpoint.softApSsid);
+            if (checkpoint.completedPhase != null) {
+                json.put(KEY_COMPLETED_PHASE, checkpoint.completedPhase.name());
+            }
+            json.put(KEY_DEVICE_ID, checkpoint.deviceId);
+            json.put(KEY_PUBLIC_KEY, checkpoint.publicKeyHex);
+            json.put(KEY_CLAIM_CODE, checkpoint.claimCode);
+            json.put(KEY_NEED_TO_CLAIM, checkpoint.needToClaimDevice);
+            if (checkpoint.networkToConnectTo != null) {
+                json.put(KEY_NETWORK_SSID, checkpoint.networkToConnectTo.ssid);
+                json.put(KEY_NETWORK_SECURITY, checkpoint.networkToConnectTo.wifiSecurityType);
+                json.put(KEY_NETWORK_CHANNEL, checkpoint.networkToConnectTo.channel);
+            }
+            json.put(KEY_COMPLETED_STEPS, checkpoint.completedSteps);
+            json.put(KEY_SAVED_AT, System.currentTimeMillis());
+            prefs.edit().putString(sessionId, json.toString()).apply();
+        } catch (JSONException e) {
+            Log.d(TAG, "Could not save checkpoint for session " + sessionId, e);
+        }
+    }
+
+    Checkpoint load(String sessionId) {
+        String stored = prefs.getString(sessionId, null);
+        if (stored == null) {
+            return null;
+        }
+        try {
+            JSONObject json = new JSONObject(stored);
+            Checkpoint checkpoint = new Checkpoint();
+            checkpoint.userEmail = json.optString(KEY_EMAIL, null);
+            checkpoint.softApSsid = json.optString(KEY_SOFT_AP_SSID, null);
+            if (json.has(KEY_COMPLETED_PHASE)) {
+                checkpoint.completedPhase = ProvisioningPhase.valueOf(json.getString(KEY_COMPLETED_PHASE));
+            }
+            checkpoint.deviceId = json.optString(KEY_DEVICE_ID, null);
+            checkpoint.publicKeyHex = json.optString(KEY_PUBLIC_KEY, null);
+            checkpoint.claimCode = json.optString(KEY_CLAIM_CODE, null);
+            checkpoint.needToClaimDevice = json.optBoolean(KEY_NEED_TO_CLAIM);
+            if (json.has(KEY_NETWORK_SSID)) {
+                checkpoint.networkToConnectTo = new ScanApCommand.Scan(json.getString(KEY_NETWORK_SSID),
+                        json.getInt(KEY_NETWORK_SECURITY), json.getInt(KEY_NETWORK_CHANNEL));
+            }
+            checkpoint.completedSteps = json.optInt(KEY_COMPLETED_STEPS);
+            return checkpoint;
+        } catch (JSONException | IllegalArgumentException e) {
+            Log.d(TAG, "Dropping unreadable checkpoint for session " + sessionId, e);
+            delete(sessionId);
+            return null;
+        }
+    }
+
+    void delete(String sessionId) {
+        prefs.edit().remove(sessionId).apply();
+    }
+
+    List<String> getSessionIds() {
+        return new ArrayList<String>(prefs.getAll().keySet());
+    }
+
+    void clear() {
+        prefs.edit().clear().apply();
+    }
+
+    /**
+     * Drops the checkpoints last saved more than MAX_AGE_MILLIS ago, and the ones without a time.
+     */
+    void purgeExpired() {
+        long now = System.currentTimeMillis();
+        SharedPreferences.Editor editor = prefs.edit();
+        int purged = 0;
+        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            long savedAt = 0;
+            try {
+                savedAt = new JSONObject(String.valueOf(entry.getValue())).optLong(KEY_SAVED_AT);
+            } catch (JSONException e) {
+                // unreadable, dropped below
+            }
+            if (now - savedAt > MAX_AGE_MILLIS) {
+                editor.remove(entry.getKey());
+                purged++;
+            }
+        }
+        if (purged > 0) {
+            editor.apply();
+            Log.d(TAG, "Dropped " + purged + " expired checkpoints");
+        }
+    }
+}
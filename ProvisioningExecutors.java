@@ -0,0 +1,124 @@
+package com.ciklum.pigabstractionlayer.WifiProvisioning;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ProvisioningExecutors
+ * The threads the library runs provisioning sessions on, shared by all sessions of the process
+ * instead of being created per session:
+ *
+ * - session loopers: a fixed set of HandlerThreads that drive the sessions' Handlers. They only
+ *   sequence a session (SoftAP join, retries, the readiness probe's schedule) and never block.
+ *   Sessions are spread over them in turn.
+ * - background: bounded pool for the blocking work of the sessions (cloud authentication, the
+ *   readiness probe's connects, talking to the device, encrypting the Wi-Fi secret) and of the
+ *   process-wide caches (access token refreshes, claim code refills, spare device connections).
+ * - steps: bounded pool running the setup steps of the ParallelStepRunner.
+ * - timer: one thread that only hands delayed work (e.g. reconnects) on to the pools.
+ *
+ * All threads are daemon threads and idle pool threads time out.
+ */
+final class ProvisioningExecutors {
+
+    private static final int SESSION_LOOPERS = 2;
+    private static final int BACKGROUND_THREADS = 4;
+    // The ProvisioningScheduler runs one session in its SoftAP phase and three in their cloud
+    // phase by default; at most two steps of a session run at the same time.
+    private static final int STEP_THREADS = 8;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final Looper[] sessionLoopers = new Looper[SESSION_LOOPERS];
+    private static int nextSessionLooper = 0;
+
+    private static final ExecutorService background = newPool("ProvisioningBackground", BACKGROUND_THREADS);
+    private static final ExecutorService steps = newPool("ProvisioningStep", STEP_THREADS);
+    private static final ScheduledExecutorService timer = newTimer("ProvisioningTimer");
+
+    private static Executor mainThread;
+
+    private ProvisioningExecutors() {
+    }
+
+    /**
+     * @return the looper for a new session's Handler
+     */
+    static synchronized Looper nextSessionLooper() {
+        int index = nextSessionLooper;
+        nextSessionLooper = (nextSessionLooper + 1) % SESSION_LOOPERS;
+        if (sessionLoopers[index] == null) {
+            HandlerThread thread = new HandlerThread("WifiProvision-" + (index + 1));
+            thread.setDaemon(true);
+            thread.start();
+            sessionLoopers[index] = thread.getLooper();
+        }
+        return sessionLoopers[index];
+    }
+
+    static ExecutorService background() {
+        return background;
+    }
+
+    static ExecutorService steps() {
+        return steps;
+    }
+
+    static ScheduledExecutorService timer() {
+        return timer;
+    }
+
+    /**
+     * @return an Executor posting to the UI thread, the default for the sessions' callbacks
+     */
+    static synchronized Executor mainThread() {
+        if (mainThread == null) {
+            final Handler handler = new Handler(Looper.getMainLooper());
+            mainThread = new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    handler.post(command);
+                }
+            };
+        }
+        return mainThread;
+    }
+
+    private static ExecutorService newPool(String name, int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                newThreadFactory(name));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static ScheduledExecutorService newTimer(String name) {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, newThreadFactory(name));
+        executor.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static ThreadFactory newThreadFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -0,0 +1,204 @@
+package com.ciklum.pigabstractionlayer.WifiProvisioning;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * ProvisioningFuture
+ * Result of an asynchronous provisioning session (WifiProvisionManager.provisionAsync()) or of one
+ * of its phases (WifiProvisionManager.whenPhaseCompleted()).
+ *
+ * Callbacks run on the Executor they are added with; then() derives a new stage from the result.
+ * Cancelling the future of a session cancels the session; cancelling a phase future only cancels
+ * that future.
+ *
+ * Works like a minimal CompletableFuture, which needs Android API 24.
+ */
+public class ProvisioningFuture<T> implements Future<T> {
+
+    public interface Callback<T> {
+
+        void onSuccess(T result);
+
+        /**
+         * @param error a CancellationException if the future was cancelled
+         */
+        void onFailure(Exception error);
+    }
+
+    /**
+     * Turns the result of one stage into the result of the next.
+     */
+    public interface Transform<T, R> {
+
+        R apply(T result) throws Exception;
+    }
+
+    private final Runnable onCancel;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final List<Runnable> pendingCallbacks = new ArrayList<Runnable>();
+
+    private T result;
+    private Exception error;
+    private boolean completed;
+    private boolean cancelled;
+
+    ProvisioningFuture() {
+        this(null);
+    }
+
+    /**
+     * @param onCancel run when the future is cancelled before it completes; may be null
+     */
+    ProvisioningFuture(Runnable onCancel) {
+        this.onCancel = onCancel;
+    }
+
+    /**
+     * Calls the callback on the executor once the future completes, or straight away if it has.
+     *
+     * @param callback
+     * @param executor
+     * @return this future
+     */
+    public ProvisioningFuture<T> addCallback(final Callback<? super T> callback, final Executor executor) {
+        Runnable notification = new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Exception failure = getError();
+                        if (failure != null) {
+                            callback.onFailure(failure);
+                        } else {
+                            callback.onSuccess(getResult());
+                        }
+                    }
+                });
+            }
+        };
+        synchronized (this) {
+            if (!completed) {
+                pendingCallbacks.add(notification);
+                return this;
+            }
+        }
+        notification.run();
+        return this;
+    }
+
+    /**
+     * @param transform run on the executor with this future's result
+     * @param executor
+     * @return a future completing with the transform's result, or with this future's failure
+     */
+    public <R> ProvisioningFuture<R> then(final Transform<? super T, R> transform, Executor executor) {
+        final ProvisioningFuture<R> next = new ProvisioningFuture<R>();
+        addCallback(new Callback<T>() {
+            @Override
+            public void onSuccess(T value) {
+                try {
+                    next.complete(transform.apply(value));
+                } catch (Exception e) {
+                    next.fail(e);
+                }
+            }
+
+            @Override
+            public void onFailure(Exception failure) {
+                next.fail(failure);
+            }
+        }, executor);
+        return next;
+    }
+
+    boolean complete(T value) {
+        return finish(value, null, false);
+    }
+
+    boolean fail(Exception failure) {
+        return finish(null, failure, false);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!finish(null, new CancellationException("Wifi provisioning was cancelled"), true)) {
+            return false;
+        }
+        if (onCancel != null) {
+            onCancel.run();
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return completed;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        done.await();
+        return report();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return report();
+    }
+
+    private boolean finish(T value, Exception failure, boolean cancel) {
+        List<Runnable> callbacks;
+        synchronized (this) {
+            if (completed) {
+                return false;
+            }
+            completed = true;
+            cancelled = cancel;
+            result = value;
+            error = failure;
+            callbacks = new ArrayList<Runnable>(pendingCallbacks);
+            pendingCallbacks.clear();
+        }
+        done.countDown();
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+        return true;
+    }
+
+    private synchronized T getResult() {
+        return result;
+    }
+
+    private synchronized Exception getError() {
+        return error;
+    }
+
+    private synchronized T report() throws ExecutionException {
+        if (cancelled) {
+            throw (CancellationException) error;
+        }
+        if (error != null) {
+            throw new ExecutionException(error);
+        }
+        return result;
+    }
+}
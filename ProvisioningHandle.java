@@ -0,0 +1,45 @@
+package com.ciklum.pigabstractionlayer.WifiProvisioning;
+
+import com.ciklum.pigabstractionlayer.PiggyBankException;
+
+/**
+ * ProvisioningHandle
+ * Returned by WifiProvisionManager.start() to control a running provisioning session.
+ *
+ * cancel() stops the session straight away: pending work is dropped, sockets to the device are
+ * closed, the step runner is stopped and the phone's Wi-Fi configuration is restored. The callback's
+ * onFailure is called once with a "cancelled" exception.
+ */
+public class ProvisioningHandle {
+
+    private final WifiProvisionManager manager;
+
+    ProvisioningHandle(WifiProvisionManager manager) {
+        this.manager = manager;
+    }
+
+    /**
+     * Aborts the session. Has no effect if it has already finished.
+     */
+    public void cancel() {
+        manager.cancel(new PiggyBankException("Wifi provisioning was cancelled"));
+    }
+
+    public boolean isCancelled() {
+        return manager.isCancelled();
+    }
+
+    /**
+     * @return the id to pass to WifiProvisionManager.resume() if this session fails
+     */
+    public String getSessionId() {
+        return manager.getSessionId();
+    }
+
+    /**
+     * @return the session's timeline so far
+     */
+    public ProvisioningTimeline getTimeline() {
+        return manager.getTimeline();
+    }
+}
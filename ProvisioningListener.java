@@ -0,0 +1,21 @@
+package com.ciklum.pigabstractionlayer.WifiProvisioning;
+
+/**
+ * ProvisioningListener
+ * Optional, more detailed companion to WifiProvisionCallback: reports every timed phase and
+ * sub-action of a session as it finishes, and the complete timeline when the session ends.
+ *
+ * onSpanFinished is called on whichever thread did the work and should return quickly;
+ * onSessionFinished is called on the manager's callback executor (the UI thread unless
+ * WifiProvisionManager.setCallbackExecutor() says otherwise).
+ */
+public interface ProvisioningListener {
+
+    void onSpanFinished(ProvisioningTimeline.Span span);
+
+    /**
+     * @param timeline
+     * @param error null if provisioning succeeded
+     */
+    void onSessionFinished(ProvisioningTimeline timeline, Exception error);
+}
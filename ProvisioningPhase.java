@@ -0,0 +1,23 @@
+package com.ciklum.pigabstractionlayer.WifiProvisioning;
+
+/**
+ * ProvisioningPhase
+ * The phases a provisioning session goes through, in order. Retry budgets and timeouts are
+ * configured per phase (see RetryPolicy).
+ */
+public enum ProvisioningPhase {
+
+    AUTH,
+    CLAIM_CODE,
+    CONNECT_TO_SOFT_AP,
+    DISCOVER_DEVICE,
+    CONFIGURE_AP,
+    CONNECT_DEVICE_TO_NETWORK,
+    WAIT_FOR_DISCONNECTION,
+    ENSURE_SOFT_AP_NOT_VISIBLE,
+    WAIT_FOR_CLOUD_CONNECTIVITY,
+    CHECK_DEVICE_CLAIMED,
+
+    // Attempts of each setup step run by the ParallelStepRunner.
+    SETUP_STEPS
+}
@@ -0,0 +1,337 @@
+package com.ciklum.pigabstractionlayer.WifiProvisioning;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.ciklum.pigabstractionlayer.PiggyBank;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import io.particle.android.sdk.devicesetup.commands.ScanApCommand;
+
+/**
+ * ProvisioningScheduler
+ * Provisions a queue of devices, one WifiProvisionManager (session) per device, and overlaps them:
+ * the phone only has one Wi-Fi radio, so only one session at a time can be in its SoftAP phase, but
+ * as soon as a session has left the device's SoftAP (WaitForDisconnectionFromDeviceStep fulfilled)
+ * the next device's SoftAP phase is started while the earlier device is still waiting on the cloud
+ * (WaitForCloudConnectivityStep, CheckIfDeviceClaimedStep).
+ *
+ * Those cloud steps need the phone to reach the internet while it is joined to the next device's
+ * SoftAP. The library's own calls, including the DeviceEventStream, go over the network a
+ * CloudNetworkSelector (e.g. CellularNetworkSelector) offers, but the polling in those steps goes
+ * through the Particle SDK client, which always uses the default network, i.e. the SoftAP. So the
+ * SoftAP phases are only overlapped while the selector has a network and every earlier session
+ * waits on its event stream, which sessions started by the scheduler enable unless
+ * setCloudEventStreamEnabled(false) is called. Otherwise (Wi-Fi only phones, mobile data not up
+ * yet) the next device is only started once every earlier session has ended, so their cloud steps
+ * do not use up their retries while the radio is on a SoftAP.
+ *
+ * Claim codes are generated ahead of time (WifiProvisionManager.warmUpClaimCodes()) when the
+ * scheduler is created and whenever a session ends, so that each session takes a pooled code
+ * instead of generating one right before it joins the device's SoftAP.
+ *
+ * Devices are either enqueued by SSID or, with setDiscovery(), taken from a SoftApDiscovery as the
+ * radio frees up: the strongest recently-seen Photon is provisioned next, so the ranking is as fresh
+ * as possible when each device is picked. Enqueued devices go first. While the radio is free and no
+ * device is in range the discovery keeps scanning; a discovered device that failed is offered again
+ * once if it is still seen. Call SoftApDiscovery.stop() when done.
+ *
+ * All methods must be called, and all Listener methods are called, on the UI thread.
+ */
+public class ProvisioningScheduler {
+
+    private static final String TAG = "ProvisioningScheduler";
+
+    private static final int DEFAULT_MAX_SESSIONS_IN_CLOUD_PHASE = 3;
+    // How often a discovered device that failed is offered again.
+    private static final int MAX_RETRIES_PER_DISCOVERED_DEVICE = 1;
+
+    public interface Listener {
+
+        void onDeviceProvisioned(String softApSsid, PiggyBank pig);
+
+        void onDeviceFailed(String softApSsid, Exception e);
+
+        void onQueueDrained();
+    }
+
+    private final Context mContext;
+    private final String mUserEmail;
+    private final ScanApCommand.Scan mNetworkToConnectTo;
+    private final String mNetworkSecretPlaintext;
+    private final Listener mListener;
+    private final Handler mUiThreadHandler = new Handler(Looper.getMainLooper());
+
+    private final Deque<String> mQueuedSsids = new ArrayDeque<String>();
+    private final Set<WifiProvisionManager> mSessionsInCloudPhase = new HashSet<WifiProvisionManager>();
+    private WifiProvisionManager mSessionInSoftApPhase;
+    private SoftApDiscovery mDiscovery;
+    // Failures of discovered devices so far, by SoftAP SSID.
+    private final Map<String, Integer> mDiscoveredFailures = new HashMap<String, Integer>();
+    private int mMaxSessionsInCloudPhase = DEFAULT_MAX_SESSIONS_IN_CLOUD_PHASE;
+    private boolean mCloudEventStreamEnabled = true;
+
+    private long mFirstStartedAt = -1;
+    private int mDevicesProvisioned;
+    private int mDevicesFailed;
+
+    public ProvisioningScheduler(Context context, String userEmail, ScanApCommand.Scan networkToConnectTo,
+                                 String networkSecretPlaintext, Listener listener) {
+        mContext = context.getApplicationContext();
+        mUserEmail = userEmail;
+        mNetworkToConnectTo = networkToConnectTo;
+        mNetworkSecretPlaintext = networkSecretPlaintext;
+        mListener = listener;
+        WifiProvisionManager.warmUpClaimCodes(mContext, mUserEmail);
+    }
+
+    /**
+     * Limits how many earlier devices may still be waiting on the cloud before the next device's
+     * SoftAP phase is held back.
+     *
+     * @param maxSessions
+     */
+    public void setMaxSessionsInCloudPhase(int maxSessions) {
+        mMaxSessionsInCloudPhase = Math.max(0, maxSessions);
+    }
+
+    /**
+     * Whether the sessions wait on the device's cloud events
+     * (WifiProvisionManager.setCloudEventStreamEnabled()); enabled unless set. Without it the
+     * SoftAP phases are never overlapped. Applies to the sessions started after the call.
+     *
+     * @param enabled
+     */
+    public void setCloudEventStreamEnabled(boolean enabled) {
+        mCloudEventStreamEnabled = enabled;
+    }
+
+    /**
+     * Adds a device, identified by the SSID of its SoftAP, to the queue and starts it when the Wi-Fi
+     * radio is free.
+     *
+     * @param softApSsid
+     */
+    public void enqueue(String softApSsid) {
+        mQueuedSsids.addLast(softApSsid);
+        startNextIfPossible();
+    }
+
+    /**
+     * Provisions the devices the discovery finds, best first, after the enqueued ones. Starts
+     * right away if the radio is free and a device is in range.
+     *
+     * @param discovery
+     */
+    public void setDiscovery(SoftApDiscovery discovery) {
+        if (mDiscovery != null) {
+            mDiscovery.setListener(null);
+            mDiscovery.setPeriodicRefresh(false);
+        }
+        mDiscovery = discovery;
+        if (discovery != null) {
+            discovery.setListener(new SoftApDiscovery.Listener() {
+                @Override
+                public void onDevicesDiscovered() {
+                    startNextIfPossible();
+                }
+            });
+        }
+        startNextIfPossible();
+    }
+
+    public int getQueuedCount() {
+        return mQueuedSsids.size();
+    }
+
+    public int getDevicesProvisioned() {
+        return mDevicesProvisioned;
+    }
+
+    public int getDevicesFailed() {
+        return mDevicesFailed;
+    }
+
+    /**
+     * Successfully provisioned devices per hour since the first session of this scheduler started.
+     *
+     * @return devices per hour, or 0 if nothing has been started yet
+     */
+    public double getDevicesPerHour() {
+        if (mFirstStartedAt < 0) {
+            return 0;
+        }
+        long elapsed = SystemClock.elapsedRealtime() - mFirstStartedAt;
+        if (elapsed <= 0) {
+            return 0;
+        }
+        return mDevicesProvisioned * (double) TimeUnit.HOURS.toMillis(1) / elapsed;
+    }
+
+    private void startNextIfPossible() {
+        if (mSessionInSoftApPhase != null
+                || (mMaxSessionsInCloudPhase > 0 && mSessionsInCloudPhase.size() >= mMaxSessionsInCloudPhase)) {
+            return;
+        }
+        if (!mSessionsInCloudPhase.isEmpty() && !canReachCloudFromSoftAp()) {
+            // the earlier devices could not reach the cloud while the radio is on the next SoftAP
+            if (PiggyBank.DEBUG) {
+                Log.d(TAG, "Cloud steps would poll over the SoftAP, waiting for "
+                        + mSessionsInCloudPhase.size() + " session(s) to finish");
+            }
+            return;
+        }
+
+        String next = mQueuedSsids.pollFirst();
+        boolean discovered = false;
+        if (next == null && mDiscovery != null) {
+            next = mDiscovery.next();
+            discovered = next != null;
+        }
+        if (mDiscovery != null) {
+            // keep scanning only while the radio is free and nothing is in range
+            mDiscovery.setPeriodicRefresh(next == null);
+        }
+        if (next == null) {
+            return;
+        }
+        final String softApSsid = next;
+        final WifiProvisionManager session = new WifiProvisionManager();
+        session.mDeviceSoftApSsid = softApSsid;
+        session.mNetworkToConnectTo = mNetworkToConnectTo;
+        session.mNetworkSecretPlaintext = mNetworkSecretPlaintext;
+        session.setCloudEventStreamEnabled(mCloudEventStreamEnabled);
+        session.setSoftApPhaseListener(new WifiProvisionManager.SoftApPhaseListener() {
+            @Override
+            public void onSoftApPhaseFinished(final WifiProvisionManager finished) {
+                mUiThreadHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mSessionInSoftApPhase == finished) {
+                            mSessionInSoftApPhase = null;
+                            mSessionsInCloudPhase.add(finished);
+                            startNextIfPossible();
+                        }
+                    }
+                });
+            }
+        });
+
+        mSessionInSoftApPhase = session;
+        if (mFirstStartedAt < 0) {
+            mFirstStartedAt = SystemClock.elapsedRealtime();
+        }
+        if (PiggyBank.DEBUG) {
+            Log.d(TAG, "Starting session for " + softApSsid + ", " + mQueuedSsids.size() + " queued");
+        }
+
+        session.start(mUserEmail, mContext, new SessionCallback(session, softApSsid, discovered));
+    }
+
+    /**
+     * Whether the sessions in their cloud phase can still complete while the radio is on another
+     * SoftAP: only their event streams follow the selected network, the Particle SDK polling does
+     * not.
+     */
+    private boolean canReachCloudFromSoftAp() {
+        if (ParticleCloudTransport.selectedNetwork() == null) {
+            return false;
+        }
+        for (WifiProvisionManager session : mSessionsInCloudPhase) {
+            if (!session.hasDeviceEventStream()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Lets the discovery offer a failed device again, up to MAX_RETRIES_PER_DISCOVERED_DEVICE
+     * times; it is only offered while it is still seen in the scans.
+     */
+    private void retryDiscoveredDevice(String softApSsid) {
+        Integer failures = mDiscoveredFailures.get(softApSsid);
+        int count = failures == null ? 1 : failures + 1;
+        mDiscoveredFailures.put(softApSsid, count);
+        if (count <= MAX_RETRIES_PER_DISCOVERED_DEVICE && mDiscovery != null) {
+            mDiscovery.release(softApSsid);
+        }
+    }
+
+    private void onSessionEnded(WifiProvisionManager session) {
+        if (mSessionInSoftApPhase == session) {
+            mSessionInSoftApPhase = null;
+        }
+        mSessionsInCloudPhase.remove(session);
+        // the pool is refilled once the phone is back on its own network
+        WifiProvisionManager.warmUpClaimCodes(mContext, mUserEmail);
+        startNextIfPossible();
+
+        if (mSessionInSoftApPhase == null && mSessionsInCloudPhase.isEmpty() && mQueuedSsids.isEmpty()) {
+            mListener.onQueueDrained();
+        }
+    }
+
+    /**
+     * Forwards one session's callbacks to the scheduler's listener. WifiProvisionManager delivers
+     * these on the UI thread.
+     */
+    private class SessionCallback implements WifiProvisionCallback {
+
+        private final WifiProvisionManager session;
+        private final String softApSsid;
+        private final boolean discovered;
+
+        SessionCallback(WifiProvisionManager session, String softApSsid, boolean discovered) {
+            this.session = session;
+            this.softApSsid = softApSsid;
+            this.discovered = discovered;
+        }
+
+        @Override
+        public void onTwoLeggedAuth() {
+        }
+
+        @Override
+        public void onSoftApConnected() {
+        }
+
+        @Override
+        public void onDeviceInfoReturned() {
+        }
+
+        @Override
+        public void onSuccess(PiggyBank pig) {
+            mDevicesProvisioned++;
+            mListener.onDeviceProvisioned(softApSsid, pig);
+            onSessionEnded(session);
+        }
+
+        @Override
+        public void onFailure(final Exception e) {
+            // Posted so that the failed session has finished tearing down before the next one
+            // is started.
+            mUiThreadHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mDevicesFailed++;
+                    mListener.onDeviceFailed(softApSsid, e);
+                    if (discovered) {
+                        retryDiscoveredDevice(softApSsid);
+                    }
+                    onSessionEnded(session);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.ciklum.pigabstractionlayer.WifiProvisioning;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * ProvisioningStats
+ * Process-wide histograms of how long each phase took and how many attempts it needed, collected
+ * from every finished session's ProvisioningTimeline.
+ */
+public class ProvisioningStats {
+
+    /**
+     * Histogram with power-of-two buckets: bucket i counts values in [2^(i-1), 2^i), bucket 0 counts
+     * zero. Values beyond the last bucket are counted in the last one.
+     */
+    public static class Histogram {
+
+        private static final int BUCKETS = 24;
+
+        private final long[] counts = new long[BUCKETS];
+        private long total;
+        private long sum;
+        private long max;
+
+        synchronized void record(long value) {
+            value = Math.max(0, value);
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+            counts[bucket]++;
+            total++;
+            sum += value;
+            max = Math.max(max, value);
+        }
+
+        public synchronized long getCount() {
+            return total;
+        }
+
+        public synchronized long getMax() {
+            return max;
+        }
+
+        public synchronized double getMean() {
+            return total == 0 ? 0 : (double) sum / total;
+        }
+
+        /**
+         * Upper bound of the bucket holding the given percentile.
+         *
+         * @param percentile between 0 and 100
+         * @return long
+         */
+        public synchronized long getPercentile(double percentile) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(max, i == 0 ? 0 : (1L << i) - 1);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "n=" + total + " mean=" + (long) getMean() + " p50=" + getPercentile(50)
+                    + " p99=" + getPercentile(99) + " max=" + max;
+        }
+    }
+
+    private static final ProvisioningStats instance = new ProvisioningStats();
+
+    private final Map<ProvisioningPhase, Histogram> phaseMillis =
+            new EnumMap<ProvisioningPhase, Histogram>(ProvisioningPhase.class);
+    private final Map<ProvisioningPhase, Histogram> phaseAttempts =
+            new EnumMap<ProvisioningPhase, Histogram>(ProvisioningPhase.class);
+    private final Histogram sessionMillis = new Histogram();
+    private long sessionsSucceeded;
+    private long sessionsFailed;
+
+    private ProvisioningStats() {
+        for (ProvisioningPhase phase : ProvisioningPhase.values()) {
+            phaseMillis.put(phase, new Histogram());
+            phaseAttempts.put(phase, new Histogram());
+        }
+    }
+
+    public static ProvisioningStats get() {
+        return instance;
+    }
+
+    void record(ProvisioningTimeline timeline) {
+        sessionMillis.record(timeline.getTotalMillis());
+        synchronized (this) {
+            if (timeline.isSucceeded()) {
+                sessionsSucceeded++;
+            } else {
+                sessionsFailed++;
+            }
+        }
+        for (ProvisioningPhase phase : ProvisioningPhase.values()) {
+            int attempts = timeline.getAttempts(phase);
+            if (attempts > 0) {
+                phaseAttempts.get(phase).record(attempts);
+            }
+            long millis = timeline.getPhaseMillis(phase);
+            if (millis > 0) {
+                phaseMillis.get(phase).record(millis);
+            }
+        }
+    }
+
+    public Histogram getPhaseMillis(ProvisioningPhase phase) {
+        return phaseMillis.get(phase);
+    }
+
+    public Histogram getPhaseAttempts(ProvisioningPhase phase) {
+        return phaseAttempts.get(phase);
+    }
+
+    public Histogram getSessionMillis() {
+        return sessionMillis;
+    }
+
+    public synchronized long getSessionsSucceeded() {
+        return sessionsSucceeded;
+    }
+
+    public synchronized long getSessionsFailed() {
+        return sessionsFailed;
+    }
+}
@@ -0,0 +1,247 @@
+package com.ciklum.pigabstractionlayer.WifiProvisioning;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ProvisioningTimeline
+ * Everything that happened during one provisioning session, with timestamps: one Span per phase or
+ * sub-action (the auth call, a ConnectToAp action, a device command, a setup step attempt...) and
+ * the number of attempts each phase took. Handed to the ProvisioningListener when the session ends.
+ * A failed session also carries the ProvisioningTrace events recorded while it ran.
+ *
+ * All times are in milliseconds relative to the start of the session.
+ */
+public class ProvisioningTimeline {
+
+    /**
+     * One timed phase or sub-action.
+     */
+    public static class Span {
+
+        public final ProvisioningPhase phase;
+        public final String name;
+        public final long startMillis;
+
+        private long durationMillis = -1;
+        private boolean succeeded;
+
+        private final ProvisioningTimeline timeline;
+
+        Span(ProvisioningTimeline timeline, ProvisioningPhase phase, String name, long startMillis) {
+            this.timeline = timeline;
+            this.phase = phase;
+            this.name = name;
+            this.startMillis = startMillis;
+        }
+
+        /**
+         * Ends the span. Only the first call has an effect.
+         *
+         * @param success
+         */
+        public void end(boolean success) {
+            synchronized (timeline) {
+                if (durationMillis >= 0) {
+                    return;
+                }
+                durationMillis = timeline.elapsedMillis() - startMillis;
+                succeeded = success;
+            }
+            timeline.onSpanEnded(this);
+        }
+
+        public boolean isFinished() {
+            return durationMillis >= 0;
+        }
+
+        /**
+         * @return the span's duration, or -1 if it has not ended
+         */
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        public boolean isSucceeded() {
+            return succeeded;
+        }
+
+        @Override
+        public String toString() {
+            return "+" + startMillis + "ms " + phase + "/" + name + " " + durationMillis + "ms "
+                    + (succeeded ? "ok" : "failed");
+        }
+    }
+
+    /**
+     * One step on the critical path of the setup steps: the chain of dependent steps that decided
+     * how long they took.
+     */
+    public static class CriticalStep {
+
+        public final ProvisioningPhase phase;
+        public final long startMillis;
+        public final long durationMillis;
+
+        CriticalStep(ProvisioningPhase phase, long startMillis, long durationMillis) {
+            this.phase = phase;
+            this.startMillis = startMillis;
+            this.durationMillis = durationMillis;
+        }
+
+        @Override
+        public String toString() {
+            return phase + " " + durationMillis + "ms";
+        }
+    }
+
+    private final long startedAt = SystemClock.elapsedRealtime();
+    private final int traceSession = ProvisioningTrace.newSession();
+    private final List<Span> spans = new ArrayList<Span>();
+    private final Map<ProvisioningPhase, Integer> attempts =
+            new EnumMap<ProvisioningPhase, Integer>(ProvisioningPhase.class);
+    private final ProvisioningListener listener;
+
+    private List<CriticalStep> criticalPath = Collections.emptyList();
+    private long[] traceEvents = new long[0];
+    private long totalMillis = -1;
+    private boolean succeeded;
+
+    ProvisioningTimeline(ProvisioningListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Starts a span. The caller must end() it.
+     *
+     * @param phase
+     * @param name
+     * @return Span
+     */
+    public synchronized Span begin(ProvisioningPhase phase, String name) {
+        Span span = new Span(this, phase, name, elapsedMillis());
+        spans.add(span);
+        return span;
+    }
+
+    /**
+     * Counts one more attempt of the phase.
+     *
+     * @param phase
+     */
+    public synchronized void recordAttempt(ProvisioningPhase phase) {
+        Integer count = attempts.get(phase);
+        attempts.put(phase, count == null ? 1 : count + 1);
+    }
+
+    public synchronized int getAttempts(ProvisioningPhase phase) {
+        Integer count = attempts.get(phase);
+        return count == null ? 0 : count;
+    }
+
+    public synchronized List<Span> getSpans() {
+        return Collections.unmodifiableList(new ArrayList<Span>(spans));
+    }
+
+    /**
+     * @return the total session time, or -1 while the session is still running
+     */
+    public synchronized long getTotalMillis() {
+        return totalMillis;
+    }
+
+    public synchronized boolean isSucceeded() {
+        return succeeded;
+    }
+
+    /**
+     * Sum of the finished spans of the phase, in milliseconds.
+     *
+     * @param phase
+     * @return long
+     */
+    public synchronized long getPhaseMillis(ProvisioningPhase phase) {
+        long total = 0;
+        for (Span span : spans) {
+            if (span.phase == phase && span.isFinished()) {
+                total += span.getDurationMillis();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return the critical path of the setup steps, in order; empty until they have all been
+     * fulfilled
+     */
+    public synchronized List<CriticalStep> getCriticalPath() {
+        return criticalPath;
+    }
+
+    synchronized void setCriticalPath(List<CriticalStep> path) {
+        criticalPath = Collections.unmodifiableList(new ArrayList<CriticalStep>(path));
+    }
+
+    /**
+     * @return the tag of the ProvisioningTrace events recorded for this session
+     */
+    int getTraceSession() {
+        return traceSession;
+    }
+
+    /**
+     * @return the ProvisioningTrace events recorded during the session, in the format of
+     * ProvisioningTrace.snapshot(); empty unless the session failed
+     */
+    public synchronized long[] getTraceEvents() {
+        return traceEvents.clone();
+    }
+
+    /**
+     * Marks the session as over. Returns false if it already was.
+     */
+    synchronized boolean finish(boolean success) {
+        if (totalMillis >= 0) {
+            return false;
+        }
+        totalMillis = elapsedMillis();
+        succeeded = success;
+        if (!success) {
+            traceEvents = ProvisioningTrace.snapshot(traceSession, startedAt);
+        }
+        return true;
+    }
+
+    long elapsedMillis() {
+        return SystemClock.elapsedRealtime() - startedAt;
+    }
+
+    private void onSpanEnded(Span span) {
+        if (listener != null) {
+            listener.onSpanFinished(span);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder("ProvisioningTimeline ")
+                .append(totalMillis).append("ms ")
+                .append(succeeded ? "succeeded" : "failed")
+                .append(" attempts=").append(attempts);
+        if (!criticalPath.isEmpty()) {
+            builder.append(" criticalPath=").append(criticalPath);
+        }
+        for (Span span : spans) {
+            builder.append('\n').append(span);
+        }
+        if (traceEvents.length > 0) {
+            builder.append("\ntrace:\n").append(ProvisioningTrace.format(traceEvents));
+        }
+        return builder.toString();
+    }
+}
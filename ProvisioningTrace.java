@@ -0,0 +1,212 @@
+package com.ciklum.pigabstractionlayer.WifiProvisioning;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ProvisioningTrace
+ * Process-wide flight recorder for the hot paths of provisioning (Wi-Fi broadcasts, join actions,
+ * sockets, setup steps). Each event is four longs (timestamp, session/phase/event code, two
+ * arguments) written into a preallocated ring buffer, so recording an event builds no strings and
+ * allocates nothing; the oldest events are overwritten once the buffer is full.
+ *
+ * Every event carries the trace session of the ProvisioningTimeline it was recorded for (0 when
+ * there is none), since the ProvisioningScheduler runs several sessions at once. dump() formats the
+ * buffer on demand. When a session fails, its own events are attached to its ProvisioningTimeline
+ * (getTraceEvents()), and printed with the timeline.
+ */
+public final class ProvisioningTrace {
+
+    // Event codes; the meaning of the two arguments is given for each.
+
+    // arg0: index of the join action
+    static final int JOIN_ACTION_STARTED = 1;
+    // arg0: index of the join action
+    static final int JOIN_ACTION_UNCONFIRMED = 2;
+    // arg0: network id, arg1: 1 if removed
+    static final int NETWORK_REMOVED = 3;
+    // arg0: network id, -1 if adding failed
+    static final int NETWORK_ADDED = 4;
+    // arg0: network id
+    static final int NETWORK_ENABLED = 5;
+    static final int WIFI_DISCONNECT = 6;
+    static final int WIFI_RECONNECT = 7;
+    // arg0: NetworkInfo.DetailedState ordinal, -1 if absent; arg1: 1 if the broadcast has a WifiInfo
+    static final int WIFI_STATE_CHANGED = 8;
+    // arg0: network id
+    static final int SOFT_AP_JOINED = 9;
+    // arg0: 1 for a channel of the NioCommandTransport, 0 for a blocking socket
+    static final int SOCKET_BIND_FAILED = 10;
+    static final int SOCKET_CLOSE_FAILED = 11;
+    // arg0: Network hash code
+    static final int SOFT_AP_NETWORK_FOUND = 12;
+    // arg0: Network hash code
+    static final int SOFT_AP_NETWORK_LOST = 13;
+    // arg0: attempt
+    static final int STEP_ATTEMPT_FAILED = 14;
+    // arg0: duration in milliseconds
+    static final int STEP_FULFILLED = 15;
+    // arg0: response code of the set command
+    static final int CLAIM_CODE_SET = 16;
+    // arg0: result code of the step that failed, 0 on success
+    static final int SETUP_FINISHED = 17;
+
+    private static final String[] EVENT_NAMES = {
+            "?",
+            "JOIN_ACTION_STARTED",
+            "JOIN_ACTION_UNCONFIRMED",
+            "NETWORK_REMOVED",
+            "NETWORK_ADDED",
+            "NETWORK_ENABLED",
+            "WIFI_DISCONNECT",
+            "WIFI_RECONNECT",
+            "WIFI_STATE_CHANGED",
+            "SOFT_AP_JOINED",
+            "SOCKET_BIND_FAILED",
+            "SOCKET_CLOSE_FAILED",
+            "SOFT_AP_NETWORK_FOUND",
+            "SOFT_AP_NETWORK_LOST",
+            "STEP_ATTEMPT_FAILED",
+            "STEP_FULFILLED",
+            "CLAIM_CODE_SET",
+            "SETUP_FINISHED"
+    };
+
+    static final int LONGS_PER_EVENT = 4;
+    private static final int CAPACITY = 1024;
+    // No phase, for events recorded outside a phase.
+    private static final int NO_PHASE = 0xff;
+    // For events recorded without a timeline.
+    static final int NO_SESSION = 0;
+    // Session tags take the top 16 bits of the header and wrap around.
+    private static final int SESSION_MASK = 0xffff;
+
+    private static final long[] events = new long[CAPACITY * LONGS_PER_EVENT];
+    private static long recorded = 0;
+    private static final AtomicInteger lastSession = new AtomicInteger();
+
+    private ProvisioningTrace() {
+    }
+
+    /**
+     * @return the tag for the events of a new session, never NO_SESSION
+     */
+    static int newSession() {
+        int session;
+        do {
+            session = lastSession.incrementAndGet() & SESSION_MASK;
+        } while (session == NO_SESSION);
+        return session;
+    }
+
+    static void record(ProvisioningTimeline timeline, ProvisioningPhase phase, int event,
+                       long arg0, long arg1) {
+        long session = timeline == null ? NO_SESSION : timeline.getTraceSession();
+        long header = (session << 48)
+                | ((long) (phase == null ? NO_PHASE : phase.ordinal()) << 32)
+                | event;
+        long timestamp = SystemClock.elapsedRealtime();
+        synchronized (events) {
+            int offset = offsetOf(recorded);
+            events[offset] = timestamp;
+            events[offset + 1] = header;
+            events[offset + 2] = arg0;
+            events[offset + 3] = arg1;
+            recorded++;
+        }
+    }
+
+    static void record(ProvisioningTimeline timeline, ProvisioningPhase phase, int event, long arg0) {
+        record(timeline, phase, event, arg0, 0);
+    }
+
+    static void record(ProvisioningTimeline timeline, ProvisioningPhase phase, int event) {
+        record(timeline, phase, event, 0, 0);
+    }
+
+    /**
+     * Copies the events recorded since the given time, oldest first, LONGS_PER_EVENT longs each.
+     *
+     * @param sinceElapsedRealtime SystemClock.elapsedRealtime() value; 0 for the whole buffer
+     * @return long[]
+     */
+    public static long[] snapshot(long sinceElapsedRealtime) {
+        return snapshot(-1, sinceElapsedRealtime);
+    }
+
+    /**
+     * Copies the events of one session recorded since the given time, as snapshot(long) does.
+     *
+     * @param session the session's tag, from ProvisioningTimeline; -1 for every session
+     * @param sinceElapsedRealtime
+     * @return long[]
+     */
+    static long[] snapshot(int session, long sinceElapsedRealtime) {
+        synchronized (events) {
+            int count = (int) Math.min(recorded, CAPACITY);
+            long first = recorded - count;
+            int matching = 0;
+            for (int i = 0; i < count; i++) {
+                if (matches(offsetOf(first + i), session, sinceElapsedRealtime)) {
+                    matching++;
+                }
+            }
+            long[] copy = new long[matching * LONGS_PER_EVENT];
+            int copied = 0;
+            for (int i = 0; i < count; i++) {
+                int offset = offsetOf(first + i);
+                if (matches(offset, session, sinceElapsedRealtime)) {
+                    System.arraycopy(events, offset, copy, copied * LONGS_PER_EVENT, LONGS_PER_EVENT);
+                    copied++;
+                }
+            }
+            return copy;
+        }
+    }
+
+    /**
+     * @return every event still in the buffer, one per line
+     */
+    public static String dump() {
+        return format(snapshot(0));
+    }
+
+    /**
+     * Formats events as returned by snapshot(), one per line.
+     *
+     * @param trace
+     * @return String
+     */
+    public static String format(long[] trace) {
+        StringBuilder builder = new StringBuilder();
+        ProvisioningPhase[] phases = ProvisioningPhase.values();
+        for (int offset = 0; offset + LONGS_PER_EVENT <= trace.length; offset += LONGS_PER_EVENT) {
+            int session = sessionOf(trace[offset + 1]);
+            int phase = (int) (trace[offset + 1] >>> 32) & 0xffff;
+            int event = (int) trace[offset + 1];
+            if (builder.length() > 0) {
+                builder.append('\n');
+            }
+            builder.append(trace[offset]).append(" #").append(session).append(' ')
+                    .append(phase < phases.length ? phases[phase].name() : "-").append(' ')
+                    .append(event < EVENT_NAMES.length ? EVENT_NAMES[event] : "?").append(' ')
+                    .append(trace[offset + 2]).append(' ')
+                    .append(trace[offset + 3]);
+        }
+        return builder.toString();
+    }
+
+    private static boolean matches(int offset, int session, long sinceElapsedRealtime) {
+        return events[offset] >= sinceElapsedRealtime
+                && (session < 0 || sessionOf(events[offset + 1]) == session);
+    }
+
+    private static int sessionOf(long header) {
+        return (int) (header >>> 48) & SESSION_MASK;
+    }
+
+    private static int offsetOf(long index) {
+        return (int) (index % CAPACITY) * LONGS_PER_EVENT;
+    }
+}
@@ -0,0 +1,37 @@
+package com.ciklum.pigabstractionlayer.WifiProvisioning;
+
+/**
+ * RetryPolicy
+ * Decides how often, and how soon, each phase of a provisioning session is retried. The policy is
+ * consulted by the SoftAP connection (ConnectToAp), the device discovery (DiscoverProcessWorker) and
+ * every setup step run by the step runner.
+ *
+ * See ExponentialBackoffRetryPolicy for the default implementation.
+ */
+public interface RetryPolicy {
+
+    /**
+     * Returned by getRetryDelayMillis when the phase must not be retried again.
+     */
+    long STOP = -1;
+
+    /**
+     * @param phase
+     * @return the maximum number of attempts for the phase, including the first one
+     */
+    int getMaxAttempts(ProvisioningPhase phase);
+
+    /**
+     * @param phase
+     * @return how long a single attempt of the phase may take, or 0 if the phase has no timeout
+     */
+    long getTimeoutMillis(ProvisioningPhase phase);
+
+    /**
+     * @param phase
+     * @param failedAttempts how many attempts of the phase have failed so far (at least 1)
+     * @param sessionElapsedMillis time since the provisioning session started
+     * @return how long to wait before the next attempt, or STOP to give up on the phase
+     */
+    long getRetryDelayMillis(ProvisioningPhase phase, int failedAttempts, long sessionElapsedMillis);
+}
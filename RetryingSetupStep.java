@@ -0,0 +1,102 @@
+package com.ciklum.pigabstractionlayer.WifiProvisioning;
+
+import android.os.SystemClock;
+
+import io.particle.android.sdk.devicesetup.SetupProcessException;
+import io.particle.android.sdk.devicesetup.setupsteps.SetupStep;
+import io.particle.android.sdk.devicesetup.setupsteps.SetupStepException;
+
+/**
+ * RetryingSetupStep
+ * Applies the session's RetryPolicy to one of the particle SetupSteps. The step runner retries a
+ * failed step straight away; this wrapper waits for the policy's backoff delay before the retry
+ * goes out, and ends the whole process once the policy says the phase should not be retried.
+ */
+class RetryingSetupStep extends SetupStep {
+
+    /**
+     * Implemented by steps that can be fulfilled by something other than their own attempts; the
+     * backoff ends as soon as that happens.
+     */
+    interface EarlyCompletion {
+
+        /**
+         * @param timeoutMillis
+         * @return true if the step got fulfilled meanwhile. May return false before the timeout.
+         */
+        boolean awaitCompletion(long timeoutMillis) throws InterruptedException;
+    }
+
+    private final SetupStep delegate;
+    private final ProvisioningPhase phase;
+    private final RetryPolicy retryPolicy;
+    private final long sessionStartedAt;
+    private final ProvisioningTimeline timeline;
+
+    private int failedAttempts = 0;
+
+    /**
+     * @param delegate
+     * @param phase
+     * @param retryPolicy
+     * @param sessionStartedAt SystemClock.elapsedRealtime() when the session started
+     * @param timeline every attempt is recorded here
+     */
+    RetryingSetupStep(SetupStep delegate, ProvisioningPhase phase, RetryPolicy retryPolicy,
+                      long sessionStartedAt, ProvisioningTimeline timeline) {
+        super(delegate.getStepConfig());
+        this.delegate = delegate;
+        this.phase = phase;
+        this.retryPolicy = retryPolicy;
+        this.sessionStartedAt = sessionStartedAt;
+        this.timeline = timeline;
+    }
+
+    @Override
+    protected void onRunStep() throws SetupStepException, SetupProcessException {
+        if (failedAttempts > 0) {
+            long delay = retryPolicy.getRetryDelayMillis(phase, failedAttempts,
+                    SystemClock.elapsedRealtime() - sessionStartedAt);
+            if (delay == RetryPolicy.STOP) {
+                throw new SetupProcessException("Giving up on " + phase + " after "
+                        + failedAttempts + " attempts", this);
+            }
+            try {
+                waitBeforeRetry(delay);
+            } catch (InterruptedException e) {
+                // the session has been cancelled
+                Thread.currentThread().interrupt();
+                throw new SetupProcessException("Interrupted while waiting to retry " + phase, this);
+            }
+        }
+
+        timeline.recordAttempt(phase);
+        ProvisioningTimeline.Span span = timeline.begin(phase, delegate.getClass().getSimpleName());
+        try {
+            delegate.runStep();
+            span.end(true);
+        } catch (SetupStepException e) {
+            failedAttempts++;
+            throw e;
+        } finally {
+            span.end(false);
+        }
+    }
+
+    private void waitBeforeRetry(long delay) throws InterruptedException {
+        long waitStartedAt = SystemClock.elapsedRealtime();
+        if (delegate instanceof EarlyCompletion
+                && ((EarlyCompletion) delegate).awaitCompletion(delay)) {
+            return;
+        }
+        long remaining = delay - (SystemClock.elapsedRealtime() - waitStartedAt);
+        if (remaining > 0) {
+            Thread.sleep(remaining);
+        }
+    }
+
+    @Override
+    public boolean isStepFulfilled() {
+        return delegate.isStepFulfilled();
+    }
+}
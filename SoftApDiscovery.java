@@ -0,0 +1,310 @@
+package com.ciklum.pigabstractionlayer.WifiProvisioning;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.ciklum.pigabstractionlayer.PiggyBank;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import io.particle.android.sdk.utils.WiFi;
+
+/**
+ * SoftApDiscovery
+ * Finds the Photons in listen mode around the phone from Wi-Fi scan results, so that the SoftAP SSID
+ * does not have to be known up front. Results are kept in a cache for a limited time and ranked by
+ * signal strength, minus a penalty for how long ago the device was last seen, so the strongest
+ * recently-seen device is provisioned first and weak or vanished ones come last.
+ *
+ * A new scan is only requested when the cache is older than the max age (Android throttles scans,
+ * and each one takes seconds). Its broadcast receiver is only registered while a scan is pending.
+ * While there is nothing to provision, setPeriodicRefresh() keeps refreshing the cache once per
+ * max age, so devices that are switched on later are still found.
+ *
+ * Reading scan results needs the location permission. All methods must be called, and the Listener
+ * is called, on the UI thread. Used by the ProvisioningScheduler (setDiscovery()).
+ */
+public class SoftApDiscovery {
+
+    private static final String TAG = "SoftApDiscovery";
+
+    // SSIDs of Photons in listen mode, e.g. "Photon-A1B2".
+    public static final Pattern DEFAULT_SSID_PATTERN = Pattern.compile("Photon-[A-Za-z0-9]{4,6}");
+    private static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.SECONDS.toMillis(15);
+    // Ranking penalty, in dBm, for each second since the device was last seen.
+    private static final int DBM_PER_SECOND_OF_AGE = 1;
+
+    /**
+     * Notified when a scan has added devices to the cache.
+     */
+    public interface Listener {
+
+        void onDevicesDiscovered();
+    }
+
+    /**
+     * A Photon seen in a scan.
+     */
+    public static class Device {
+
+        public final String softApSsid;
+        public final int rssi;
+        // SystemClock.elapsedRealtime() of the scan that last saw the device.
+        public final long seenAt;
+
+        Device(String softApSsid, int rssi, long seenAt) {
+            this.softApSsid = softApSsid;
+            this.rssi = rssi;
+            this.seenAt = seenAt;
+        }
+
+        int score(long now) {
+            long ageSeconds = Math.max(0, now - seenAt) / 1000;
+            return rssi - (int) (ageSeconds * DBM_PER_SECOND_OF_AGE);
+        }
+
+        @Override
+        public String toString() {
+            return softApSsid + " " + rssi + "dBm";
+        }
+    }
+
+    private final Context mContext;
+    private final WifiManager mWifiManager;
+    private final Handler mUiThreadHandler = new Handler(Looper.getMainLooper());
+
+    private final Map<String, Device> mDevices = new HashMap<String, Device>();
+    // Devices already handed out by next(); they are not offered again.
+    private final Set<String> mTaken = new HashSet<String>();
+    private Pattern mSsidPattern = DEFAULT_SSID_PATTERN;
+    private long mMaxAgeMillis = DEFAULT_MAX_AGE_MILLIS;
+    private long mLastScanAt = -1;
+    private BroadcastReceiver mScanReceiver;
+    private Listener mListener;
+    private final Runnable mPeriodicRefresh = new Runnable() {
+        @Override
+        public void run() {
+            refresh();
+            mUiThreadHandler.postDelayed(this, mMaxAgeMillis);
+        }
+    };
+    private boolean mRefreshingPeriodically;
+
+    public SoftApDiscovery(Context context) {
+        mContext = context.getApplicationContext();
+        mWifiManager = (WifiManager) mContext.getSystemService(Context.WIFI_SERVICE);
+    }
+
+    /**
+     * @param pattern which SSIDs are Photon SoftAPs; DEFAULT_SSID_PATTERN unless set
+     */
+    public void setSsidPattern(Pattern pattern) {
+        mSsidPattern = pattern;
+    }
+
+    /**
+     * How long scan results are used before a new scan is requested. A device that is no longer
+     * seen is dropped from the cache after twice that.
+     *
+     * @param maxAgeMillis
+     */
+    public void setMaxAgeMillis(long maxAgeMillis) {
+        mMaxAgeMillis = maxAgeMillis;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Requests a scan if the cache is stale; does nothing otherwise. The results that the system
+     * already has are read straight away.
+     */
+    public void refresh() {
+        long now = SystemClock.elapsedRealtime();
+        if (mLastScanAt >= 0 && now - mLastScanAt < mMaxAgeMillis) {
+            return;
+        }
+        mLastScanAt = now;
+        readScanResults();
+        if (mScanReceiver != null) {
+            return;
+        }
+        mScanReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                stopListening();
+                readScanResults();
+            }
+        };
+        mContext.registerReceiver(mScanReceiver,
+                new IntentFilter(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION));
+        if (!mWifiManager.startScan()) {
+            // throttled or Wi-Fi off; the cache is all there is until the next refresh
+            stopListening();
+        }
+    }
+
+    /**
+     * The devices in the cache that have not been handed out yet, best first. Refreshes the cache
+     * if it is stale.
+     *
+     * @return List
+     */
+    public List<Device> getRankedDevices() {
+        refresh();
+        final long now = SystemClock.elapsedRealtime();
+        List<Device> ranked = new ArrayList<Device>();
+        for (Device device : mDevices.values()) {
+            if (!mTaken.contains(device.softApSsid)) {
+                ranked.add(device);
+            }
+        }
+        Collections.sort(ranked, new Comparator<Device>() {
+            @Override
+            public int compare(Device lhs, Device rhs) {
+                return rhs.score(now) - lhs.score(now);
+            }
+        });
+        return ranked;
+    }
+
+    /**
+     * Hands out the best device that has not been handed out yet.
+     *
+     * @return the device's SoftAP SSID, or null if there is none in the cache
+     */
+    public String next() {
+        List<Device> ranked = getRankedDevices();
+        if (ranked.isEmpty()) {
+            return null;
+        }
+        String softApSsid = ranked.get(0).softApSsid;
+        mTaken.add(softApSsid);
+        if (PiggyBank.DEBUG) {
+            Log.d(TAG, "Next device " + ranked.get(0) + ", " + (ranked.size() - 1) + " more");
+        }
+        return softApSsid;
+    }
+
+    /**
+     * Lets next() offer the device again, e.g. to retry it after a failure.
+     *
+     * @param softApSsid
+     */
+    public void release(String softApSsid) {
+        mTaken.remove(softApSsid);
+    }
+
+    /**
+     * Refreshes the cache every max age while enabled, starting straight away. Scans take over the
+     * Wi-Fi radio, so this is only enabled while no device is being joined.
+     *
+     * @param enabled
+     */
+    public void setPeriodicRefresh(boolean enabled) {
+        if (enabled == mRefreshingPeriodically) {
+            return;
+        }
+        mRefreshingPeriodically = enabled;
+        if (enabled) {
+            mUiThreadHandler.post(mPeriodicRefresh);
+        } else {
+            mUiThreadHandler.removeCallbacks(mPeriodicRefresh);
+        }
+    }
+
+    /**
+     * Stops the periodic refresh and unregisters the scan receiver if a scan is pending.
+     */
+    public void stop() {
+        setPeriodicRefresh(false);
+        stopListening();
+    }
+
+    private void stopListening() {
+        if (mScanReceiver != null) {
+            mContext.unregisterReceiver(mScanReceiver);
+            mScanReceiver = null;
+        }
+    }
+
+    private void readScanResults() {
+        List<ScanResult> results;
+        try {
+            results = mWifiManager.getScanResults();
+        } catch (SecurityException e) {
+            Log.w(TAG, "No permission to read scan results");
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        boolean discovered = false;
+        if (results != null) {
+            for (ScanResult result : results) {
+                String ssid = WiFi.deQuotifySsid(result.SSID);
+                if (ssid == null || !mSsidPattern.matcher(ssid).matches()) {
+                    continue;
+                }
+                long seenAt = seenAt(result, now);
+                Device known = mDevices.get(ssid);
+                if (known != null && known.seenAt >= seenAt) {
+                    continue;
+                }
+                if (known == null && !mTaken.contains(ssid)) {
+                    discovered = true;
+                }
+                mDevices.put(ssid, new Device(ssid, result.level, seenAt));
+            }
+        }
+        evictOlderThan(now - 2 * mMaxAgeMillis);
+        if (discovered && mListener != null) {
+            // posted, since this may run inside a call from the listener's owner
+            mUiThreadHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mListener != null) {
+                        mListener.onDevicesDiscovered();
+                    }
+                }
+            });
+        }
+    }
+
+    private void evictOlderThan(long oldest) {
+        List<String> evicted = new ArrayList<String>();
+        for (Device device : mDevices.values()) {
+            if (device.seenAt < oldest) {
+                evicted.add(device.softApSsid);
+            }
+        }
+        for (String ssid : evicted) {
+            mDevices.remove(ssid);
+        }
+    }
+
+    private static long seenAt(ScanResult result, long now) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            // microseconds since boot, the same clock as SystemClock.elapsedRealtime()
+            return Math.min(now, TimeUnit.MICROSECONDS.toMillis(result.timestamp));
+        }
+        return now;
+    }
+}
@@ -0,0 +1,146 @@
+package com.ciklum.pigabstractionlayer.WifiProvisioning;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.ciklum.pigabstractionlayer.PiggyBank;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.Executor;
+
+/**
+ * SoftApReadinessProbe
+ * Once the phone has associated with the Photon's SoftAP, it still takes a moment until the device's
+ * command server accepts connections. Instead of sleeping for a fixed time, this probe repeatedly
+ * tries a short TCP connect to the command port and reports back as soon as one succeeds, or once
+ * the caller's upper bound has passed.
+ *
+ * The connect attempts block, so they run on the given executor; the handler's thread only
+ * schedules them and calls the listener.
+ */
+class SoftApReadinessProbe {
+
+    private static final String TAG = "SoftApReadinessProbe";
+
+    // Same address CommandClient.newClientUsingDefaultSocketAddress() talks to.
+    static final String DEFAULT_DEVICE_IP = "192.168.0.1";
+    static final int DEFAULT_DEVICE_PORT = 5609;
+
+    private static final int CONNECT_ATTEMPT_TIMEOUT_MILLIS = 250;
+    private static final long RETRY_INTERVAL_MILLIS = 100;
+
+    interface Listener {
+
+        void onSoftApReady();
+
+        void onSoftApReadyTimeout();
+    }
+
+    private final Handler handler;
+    private final Executor executor;
+    private final InterfaceBindingSocketFactoryDev socketFactory;
+    private final InetSocketAddress deviceAddress;
+    private final long timeoutMillis;
+
+    private Runnable attemptRunnable;
+    private volatile boolean cancelled;
+
+    SoftApReadinessProbe(Handler handler, Executor executor,
+                         InterfaceBindingSocketFactoryDev socketFactory, long timeoutMillis) {
+        this(handler, executor, socketFactory,
+                new InetSocketAddress(DEFAULT_DEVICE_IP, DEFAULT_DEVICE_PORT), timeoutMillis);
+    }
+
+    SoftApReadinessProbe(Handler handler, Executor executor,
+                         InterfaceBindingSocketFactoryDev socketFactory,
+                         InetSocketAddress deviceAddress, long timeoutMillis) {
+        this.handler = handler;
+        this.executor = executor;
+        this.socketFactory = socketFactory;
+        this.deviceAddress = deviceAddress;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Starts probing. Exactly one of the listener's methods is called, on the handler's thread.
+     *
+     * @param listener
+     */
+    void start(final Listener listener) {
+        final long startedAt = SystemClock.elapsedRealtime();
+        final long deadline = startedAt + timeoutMillis;
+
+        attemptRunnable = new Runnable() {
+            @Override
+            public void run() {
+                if (cancelled) {
+                    return;
+                }
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (cancelled) {
+                            return;
+                        }
+                        final boolean ready = canConnect();
+                        handler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                onAttemptFinished(ready, startedAt, deadline, listener);
+                            }
+                        });
+                    }
+                });
+            }
+        };
+        handler.post(attemptRunnable);
+    }
+
+    private void onAttemptFinished(boolean ready, long startedAt, long deadline, Listener listener) {
+        if (cancelled) {
+            return;
+        }
+        if (ready) {
+            if (PiggyBank.DEBUG) {
+                Log.d(TAG, "SoftAP ready after " + (SystemClock.elapsedRealtime() - startedAt) + "ms");
+            }
+            listener.onSoftApReady();
+        } else if (SystemClock.elapsedRealtime() + RETRY_INTERVAL_MILLIS < deadline) {
+            handler.postDelayed(attemptRunnable, RETRY_INTERVAL_MILLIS);
+        } else {
+            Log.d(TAG, "SoftAP did not accept connections within " + timeoutMillis + "ms");
+            listener.onSoftApReadyTimeout();
+        }
+    }
+
+    /**
+     * Stops probing without calling the listener.
+     */
+    void cancel() {
+        cancelled = true;
+        if (attemptRunnable != null) {
+            handler.removeCallbacks(attemptRunnable);
+        }
+    }
+
+    private boolean canConnect() {
+        Socket socket = null;
+        try {
+            socket = socketFactory.buildSocket(CONNECT_ATTEMPT_TIMEOUT_MILLIS);
+            socket.connect(deviceAddress, CONNECT_ATTEMPT_TIMEOUT_MILLIS);
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.ciklum.pigabstractionlayer.WifiProvisioning;
+
+import io.particle.android.sdk.devicesetup.SetupProcessException;
+import io.particle.android.sdk.devicesetup.setupsteps.SetupStep;
+import io.particle.android.sdk.devicesetup.setupsteps.SetupStepException;
+
+/**
+ * TokenRefreshingSetupStep
+ * Wraps one of the particle cloud steps (CheckIfDeviceClaimedStep) so that an access token the
+ * cloud rejects (401/403, e.g. revoked before its cached expiry) is dropped from the
+ * ParticleAccessTokenCache and fetched again, once per session. The failure is still thrown, so the
+ * step's next attempt goes out with the new token.
+ */
+class TokenRefreshingSetupStep extends SetupStep {
+
+    private final SetupStep delegate;
+    private final ParticleCloudAuthentication authentication;
+
+    TokenRefreshingSetupStep(SetupStep delegate, ParticleCloudAuthentication authentication) {
+        super(delegate.getStepConfig());
+        this.delegate = delegate;
+        this.authentication = authentication;
+    }
+
+    @Override
+    protected void onRunStep() throws SetupStepException, SetupProcessException {
+        try {
+            delegate.runStep();
+        } catch (SetupStepException e) {
+            if (ParticleCloudAuthentication.isTokenRejection(e)) {
+                authentication.refreshRejectedToken();
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean isStepFulfilled() {
+        return delegate.isStepFulfilled();
+    }
+}
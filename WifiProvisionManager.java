@@ -1,11 +1,11 @@
 package com.ciklum.pigabstractionlayer.WifiProvisioning;
 
 import android.content.Context;
+import android.net.ConnectivityManager;
 import android.net.wifi.WifiConfiguration;
-import android.os.AsyncTask;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.ciklum.pigabstractionlayer.PigInternal;
@@ -13,16 +13,30 @@ import com.ciklum.pigabstractionlayer.PiggyBank;
 import com.ciklum.pigabstractionlayer.PiggyBankException;
 import com.ciklum.pigabstractionlayer.R;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
 import java.security.PublicKey;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import io.particle.android.sdk.cloud.ParticleCloud;
-import io.particle.android.sdk.devicesetup.commands.CommandClient;
+import io.particle.android.sdk.devicesetup.commands.Command;
+import io.particle.android.sdk.devicesetup.commands.ConfigureApCommand;
+import io.particle.android.sdk.devicesetup.commands.ConnectAPCommand;
 import io.particle.android.sdk.devicesetup.commands.ScanApCommand;
+import io.particle.android.sdk.devicesetup.commands.data.WifiSecurity;
 import io.particle.android.sdk.devicesetup.setupsteps.CheckIfDeviceClaimedStep;
-import io.particle.android.sdk.devicesetup.setupsteps.ConfigureAPStep;
-import io.particle.android.sdk.devicesetup.setupsteps.ConnectDeviceToNetworkStep;
 import io.particle.android.sdk.devicesetup.setupsteps.EnsureSoftApNotVisible;
 import io.particle.android.sdk.devicesetup.setupsteps.SetupStep;
 import io.particle.android.sdk.devicesetup.setupsteps.SetupStepException;
@@ -30,6 +44,7 @@ import io.particle.android.sdk.devicesetup.setupsteps.StepConfig;
 import io.particle.android.sdk.devicesetup.setupsteps.WaitForCloudConnectivityStep;
 import io.particle.android.sdk.devicesetup.setupsteps.WaitForDisconnectionFromDeviceStep;
 import io.particle.android.sdk.devicesetup.ui.SuccessActivity;
+import io.particle.android.sdk.utils.Crypto;
 import io.particle.android.sdk.utils.SoftAPConfigRemover;
 
 import static io.particle.android.sdk.devicesetup.ui.ConnectToApFragment.buildUnsecuredConfig;
@@ -50,43 +65,67 @@ import static io.particle.android.sdk.utils.Py.list;
  *    device id and the public key. It also sends the generated claim token to the device. This
  *    is done by creating DiscoverProcessWorker object.
  *
- * 5. Once information is returned, it builds a list of 6 steps to send the wifi creds to the
- *    device. It runs through these 6 steps as defined in buildSteps() using the defined AsyncTask
- *    in ConnectingProcessWorkerTask.
+ * 5. Once information is returned, it builds a graph of 6 steps to send the wifi creds to the
+ *    device. It runs through these 6 steps as defined in buildSteps() using the ParallelStepRunner
+ *    in ConnectingProcessWorkerTask; steps that do not depend on each other run at the same time.
  *
  *
- *  All task will be launched on the background thread. All WifiProvisioningCallbacks will be launched
- *  on the UI thread.
+ *  All task will be launched on the library's shared threads (ProvisioningExecutors). All
+ *  WifiProvisioningCallbacks will be launched on the callback executor, the UI thread by default.
+ *  provisionAsync() returns the outcome as a ProvisioningFuture instead.
  **/
 public class WifiProvisionManager implements ConnectToAp.Client {
 
+    /**
+     * Notified once the phone has left the device's SoftAP for good, i.e. the Wi-Fi radio is free
+     * for another session. Used by the ProvisioningScheduler.
+     */
+    interface SoftApPhaseListener {
+
+        void onSoftApPhaseFinished(WifiProvisionManager session);
+    }
+
     private final String TAG = "WifiProvisionManager";
-    private static final int MAX_RETRIES_CONFIGURE_AP = 5;
-    private static final int MAX_RETRIES_CONNECT_AP = 5;
-    private static final int MAX_RETRIES_DISCONNECT_FROM_DEVICE = 5;
-    private static final int MAX_RETRIES_CLAIM = 5;
-    private static final int MAX_NUM_DISCOVER_PROCESS_ATTEMPTS = 4;
-    private static final long CONNECT_TO_DEVICE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(20);
-    private static final long MAX_NUM_COMMUNICATION_ATTEMPTS = 5;
-    private static SoftAPConfigRemover softAPConfigRemover;
-
-    private HandlerThread mHandlerThread;
+    private static final long DEFAULT_SOFT_AP_READY_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    // ConfigureAPStep and ConnectDeviceToNetworkStep talk to the device over its SoftAP.
+    private static final int STEPS_NEEDING_SOFT_AP = 2;
+    // The phase of each step built by buildSteps(), in order.
+    private static final List<ProvisioningPhase> PHASES_OF_STEPS = list(
+            ProvisioningPhase.CONFIGURE_AP,
+            ProvisioningPhase.CONNECT_DEVICE_TO_NETWORK,
+            ProvisioningPhase.WAIT_FOR_DISCONNECTION,
+            ProvisioningPhase.ENSURE_SOFT_AP_NOT_VISIBLE,
+            ProvisioningPhase.WAIT_FOR_CLOUD_CONNECTIVITY,
+            ProvisioningPhase.CHECK_DEVICE_CLAIMED
+    );
+
+    // Runs on one of the shared ProvisioningExecutors session loopers.
     private Handler mHandler;
     protected WifiProvisionCallback mCallback;
     private ParticleCloudAuthentication mParticleCloudAuthentication;
-    private CommandClient mClient;
+    private volatile CommandSession mCommandSession;
+    // Always the application context; the session can outlive the Activity that started it.
     private Context mContext;
+    // Remembers the SoftAP configurations this session added, so they can be removed again.
+    private SoftAPConfigRemover mSoftApConfigRemover;
     private String mUserEmail;
     private DiscoverProcessWorker mDiscoverProcessWorker;
 
     private Handler mUiThreadHandler;
+    // Receives every WifiProvisionCallback and ProvisioningListener.onSessionFinished call.
+    private Executor mCallbackExecutor;
+    private final Map<ProvisioningPhase, ProvisioningFuture<ProvisioningPhase>> mPhaseFutures =
+            new EnumMap<ProvisioningPhase, ProvisioningFuture<ProvisioningPhase>>(ProvisioningPhase.class);
+    private final Set<ProvisioningPhase> mCompletedPhases = EnumSet.noneOf(ProvisioningPhase.class);
 
-    private boolean getDeviceInfoSuccess = false;
-    private boolean inApConnectionSuccess = false;
+    private volatile boolean getDeviceInfoSuccess = false;
+    private volatile boolean inApConnectionSuccess = false;
 
     public volatile String mPreviouslyConnectedWifiNetwork;
     public volatile String mClaimCode;
     public volatile PublicKey mPublicKey;
+    // true while mPublicKey came from the DeviceIdentityCache rather than from the device
+    volatile boolean mPublicKeyFromCache;
     public volatile String mDeviceToBeSetUpId;
     public boolean mNeedToClaimDevice;
 
@@ -94,11 +133,51 @@ public class WifiProvisionManager implements ConnectToAp.Client {
     protected int mGetDeviceInfoAttempts = 0;
     public ScanApCommand.Scan mNetworkToConnectTo;
     public String mNetworkSecretPlaintext;
+    // The secret encrypted with mEncryptedSecretKey, started by encryptCredentialsAhead().
+    private volatile Future<String> mEncryptedSecret;
+    private volatile PublicKey mEncryptedSecretKey;
     public String mDeviceSoftApSsid;
+    // Where the device's command server listens once the phone has joined its SoftAP.
+    InetSocketAddress mDeviceAddress = CommandSession.defaultDeviceAddress();
 
     protected String mParticleAccessToken;
     protected ParticleCloud mParticleCloud;
 
+    private long mSoftApReadyTimeoutMillis = DEFAULT_SOFT_AP_READY_TIMEOUT_MILLIS;
+    private boolean mCloudEventStreamEnabled = false;
+    // Authentication and claim code running alongside the SoftAP phase; null if they ran before it.
+    private volatile Future<?> mCloudAuth;
+    private DeviceEventStream mDeviceEventStream;
+
+    private RetryPolicy mRetryPolicy = ExponentialBackoffRetryPolicy.newBuilder().build();
+    private long mSessionStartedAt;
+
+    private ProvisioningListener mProvisioningListener;
+    private volatile ProvisioningTimeline mTimeline;
+
+    private SoftApPhaseListener mSoftApPhaseListener;
+    private volatile boolean mSoftApPhaseFinished = false;
+
+    // Everything that has to be torn down when the session is cancelled.
+    private volatile boolean mCancelled = false;
+    // Set once by whichever of success, failure or cancel() ends the session first.
+    private final AtomicBoolean mEnded = new AtomicBoolean(false);
+    private Runnable mDeadlineRunnable;
+    private volatile ConnectToAp mConnectToAp;
+    private volatile SoftApReadinessProbe mReadinessProbe;
+    private volatile InterfaceBindingSocketFactoryDev mSocketFactory;
+    private volatile ConnectingProcessWorkerTask mConnectingProcessWorkerTask;
+
+    // Progress of the session, saved after every completed phase so it can be resumed.
+    private DeviceIdentityCache mDeviceIdentityCache;
+
+    private String mSessionId;
+    private ProvisioningCheckpointStore mCheckpointStore;
+    private ProvisioningCheckpointStore.Checkpoint mCheckpoint;
+    // Which of the steps built by buildSteps() are fulfilled.
+    private boolean[] mStepsFulfilled;
+    public volatile String mPublicKeyHex;
+
 
 
     /**
@@ -107,37 +186,575 @@ public class WifiProvisionManager implements ConnectToAp.Client {
      * @param email
      * @param context
      * @param callback
+     * @return a handle that can cancel the session
+     */
+
+    public ProvisioningHandle start(String email, Context context, WifiProvisionCallback callback) {
+        return start(email, context, callback, 0);
+    }
+
+    /**
+     * Same as start(email, context, callback), but the session is cancelled if it has not finished
+     * by the given deadline.
+     *
+     * @param email
+     * @param context
+     * @param callback
+     * @param deadlineMillis absolute deadline (System.currentTimeMillis() time base), or 0 for none
+     * @return a handle that can cancel the session
+     */
+    public ProvisioningHandle start(String email, Context context, WifiProvisionCallback callback,
+                                    long deadlineMillis) {
+
+        mSessionId = UUID.randomUUID().toString();
+        mCheckpoint = new ProvisioningCheckpointStore.Checkpoint();
+        mCheckpoint.userEmail = email;
+        mCheckpoint.softApSsid = mDeviceSoftApSsid;
+        mCheckpoint.networkToConnectTo = mNetworkToConnectTo;
+
+        startSession(email, context, callback, deadlineMillis);
+        return new ProvisioningHandle(this);
+    }
+
+    /**
+     * Same as start(email, context, callback), for callers that prefer a future to a callback. The
+     * future completes with the pig, or fails with the reason provisioning failed; cancelling it
+     * cancels the session. Per-phase stages are available from whenPhaseCompleted().
+     *
+     * @param email
+     * @param context
+     * @param callbackExecutor runs the session's callbacks and completes the future
+     * @return ProvisioningFuture
+     */
+    public ProvisioningFuture<PiggyBank> provisionAsync(String email, Context context,
+                                                       Executor callbackExecutor) {
+        final ProvisioningFuture<PiggyBank> future = new ProvisioningFuture<PiggyBank>(new Runnable() {
+            @Override
+            public void run() {
+                cancel(new PiggyBankException("Wifi provisioning was cancelled"));
+            }
+        });
+        setCallbackExecutor(callbackExecutor);
+        start(email, context, new WifiProvisionCallback() {
+            @Override
+            public void onTwoLeggedAuth() {
+            }
+
+            @Override
+            public void onSoftApConnected() {
+            }
+
+            @Override
+            public void onDeviceInfoReturned() {
+            }
+
+            @Override
+            public void onSuccess(PiggyBank pig) {
+                future.complete(pig);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                future.fail(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * A stage completing when the session has got through the phase, or failing with the session's
+     * error. Phases a resumed session had already completed are complete straight away; phases
+     * that are not reported on their own (e.g. the individual setup steps) complete when the
+     * session succeeds.
+     *
+     * @param phase
+     * @return ProvisioningFuture
+     */
+    public synchronized ProvisioningFuture<ProvisioningPhase> whenPhaseCompleted(ProvisioningPhase phase) {
+        ProvisioningFuture<ProvisioningPhase> future = mPhaseFutures.get(phase);
+        if (future == null) {
+            future = new ProvisioningFuture<ProvisioningPhase>();
+            mPhaseFutures.put(phase, future);
+            if (mCompletedPhases.contains(phase)) {
+                future.complete(phase);
+            }
+        }
+        return future;
+    }
+
+    /**
+     * Resumes a session that previously failed, from its first incomplete phase, using the
+     * checkpoint saved under its session id (see ProvisioningHandle.getSessionId()). The device id,
+     * public key, claim code, target network and step progress are restored; the Wi-Fi password is
+     * not stored, so mNetworkSecretPlaintext must be set again if the device has not been
+     * configured yet.
+     *
+     * @param sessionId
+     * @param context
+     * @param callback
+     * @return a handle that can cancel the session
+     * @throws PiggyBankException if there is no checkpoint for the session, or it has expired
+     */
+    public ProvisioningHandle resume(String sessionId, Context context, WifiProvisionCallback callback)
+            throws PiggyBankException {
+        ProvisioningCheckpointStore store = new ProvisioningCheckpointStore(context);
+        store.purgeExpired();
+        ProvisioningCheckpointStore.Checkpoint checkpoint = store.load(sessionId);
+        if (checkpoint == null) {
+            throw new PiggyBankException("There is no saved wifi provisioning session " + sessionId);
+        }
+
+        mSessionId = sessionId;
+        mCheckpoint = checkpoint;
+        mDeviceSoftApSsid = checkpoint.softApSsid;
+        mNetworkToConnectTo = checkpoint.networkToConnectTo;
+        mNeedToClaimDevice = checkpoint.needToClaimDevice;
+        if (checkpoint.isComplete(ProvisioningPhase.CLAIM_CODE)) {
+            mClaimCode = checkpoint.claimCode;
+        }
+        if (checkpoint.isComplete(ProvisioningPhase.DISCOVER_DEVICE)) {
+            try {
+                mPublicKey = Crypto.readPublicKeyFromHexEncodedDerString(checkpoint.publicKeyHex);
+                mPublicKeyHex = checkpoint.publicKeyHex;
+                mDeviceToBeSetUpId = checkpoint.deviceId;
+            } catch (Crypto.CryptoException e) {
+                // discover the device again
+                checkpoint.completedPhase = ProvisioningPhase.CLAIM_CODE;
+                checkpoint.completedSteps = 0;
+            }
+        }
+
+        if (PiggyBank.DEBUG) {
+            Log.d(TAG, "Resuming session " + sessionId + " after " + checkpoint.completedPhase
+                    + ", " + checkpoint.completedSteps + " steps done");
+        }
+        startSession(checkpoint.userEmail, context, callback, 0);
+        return new ProvisioningHandle(this);
+    }
+
+    /**
+     * @param context
+     * @return the ids of the sessions that failed or were cancelled and can still be resumed
+     */
+    public static List<String> getResumableSessionIds(Context context) {
+        ProvisioningCheckpointStore store = new ProvisioningCheckpointStore(context);
+        store.purgeExpired();
+        return store.getSessionIds();
+    }
+
+    /**
+     * Drops the checkpoint of a session, which then can no longer be resumed.
+     *
+     * @param context
+     * @param sessionId
      */
+    public static void discardSession(Context context, String sessionId) {
+        new ProvisioningCheckpointStore(context).delete(sessionId);
+    }
 
-    public void start(String email, Context context, WifiProvisionCallback callback) {
+    /**
+     * Drops the checkpoints of every session.
+     *
+     * @param context
+     */
+    public static void discardAllSessions(Context context) {
+        new ProvisioningCheckpointStore(context).clear();
+    }
+
+    private void startSession(String email, Context context, WifiProvisionCallback callback,
+                              long deadlineMillis) {
 
         // Configure the handlers.
-        mHandlerThread = new HandlerThread("WifiProvision");
-        mHandlerThread.start();
-        mHandler = new Handler(mHandlerThread.getLooper());
+        mHandler = new Handler(ProvisioningExecutors.nextSessionLooper());
         mUiThreadHandler = new Handler(Looper.getMainLooper());
+        if (mCallbackExecutor == null) {
+            mCallbackExecutor = ProvisioningExecutors.mainThread();
+        }
 
         // Initialize fields.
-        mContext = context;
+        mContext = context.getApplicationContext();
+        mSoftApConfigRemover = new SoftAPConfigRemover(mContext);
         mCallback = callback;
         mUserEmail = email;
+        mSessionStartedAt = SystemClock.elapsedRealtime();
+        mTimeline = new ProvisioningTimeline(mProvisioningListener);
+        mCheckpointStore = new ProvisioningCheckpointStore(mContext);
+        mCheckpointStore.purgeExpired();
+        mDeviceIdentityCache = DeviceIdentityCache.get(mContext);
+        for (ProvisioningPhase phase : ProvisioningPhase.values()) {
+            if (mCheckpoint.isComplete(phase)) {
+                onPhaseCompleted(phase);
+            }
+        }
+
+        // Get the connection to the cloud going while the handler thread spins up, and fill the
+        // claim code pool for the next sessions while the phone is still online.
+        ParticleCloudTransport.get().prewarm();
+        warmUpClaimCodes(mContext, mUserEmail);
+
+        if (deadlineMillis > 0) {
+            mDeadlineRunnable = new Runnable() {
+                @Override
+                public void run() {
+                    cancel(new PiggyBankException("Wifi provisioning did not finish before its deadline"));
+                }
+            };
+            mUiThreadHandler.postDelayed(mDeadlineRunnable,
+                    Math.max(0, deadlineMillis - System.currentTimeMillis()));
+        }
 
         // This call starts the actual provisioning process.
         particleCloudAuth(mUserEmail);
     }
 
     /**
-     * Private method that stops the thread.
+     * Starts encrypting the Wi-Fi secret with the device's public key on a background thread, so
+     * that the RSA operation overlaps with the rest of discovery instead of delaying
+     * ConfigureAp. Called by the DiscoverProcessWorker as soon as the key is known; does nothing
+     * if the secret is already being encrypted with this key.
+     */
+    void encryptCredentialsAhead() {
+        final String secret = mNetworkSecretPlaintext;
+        final PublicKey key = mPublicKey;
+        if (secret == null || key == null || key == mEncryptedSecretKey) {
+            return;
+        }
+        mEncryptedSecretKey = key;
+        mEncryptedSecret = ProvisioningExecutors.background().submit(new Callable<String>() {
+            @Override
+            public String call() throws Crypto.CryptoException {
+                return Crypto.encryptAndEncodeToHex(secret, key);
+            }
+        });
+    }
+
+    /**
+     * @return the Wi-Fi secret encrypted with the current public key, waiting for the background
+     * encryption if it is still running, or encrypting it here if the key has changed since
+     */
+    private String getEncryptedSecret() throws Crypto.CryptoException {
+        Future<String> encryptedSecret = mEncryptedSecret;
+        PublicKey key = mPublicKey;
+        if (encryptedSecret != null && mEncryptedSecretKey == key) {
+            try {
+                return encryptedSecret.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Crypto.CryptoException) {
+                    throw (Crypto.CryptoException) e.getCause();
+                }
+                Log.d(TAG, "Background encryption failed, encrypting again", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return Crypto.encryptAndEncodeToHex(mNetworkSecretPlaintext, key);
+    }
+
+    DeviceIdentityCache getDeviceIdentityCache() {
+        return mDeviceIdentityCache;
+    }
+
+    /**
+     * Sets the manager up to talk to a device over the given CommandSession without start(): no
+     * SoftAP is joined and nothing is sent to the cloud, so mClaimCode has to be set by the
+     * caller. The session is checkpointed and uses the DeviceIdentityCache as a started one does.
+     * Used by ProvisioningBenchmark to drive getDiscoverProcessWorker() and buildDeviceSteps()
+     * against a PhotonSoftApSimulator.
+     *
+     * @param context
+     * @param session
+     */
+    void attachCommandSession(Context context, CommandSession session) {
+        mContext = context.getApplicationContext();
+        mSessionId = UUID.randomUUID().toString();
+        mCheckpoint = new ProvisioningCheckpointStore.Checkpoint();
+        mCheckpointStore = new ProvisioningCheckpointStore(mContext);
+        mDeviceIdentityCache = DeviceIdentityCache.get(mContext);
+        mSessionStartedAt = SystemClock.elapsedRealtime();
+        mTimeline = new ProvisioningTimeline(mProvisioningListener);
+        mCommandSession = session;
+        mDiscoverProcessWorker = new DiscoverProcessWorker(session, this);
+    }
+
+    DiscoverProcessWorker getDiscoverProcessWorker() {
+        return mDiscoverProcessWorker;
+    }
+
+    /**
+     * The steps that need the device's SoftAP (configure-ap and connect-ap), built and wrapped
+     * exactly as buildSteps() does for a session. See attachCommandSession().
+     *
+     * @return ParallelStepRunner
+     */
+    ParallelStepRunner buildDeviceSteps() {
+        return buildSteps(mContext, STEPS_NEEDING_SOFT_AP);
+    }
+
+    /**
+     * @return the id under which this session's progress is checkpointed, for resume()
+     */
+    public String getSessionId() {
+        return mSessionId;
+    }
+
+    /**
+     * Replaces the policy that decides how often and how soon each phase is retried, and the
+     * overall session deadline. Must be called before start().
+     *
+     * @param retryPolicy
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        mRetryPolicy = retryPolicy;
+    }
+
+    /**
+     * Sets the Executor that receives the WifiProvisionCallback calls and
+     * ProvisioningListener.onSessionFinished. Defaults to the UI thread. Must be called before
+     * start().
+     *
+     * @param executor
+     */
+    public void setCallbackExecutor(Executor executor) {
+        mCallbackExecutor = executor;
+    }
+
+    /**
+     * Sets an optional listener that receives the timing of every phase of the session, and the
+     * complete ProvisioningTimeline on success or failure. Must be called before start().
+     *
+     * @param listener
+     */
+    public void setProvisioningListener(ProvisioningListener listener) {
+        mProvisioningListener = listener;
+    }
+
+    /**
+     * @return the timeline of the current (or last) session, or null before start()
+     */
+    public ProvisioningTimeline getTimeline() {
+        return mTimeline;
+    }
+
+    /**
+     * Sets the longest time to wait for the device's command server to accept connections after
+     * joining its SoftAP. Discovery starts as soon as it does; once this bound is reached,
+     * discovery is attempted regardless.
+     *
+     * @param timeoutMillis
+     */
+    public void setSoftApReadyTimeoutMillis(long timeoutMillis) {
+        mSoftApReadyTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * When enabled, the session subscribes to the customer's Particle event stream once the phone
+     * has left the SoftAP, and the cloud connectivity and claim checks complete as soon as the
+     * device's first event arrives. The polling checks remain as the fallback. Must be called
+     * before start().
+     *
+     * @param enabled
+     */
+    public void setCloudEventStreamEnabled(boolean enabled) {
+        mCloudEventStreamEnabled = enabled;
+    }
+
+    /**
+     * Sends the library's cloud calls over the network the selector picks, e.g. a
+     * CellularNetworkSelector. When it has a network at the start of the session, authentication
+     * and the claim code are fetched while the phone joins the device's SoftAP instead of before,
+     * and the device event stream connects before the phone has left the SoftAP. The selector
+     * belongs to the process-wide ParticleCloudTransport, so it applies to every session. Must be
+     * called before the sessions are started.
+     *
+     * @param selector
+     */
+    public static void setCloudNetworkSelector(CloudNetworkSelector selector) {
+        ParticleCloudTransport.setNetworkSelector(selector);
+    }
+
+    void setSoftApPhaseListener(SoftApPhaseListener listener) {
+        mSoftApPhaseListener = listener;
+    }
+
+    /**
+     * Sets how many claim codes are generated ahead of time while the phone is online. Operators
+     * provisioning many devices in a row can raise this so that a session can still start when the
+     * internet connection drops for a moment. Set to 0 to disable pooling.
+     *
+     * @param size
+     */
+    public static void setClaimCodePoolSize(int size) {
+        ClaimCodePool.get().setTargetSize(size);
+    }
+
+    /**
+     * Generates the pooled claim codes for the customer in the background, as soon as the phone can
+     * reach the cloud (waiting for it for a while if it cannot yet). Sessions take their claim code
+     * just before joining the device's SoftAP, so apps can call this when the phone comes online,
+     * e.g. before the first session or after the phone has rejoined its own network.
+     *
+     * @param context
+     * @param email the customer's email
+     */
+    public static void warmUpClaimCodes(Context context, String email) {
+        ParticleCloudAuthentication.warmUpClaimCodes(context, email);
+    }
+
+    /**
+     * Sets how long a pre-generated claim code is considered usable before it is dropped.
+     *
+     * @param maxAgeMillis
+     */
+    public static void setClaimCodeMaxAge(long maxAgeMillis) {
+        ClaimCodePool.get().setMaxAgeMillis(maxAgeMillis);
+    }
+
+    /**
+     * Ends the session: releases the SoftAP join (and its broadcast receiver), the sockets, the
+     * network callbacks and this session's pending handler work. Nothing registered by the session
+     * outlives it.
      */
     private void stop() {
-        mHandlerThread.quitSafely();
+        ConnectToAp connectToAp = mConnectToAp;
+        if (connectToAp != null) {
+            connectToAp.cancel(mContext);
+            mConnectToAp = null;
+        }
+        SoftApReadinessProbe probe = mReadinessProbe;
+        if (probe != null) {
+            probe.cancel();
+            mReadinessProbe = null;
+        }
+        closeCommandSession();
+        DeviceEventStream eventStream = mDeviceEventStream;
+        if (eventStream != null) {
+            eventStream.close();
+        }
+        InterfaceBindingSocketFactoryDev socketFactory = mSocketFactory;
+        if (socketFactory != null) {
+            socketFactory.release();
+        }
+        if (mDeadlineRunnable != null) {
+            mUiThreadHandler.removeCallbacks(mDeadlineRunnable);
+        }
+        // The looper is shared with other sessions; only this session's work is dropped.
+        mHandler.removeCallbacksAndMessages(null);
+        mConnectingProcessWorkerTask = null;
     }
 
     /**
-     * Called at the end of a successful provisioning process.
+     * Aborts the session: drops all pending handler work, closes the sockets to the device so that
+     * blocked reads return, stops the step runner and restores the phone's Wi-Fi configuration.
+     * The callback's onFailure is called with the given reason.
+     *
+     * @param reason
      */
-    public void wifiProvisionSucceeded(){
+    void cancel(final Exception reason) {
+        if (!mEnded.compareAndSet(false, true)) {
+            return;
+        }
+        mCancelled = true;
+        Log.d(TAG, "Cancelling wifi provisioning: " + reason.getMessage());
+
+        mHandler.removeCallbacksAndMessages(null);
+
+        ConnectToAp connectToAp = mConnectToAp;
+        if (connectToAp != null) {
+            connectToAp.cancel(mContext);
+        }
+        InterfaceBindingSocketFactoryDev socketFactory = mSocketFactory;
+        if (socketFactory != null) {
+            socketFactory.closeAllSockets();
+        }
+        ConnectingProcessWorkerTask task = mConnectingProcessWorkerTask;
+        if (task != null) {
+            task.cancel();
+        }
+
+        if (!mSoftApPhaseFinished) {
+            removeSoftApConfigs();
+        }
         stop();
+
+        mCallbackExecutor.execute(new Runnable() {
+            public void run() {
+                mCallback.onFailure(reason);
+            }
+        });
+        finishTimeline(reason);
+    }
+
+    boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * @return true once the session has succeeded, failed or been cancelled
+     */
+    boolean isEnded() {
+        return mEnded.get();
+    }
+
+    /**
+     * Posts to the session's handler unless the session has ended; the runnable is dropped as well
+     * if the session ends before it runs. stop() only removes what was posted before it.
+     */
+    private void postToSession(final Runnable runnable, long delayMillis) {
+        if (isEnded()) {
+            return;
+        }
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (!isEnded()) {
+                    runnable.run();
+                }
+            }
+        }, delayMillis);
+    }
+
+    /**
+     * Runs blocking work (cloud calls, talking to the device) on the background pool, so that the
+     * session loopers, which are shared by all sessions, only sequence them. Dropped if the session
+     * has ended by the time it runs.
+     *
+     * Work waiting on awaitCloudAuth() cannot starve the pool: the authentication it waits for was
+     * submitted first, and the pool runs its queue in order.
+     */
+    private void runOffSession(final Runnable work) {
+        if (isEnded()) {
+            return;
+        }
+        ProvisioningExecutors.background().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!isEnded()) {
+                    work.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Called at the end of a successful provisioning process; hands the pig to the callback.
+     *
+     * @param pig
+     */
+    public void wifiProvisionSucceeded(final PiggyBank pig){
+        if (!mEnded.compareAndSet(false, true)) {
+            return;
+        }
+        if (mDeviceToBeSetUpId != null) {
+            mDeviceIdentityCache.rememberProvisioned(mDeviceToBeSetUpId, mNetworkToConnectTo);
+        }
+        stop();
+        mCheckpointStore.delete(mSessionId);
+        mCallbackExecutor.execute(new Runnable() {
+            public void run() {
+                mCallback.onSuccess(pig);
+            }
+        });
+        finishTimeline(null);
     }
 
     /**
@@ -145,15 +762,51 @@ public class WifiProvisionManager implements ConnectToAp.Client {
      * @param exception
      */
     public void wifiProvisionFailed(final Exception exception) {
+        if (!mEnded.compareAndSet(false, true)) {
+            // cancel() or an earlier failure has already cleaned up and reported it
+            return;
+        }
         reset();
-        resetSoftAp(mContext);
+        // Once the phone has left this device's SoftAP another session may already be joining the
+        // next device, so the Wi-Fi configuration is left alone.
+        if (!mSoftApPhaseFinished) {
+            removeSoftApConfigs();
+        }
         stop();
         final PiggyBankException piggyBankException = new PiggyBankException(exception.getMessage());
-        mUiThreadHandler.post(new Runnable() {
+        mCallbackExecutor.execute(new Runnable() {
             public void run() {
                 mCallback.onFailure(piggyBankException);
             }
         });
+        finishTimeline(piggyBankException);
+    }
+
+    /**
+     * Closes the session's timeline, adds it to the process-wide ProvisioningStats and hands it to
+     * the ProvisioningListener, if there is one. Only the first call per session has an effect.
+     *
+     * @param error null if provisioning succeeded
+     */
+    void finishTimeline(final Exception error) {
+        final ProvisioningTimeline timeline = mTimeline;
+        if (timeline == null || !timeline.finish(error == null)) {
+            return;
+        }
+        finishPhaseFutures(error);
+        ProvisioningStats.get().record(timeline);
+        if (PiggyBank.DEBUG) {
+            Log.d(TAG, timeline.toString());
+        }
+        final ProvisioningListener listener = mProvisioningListener;
+        if (listener != null) {
+            mCallbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onSessionFinished(timeline, error);
+                }
+            });
+        }
     }
 
 
@@ -164,21 +817,36 @@ public class WifiProvisionManager implements ConnectToAp.Client {
      * @param userEmail
      */
     public void particleCloudAuth(final String userEmail){
-        mHandler.post(new Runnable() {
+        runOffSession(new Runnable() {
             public void run() {
                 try {
-                    mParticleCloudAuthentication = new ParticleCloudAuthentication(WifiProvisionManager.this);
-                    mParticleCloudAuthentication.particleCloudLogin(userEmail);
-                    mParticleCloudAuthentication.setClaimToken();
-
-                    mUiThreadHandler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            mCallback.onTwoLeggedAuth();
-                        }
-                    });
+                    if (mCheckpoint.completedSteps < STEPS_NEEDING_SOFT_AP
+                            && ParticleCloudTransport.selectedNetwork() != null) {
+                        // The cloud stays reachable over the selected network while the phone is
+                        // on the SoftAP; DiscoverProcessWorker waits for the claim code.
+                        mCloudAuth = ProvisioningExecutors.background().submit(new Callable<Void>() {
+                            @Override
+                            public Void call() throws Exception {
+                                // A failure is reported by awaitCloudAuth(), on the session's
+                                // thread, so discovery cannot race it.
+                                authenticate(userEmail);
+                                return null;
+                            }
+                        });
+                        connectToSoftAp(mContext);
+                        return;
+                    }
 
-                    connectToSoftAp(mContext);
+                    authenticate(userEmail);
+
+                    if (mCheckpoint.completedSteps >= STEPS_NEEDING_SOFT_AP) {
+                        // The device already has its credentials; only the cloud side is left.
+                        getDeviceInfoSuccess = true;
+                        onSoftApPhaseFinished();
+                        connectDeviceToNetwork(mContext);
+                    } else {
+                        connectToSoftAp(mContext);
+                    }
 
                 } catch (Exception e) {
                     wifiProvisionFailed(e);
@@ -187,6 +855,107 @@ public class WifiProvisionManager implements ConnectToAp.Client {
         });
     }
 
+    /**
+     * Logs in and takes a claim code, unless a resumed session already has one.
+     */
+    private void authenticate(String userEmail) throws PiggyBankException {
+        mParticleCloudAuthentication = new ParticleCloudAuthentication(WifiProvisionManager.this, mContext);
+
+        mTimeline.recordAttempt(ProvisioningPhase.AUTH);
+        ProvisioningTimeline.Span authSpan = mTimeline.begin(ProvisioningPhase.AUTH, "particleCloudLogin");
+        try {
+            mParticleCloudAuthentication.particleCloudLogin(userEmail);
+            authSpan.end(true);
+        } finally {
+            authSpan.end(false);
+        }
+        onPhaseCompleted(ProvisioningPhase.AUTH);
+
+        // A resumed session has already handed its claim code to the device.
+        if (!mCheckpoint.isComplete(ProvisioningPhase.CLAIM_CODE)) {
+            takeClaimCode();
+            mCheckpoint.claimCode = mClaimCode;
+            saveCheckpoint(ProvisioningPhase.CLAIM_CODE);
+        }
+
+        if (isEnded()) {
+            // cancelled while the cloud was answering; the callback has already had onFailure
+            return;
+        }
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mCallback.onTwoLeggedAuth();
+            }
+        });
+    }
+
+    /**
+     * Takes a claim code from the cloud, retrying the CLAIM_CODE phase as the retry policy says.
+     * Runs off the session looper, so it waits between attempts on the calling thread; a throttling
+     * cloud is not asked again before its Retry-After has passed.
+     *
+     * @throws PiggyBankException if the retry policy gave up or the session ended meanwhile
+     */
+    private void takeClaimCode() throws PiggyBankException {
+        int failedAttempts = 0;
+        while (true) {
+            mTimeline.recordAttempt(ProvisioningPhase.CLAIM_CODE);
+            ProvisioningTimeline.Span claimCodeSpan = mTimeline.begin(ProvisioningPhase.CLAIM_CODE, "setClaimToken");
+            IOException error;
+            try {
+                mParticleCloudAuthentication.setClaimToken();
+                claimCodeSpan.end(true);
+                return;
+            } catch (IOException e) {
+                error = e;
+            } finally {
+                claimCodeSpan.end(false);
+            }
+
+            failedAttempts++;
+            Log.d(TAG, "Could not take a claim code", error);
+            long delay = mRetryPolicy.getRetryDelayMillis(ProvisioningPhase.CLAIM_CODE,
+                    failedAttempts, getSessionElapsedMillis());
+            if (delay == RetryPolicy.STOP || isEnded()) {
+                throw new PiggyBankException("Could not get a claim code from the Particle cloud: "
+                        + error.getMessage());
+            }
+            delay = Math.max(delay, ParticleCloudAuthentication.getRetryAfterMillis(error));
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new PiggyBankException("Interrupted while waiting for the cloud");
+            }
+        }
+    }
+
+    /**
+     * Waits for the authentication started alongside the SoftAP phase, if there is one. If it
+     * failed, the session is failed here; an auth error is not retried by discovery.
+     *
+     * @throws PiggyBankException if it failed; the session has then already been failed
+     */
+    void awaitCloudAuth() throws PiggyBankException {
+        Future<?> cloudAuth = mCloudAuth;
+        if (cloudAuth == null) {
+            return;
+        }
+        PiggyBankException error;
+        try {
+            cloudAuth.get();
+            return;
+        } catch (ExecutionException e) {
+            error = new PiggyBankException(e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            error = new PiggyBankException("Interrupted while waiting for the cloud");
+        }
+        wifiProvisionFailed(error);
+        throw error;
+    }
+
     /**
      * STEP 2:
      * This method attempts to connect the android device to the network broadcast by the Photon.
@@ -196,7 +965,12 @@ public class WifiProvisionManager implements ConnectToAp.Client {
      * @param context
      */
     public void connectToSoftAp(final Context context) {
-        connectToSoftApWithCallback(context, this, mHandler);
+        postToSession(new Runnable() {
+            @Override
+            public void run() {
+                connectToSoftApWithCallback(context, WifiProvisionManager.this, mHandler);
+            }
+        }, 0);
     }
 
     /**
@@ -215,93 +989,173 @@ public class WifiProvisionManager implements ConnectToAp.Client {
     @Override
     public void onApConnectionSuccessful(final WifiConfiguration config, final Context context) {
 
-        mHandler.postDelayed(new Runnable() {
+        postToSession(new Runnable() {
             @Override
             public void run() {
-                inApConnectionSuccess = true;
-                if (PiggyBank.DEBUG) {
-                    Log.d(TAG, "on ApConnectionSuccessful");
-                }
-
-                if (getDeviceInfoSuccess) {
-                    return;
-                }
-
-                //if max attempts has been reached in SoftAP, then provisioning fails
-                if (!canConnectToDeviceAgain() && !getDeviceInfoSuccess) {
-                    wifiProvisionFailed(new PiggyBankException("Max Attempts to connect to SoftAP has been reached"));
-                    return;
-                }
+                // Start talking to the device as soon as its command server accepts connections,
+                // rather than after a fixed delay. If it never does within the configured bound, we
+                // try anyway and let the discovery retries below deal with it.
+                SoftApReadinessProbe probe = new SoftApReadinessProbe(mHandler,
+                        ProvisioningExecutors.background(), getSocketFactory(context),
+                        mDeviceAddress, mSoftApReadyTimeoutMillis);
+                mReadinessProbe = probe;
+                probe.start(new SoftApReadinessProbe.Listener() {
+                    @Override
+                    public void onSoftApReady() {
+                        discoverDevice(config, context);
+                    }
 
+                    @Override
+                    public void onSoftApReadyTimeout() {
+                        discoverDevice(config, context);
+                    }
+                });
+            }
+        }, 0);
 
-                // This ensures that the SSID that we are currently connected to is in fact the photon's
-                // Soft AP's SSID. At times, ConnectToAp would call onApConnectionSuccessful when in
-                // fact the application/mobile device was still connecting to the Photon's Soft Ap.
-                // This checks to make sure that a connection has been made.
-                String ssid = config.SSID;
-                String quotesSSID = "\"" + mDeviceSoftApSsid + "\"";
+    }
 
-                if (!ssid.equals(quotesSSID)) {
-                    Log.d(TAG, "Not connected to: " + mDeviceSoftApSsid + " Connected to " + ssid);
-                    if (canStartProcessAgain()) {
-                        connectToSoftAp(context);
-                        return;
-                    } else {
-                        wifiProvisionFailed(new PiggyBankException("Not connected to the device's SSID anymore"));
-                        return;
-                    }
-                }
+    /**
+     * Runs the DiscoverProcessWorker against the device once its SoftAP is ready. On failure it goes
+     * back through onApConnectionSuccessful until the max attempts are reached.
+     *
+     * @param config
+     * @param context
+     */
+    private void discoverDevice(final WifiConfiguration config, final Context context) {
+        if (isEnded()) {
+            return;
+        }
+        inApConnectionSuccess = true;
+        if (PiggyBank.DEBUG) {
+            Log.d(TAG, "on ApConnectionSuccessful");
+        }
 
+        if (getDeviceInfoSuccess) {
+            return;
+        }
 
-                // Anytime onApConnectionSuccess is called, we increase the attempts to reach the device
-                // onApConnectionSuccess is called recursively until a successful connection is reached
-                // or once the max tries is reached (5).
-                mGetDeviceInfoAttempts++;
+        //if max attempts has been reached in SoftAP, then provisioning fails
+        if (!canConnectToDeviceAgain() && !getDeviceInfoSuccess) {
+            wifiProvisionFailed(new PiggyBankException("Max Attempts to connect to SoftAP has been reached"));
+            return;
+        }
 
-                resetWorker();
 
-                try {
-                    if (PiggyBank.DEBUG) {
-                        Log.d(TAG, "Waiting a couple seconds before trying the socket connection...");
-                    }
+        // This ensures that the SSID that we are currently connected to is in fact the photon's
+        // Soft AP's SSID. At times, ConnectToAp would call onApConnectionSuccessful when in
+        // fact the application/mobile device was still connecting to the Photon's Soft Ap.
+        // This checks to make sure that a connection has been made.
+        String ssid = config.SSID;
+        String quotesSSID = "\"" + mDeviceSoftApSsid + "\"";
+
+        if (!ssid.equals(quotesSSID)) {
+            Log.d(TAG, "Not connected to: " + mDeviceSoftApSsid + " Connected to " + ssid);
+            if (canStartProcessAgain()) {
+                connectToSoftAp(context);
+                return;
+            } else {
+                wifiProvisionFailed(new PiggyBankException("Not connected to the device's SSID anymore"));
+                return;
+            }
+        }
 
-                    mUiThreadHandler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            mCallback.onSoftApConnected();
-                        }
-                    });
+        onPhaseCompleted(ProvisioningPhase.CONNECT_TO_SOFT_AP);
 
-                    mDiscoverProcessWorker.doTheThing(
-                            new InterfaceBindingSocketFactoryDev(context, mDeviceSoftApSsid));
+        if (mCheckpoint.isComplete(ProvisioningPhase.DISCOVER_DEVICE)) {
+            // Resumed session: device id, public key and claim code are already known.
+            resetWorker(context);
+            inApConnectionSuccess = false;
+            getDeviceInfoSuccess = true;
+            connectDeviceToNetwork(context);
+            return;
+        }
 
-                    inApConnectionSuccess = false;
-                    getDeviceInfoSuccess = true;
+        // Talking to the device blocks; keep the session looper free meanwhile.
+        runOffSession(new Runnable() {
+            @Override
+            public void run() {
+                exchangeDeviceInfo(config, context);
+            }
+        });
+    }
 
-                    mUiThreadHandler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            mCallback.onDeviceInfoReturned();
-                        }
-                    });
+    /**
+     * Gets the device id and public key from the device and hands it the claim code
+     * (DiscoverProcessWorker), then moves on to configuring it. Runs off the session looper.
+     *
+     * @param config
+     * @param context
+     */
+    private void exchangeDeviceInfo(final WifiConfiguration config, final Context context) {
+        // Anytime onApConnectionSuccess is called, we increase the attempts to reach the device
+        // onApConnectionSuccess is called recursively until a successful connection is reached
+        // or once the max tries is reached (5).
+        mGetDeviceInfoAttempts++;
+        mTimeline.recordAttempt(ProvisioningPhase.DISCOVER_DEVICE);
+
+        resetWorker(context);
+
+        try {
+            mCallbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onSoftApConnected();
+                }
+            });
+
+            ProvisioningTimeline.Span discoverSpan = mTimeline.begin(ProvisioningPhase.DISCOVER_DEVICE, "doTheThing");
+            try {
+                mDiscoverProcessWorker.doTheThing();
+                discoverSpan.end(true);
+            } finally {
+                discoverSpan.end(false);
+            }
 
-                    connectDeviceToNetwork(context);
+            inApConnectionSuccess = false;
+            getDeviceInfoSuccess = true;
 
-                } catch (SetupStepException e) {
+            mCheckpoint.deviceId = mDeviceToBeSetUpId;
+            mCheckpoint.publicKeyHex = mPublicKeyHex;
+            mCheckpoint.needToClaimDevice = mNeedToClaimDevice;
+            saveCheckpoint(ProvisioningPhase.DISCOVER_DEVICE);
 
-                    // This structure has been inherited from Photon. If "doTheThing" fails, or if
-                    // the app is unable to write/recieve commands over the open socket with the
-                    // device, an exception is thrown and caught here. The app will retry to open
-                    // a socket with the device by called onApConnectionSuccessful again until
-                    // max attempts is reached (5).
-                    Log.d(TAG, "Setup exception thrown: ", e);
-                    inApConnectionSuccess = false;
-                    onApConnectionSuccessful(config, context);
+            mCallbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onDeviceInfoReturned();
                 }
-
+            });
+
+            connectDeviceToNetwork(context);
+
+        } catch (SetupStepException e) {
+
+            // This structure has been inherited from Photon. If "doTheThing" fails, or if
+            // the app is unable to write/recieve commands over the open socket with the
+            // device, an exception is thrown and caught here. The app will retry to open
+            // a socket with the device by called onApConnectionSuccessful again, backing off
+            // as the retry policy says, until the policy gives up.
+            Log.d(TAG, "Setup exception thrown: ", e);
+            if (isEnded()) {
+                // e.g. the cloud authentication failed while waiting for the claim code; that is
+                // not the device's fault, so discovery is not retried
+                return;
             }
-        }, 3000);
-
+            inApConnectionSuccess = false;
+            long delay = mRetryPolicy.getRetryDelayMillis(ProvisioningPhase.DISCOVER_DEVICE,
+                    mGetDeviceInfoAttempts, getSessionElapsedMillis());
+            if (delay == RetryPolicy.STOP) {
+                wifiProvisionFailed(new PiggyBankException("Max Attempts to connect to SoftAP has been reached"));
+                return;
+            }
+            postToSession(new Runnable() {
+                @Override
+                public void run() {
+                    onApConnectionSuccessful(config, context);
+                }
+            }, delay);
+        }
     }
 
     /**
@@ -317,17 +1171,27 @@ public class WifiProvisionManager implements ConnectToAp.Client {
      *
      */
     @Override
-    public void onApConnectionFailed(WifiConfiguration config, Context context) {
+    public void onApConnectionFailed(WifiConfiguration config, final Context context) {
 
         Log.d(TAG, "on ApConnectionFailure");
+        if (isEnded()) {
+            return;
+        }
 
+        long delay = mRetryPolicy.getRetryDelayMillis(ProvisioningPhase.CONNECT_TO_SOFT_AP,
+                mDiscoverProcessAttempts, getSessionElapsedMillis());
 
-        if (canStartProcessAgain() && !inApConnectionSuccess && !getDeviceInfoSuccess) {
+        if (delay == RetryPolicy.STOP && !inApConnectionSuccess && !getDeviceInfoSuccess) {
             wifiProvisionFailed(new PiggyBankException("Max Attempts Reached - Cannot Connect to the Device SSID"));
         } else  {
-            // If connection fails, the app retries to make a connection with the Photon until maxAttempts
-            // is reached.
-           connectToSoftAp(context);
+            // If connection fails, the app retries to make a connection with the Photon until the
+            // retry policy gives up, waiting a little longer after each failure.
+            postToSession(new Runnable() {
+                @Override
+                public void run() {
+                    connectToSoftAp(context);
+                }
+            }, Math.max(delay, 0));
         }
 
     }
@@ -340,7 +1204,8 @@ public class WifiProvisionManager implements ConnectToAp.Client {
      *
      */
     public void connectDeviceToNetwork(final Context context){
-        mHandler.post(new Runnable() {
+        // off the session looper, since it may wait for the cloud authentication
+        runOffSession(new Runnable() {
             @Override
             public void run() {
                 Log.d(TAG, "About to connect the Device to the Network");
@@ -352,9 +1217,40 @@ public class WifiProvisionManager implements ConnectToAp.Client {
 
     // UTIL METHODS:
 
-    private void resetWorker() {
-        mClient = CommandClient.newClientUsingDefaultSocketAddress();
-        mDiscoverProcessWorker = new DiscoverProcessWorker(mClient, this);
+    /**
+     * Starts a new CommandSession for talking to the device; it is used by the
+     * DiscoverProcessWorker and by the steps that send the Wi-Fi credentials. Its connections go
+     * through the NioCommandTransport, bound to the SoftAP.
+     */
+    private void resetWorker(Context context) {
+        closeCommandSession();
+        final InterfaceBindingSocketFactoryDev socketFactory = getSocketFactory(context);
+        mCommandSession = new CommandSession(NioCommandTransport.get().connector(
+                new NioCommandTransport.ChannelBinder() {
+                    @Override
+                    public void bind(SocketChannel channel) throws IOException {
+                        socketFactory.bindChannel(channel);
+                    }
+                }), mDeviceAddress);
+        mDiscoverProcessWorker = new DiscoverProcessWorker(mCommandSession, this);
+    }
+
+    /**
+     * One socket factory per session, so the SoftAP's Network is only looked up once.
+     */
+    private synchronized InterfaceBindingSocketFactoryDev getSocketFactory(Context context) {
+        if (mSocketFactory == null) {
+            mSocketFactory = new InterfaceBindingSocketFactoryDev(context, mDeviceSoftApSsid);
+            mSocketFactory.setTimeline(mTimeline);
+        }
+        return mSocketFactory;
+    }
+
+    private void closeCommandSession() {
+        CommandSession session = mCommandSession;
+        if (session != null) {
+            session.close();
+        }
     }
 
     /**
@@ -365,104 +1261,298 @@ public class WifiProvisionManager implements ConnectToAp.Client {
      *
      */
     private void startConnectingActivity(Context context){
-        ConnectingProcessWorkerTask connectingProcessWorkerTask = new ConnectingProcessWorkerTask(buildSteps(context),
-                                                                                        15, this, mContext);
-        connectingProcessWorkerTask.executeOnExecutor(AsyncTask.SERIAL_EXECUTOR);
+        if (isEnded()) {
+            return;
+        }
+        try {
+            // A resumed session may skip discovery; the cloud steps still need the login.
+            awaitCloudAuth();
+        } catch (PiggyBankException e) {
+            return;
+        }
+        ConnectingProcessWorkerTask connectingProcessWorkerTask = new ConnectingProcessWorkerTask(
+                buildSteps(context, PHASES_OF_STEPS.size()), this);
+        mConnectingProcessWorkerTask = connectingProcessWorkerTask;
+        connectingProcessWorkerTask.start();
+        DeviceEventStream eventStream = getDeviceEventStream();
+        if (eventStream != null && ParticleCloudTransport.selectedNetwork() != null) {
+            // Reachable from the SoftAP over the selected network; subscribe right away.
+            eventStream.start();
+        }
 
     }
 
     /**
      *
-     * This returns a list of steps that the "ConnectingProcessWorkerTask" runs through.
+     * This returns the graph of steps that the "ConnectingProcessWorkerTask" runs through.
      *
      * Step 1: Sends the wifi credentials to the device.
      * Step 2: Sends a command to the device to connect to the network
      * Step 3: Waits for a disconnection from the device.
-     * Step 4: Ensures that Soft AP is no longer visible
-     * Step 5: Makes sure that the device able to reach the particle cloud
-     * Step 6: Makes sure that the device is claimed.
+     * Step 4: Ensures that Soft AP is no longer visible (after step 3)
+     * Step 5: Makes sure that the device able to reach the particle cloud (after step 3, at the
+     *         same time as step 4)
+     * Step 6: Makes sure that the device is claimed (after step 5)
      *
      * @param context
+     * @param stepCount how many of the steps to build, from the first; buildDeviceSteps() only
+     *                  builds the ones that need the SoftAP
      * @return
      */
-    private List<SetupStep> buildSteps(Context context){
+    private ParallelStepRunner buildSteps(Context context, int stepCount){
+
+        // Both commands go out over the CommandSession the DiscoverProcessWorker used.
+        final ScanApCommand.Scan network = mNetworkToConnectTo;
+        final boolean hasNetworkSecret = mNetworkSecretPlaintext != null;
+        final DiscoverProcessWorker discoverProcessWorker = mDiscoverProcessWorker;
+        DeviceCommandStep configureAPStep = new DeviceCommandStep(
+                buildStepConfig(ProvisioningPhase.CONFIGURE_AP,
+                        SuccessActivity.RESULT_FAILURE_CONFIGURE, R.id.configure_device_wifi_credentials),
+                mCommandSession, new DeviceCommandStep.CommandBuilder() {
+                    @Override
+                    public Command build(boolean previousAttemptRejected)
+                            throws Crypto.CryptoException, IOException {
+                        if (previousAttemptRejected && mPublicKeyFromCache) {
+                            // The device rejected credentials encrypted with the cached key; it
+                            // may have been rotated, so ask the device for the current one.
+                            discoverProcessWorker.refreshPublicKey();
+                        }
+                        ConfigureApCommand.Builder builder = ConfigureApCommand.newBuilder()
+                                .setSsid(network.ssid)
+                                .setSecurityType(WifiSecurity.fromInteger(network.wifiSecurityType))
+                                .setChannel(network.channel)
+                                .setIdx(0);
+                        if (hasNetworkSecret) {
+                            builder.setEncryptedPasswordHex(getEncryptedSecret());
+                        }
+                        return builder.build();
+                    }
+                });
+
+        DeviceCommandStep connectDeviceToNetworkStep = new DeviceCommandStep(
+                buildStepConfig(ProvisioningPhase.CONNECT_DEVICE_TO_NETWORK,
+                        SuccessActivity.RESULT_FAILURE_CONFIGURE, R.id.connect_to_wifi_network),
+                mCommandSession, new DeviceCommandStep.CommandBuilder() {
+                    @Override
+                    public Command build(boolean previousAttemptRejected) {
+                        return new ConnectAPCommand(0);
+                    }
+                });
 
-        ConfigureAPStep configureAPStep = new ConfigureAPStep(
-                StepConfig.newBuilder()
-                        .setMaxAttempts(MAX_RETRIES_CONFIGURE_AP)
-                        .setResultCode(SuccessActivity.RESULT_FAILURE_CONFIGURE)
-                        .setStepId(R.id.configure_device_wifi_credentials)
-                        .build(),
-                mClient, mNetworkToConnectTo, mNetworkSecretPlaintext, mPublicKey, context);
+        List<SetupStep> steps = list();
+        steps.add(configureAPStep);
+        steps.add(connectDeviceToNetworkStep);
+        if (stepCount > STEPS_NEEDING_SOFT_AP) {
+            steps.addAll(buildCloudSteps(context));
+        }
 
-        ConnectDeviceToNetworkStep connectDeviceToNetworkStep = new ConnectDeviceToNetworkStep(
-                StepConfig.newBuilder()
-                        .setMaxAttempts(MAX_RETRIES_CONNECT_AP)
-                        .setResultCode(SuccessActivity.RESULT_FAILURE_CONFIGURE)
-                        .setStepId(R.id.connect_to_wifi_network)
-                        .build(),
-                mClient, context);
+        // Indexes of the steps each step waits for.
+        int[][] dependencies = {{}, {0}, {1}, {2}, {2}, {4}};
+
+        // A resumed session skips the steps it had already completed.
+        mStepsFulfilled = new boolean[steps.size()];
+        List<SetupStep> runnerSteps = list();
+        ParallelStepRunner.Builder runner = ParallelStepRunner.newBuilder()
+                .setMaxAttemptsPerStep(mRetryPolicy.getMaxAttempts(ProvisioningPhase.SETUP_STEPS))
+                .setTimeline(mTimeline);
+        for (int i = 0; i < steps.size(); i++) {
+            ProvisioningPhase phase = PHASES_OF_STEPS.get(i);
+            if (i < mCheckpoint.completedSteps) {
+                mStepsFulfilled[i] = true;
+                runnerSteps.add(null);
+                continue;
+            }
+            SetupStep step = observeStep(withRetryPolicy(steps.get(i), phase), i, phase);
+            List<SetupStep> dependsOn = list();
+            for (int dependency : dependencies[i]) {
+                if (runnerSteps.get(dependency) != null) {
+                    dependsOn.add(runnerSteps.get(dependency));
+                }
+            }
+            runner.addStep(step, phase, dependsOn);
+            runnerSteps.add(step);
+        }
+        return runner.build();
 
+    }
+
+    /**
+     * Steps 3 to 6 of buildSteps(), which watch the phone's Wi-Fi and poll the cloud.
+     */
+    private List<SetupStep> buildCloudSteps(Context context) {
         WaitForDisconnectionFromDeviceStep waitForDisconnectionFromDeviceStep = new WaitForDisconnectionFromDeviceStep(
-                StepConfig.newBuilder()
-                        .setMaxAttempts(MAX_RETRIES_DISCONNECT_FROM_DEVICE)
-                        .setResultCode(SuccessActivity.RESULT_FAILURE_NO_DISCONNECT)
-                        .setStepId(R.id.connect_to_wifi_network)
-                        .build(),
+                buildStepConfig(ProvisioningPhase.WAIT_FOR_DISCONNECTION,
+                        SuccessActivity.RESULT_FAILURE_NO_DISCONNECT, R.id.connect_to_wifi_network),
                 mDeviceSoftApSsid, context);
 
         EnsureSoftApNotVisible ensureSoftApNotVisible = new EnsureSoftApNotVisible(
-                StepConfig.newBuilder()
-                        .setMaxAttempts(MAX_RETRIES_DISCONNECT_FROM_DEVICE)
-                        .setResultCode(SuccessActivity.RESULT_FAILURE_CONFIGURE)
-                        .setStepId(R.id.wait_for_device_cloud_connection)
-                        .build(),
+                buildStepConfig(ProvisioningPhase.ENSURE_SOFT_AP_NOT_VISIBLE,
+                        SuccessActivity.RESULT_FAILURE_CONFIGURE, R.id.wait_for_device_cloud_connection),
                 mDeviceSoftApSsid, context);
 
-        WaitForCloudConnectivityStep waitForLocalCloudConnectivityStep = new WaitForCloudConnectivityStep(
-                StepConfig.newBuilder()
-                        .setMaxAttempts(MAX_RETRIES_DISCONNECT_FROM_DEVICE)
-                        .setResultCode(SuccessActivity.RESULT_FAILURE_NO_DISCONNECT)
-                        .setStepId(R.id.check_for_internet_connectivity)
-                        .build(),
+        SetupStep waitForLocalCloudConnectivityStep = new WaitForCloudConnectivityStep(
+                buildStepConfig(ProvisioningPhase.WAIT_FOR_CLOUD_CONNECTIVITY,
+                        SuccessActivity.RESULT_FAILURE_NO_DISCONNECT, R.id.check_for_internet_connectivity),
                 mParticleCloud, context);
 
-        CheckIfDeviceClaimedStep checkIfDeviceClaimedStep = new CheckIfDeviceClaimedStep(
-                StepConfig.newBuilder()
-                        .setMaxAttempts(MAX_RETRIES_CLAIM)
-                        .setResultCode(SuccessActivity.RESULT_FAILURE_CLAIMING)
-                        .setStepId(R.id.verify_product_ownership)
-                        .build(),
+        SetupStep checkIfDeviceClaimedStep = new CheckIfDeviceClaimedStep(
+                buildStepConfig(ProvisioningPhase.CHECK_DEVICE_CLAIMED,
+                        SuccessActivity.RESULT_FAILURE_CLAIMING, R.id.verify_product_ownership),
                 mParticleCloud, mDeviceToBeSetUpId, mNeedToClaimDevice);
+        // A token revoked before its cached expiry is replaced once before the next attempt.
+        checkIfDeviceClaimedStep = new TokenRefreshingSetupStep(checkIfDeviceClaimedStep,
+                mParticleCloudAuthentication);
+
+        // Both cloud checks also complete on the device's first event, if the stream is enabled.
+        DeviceEventStream eventStream = getDeviceEventStream();
+        if (eventStream != null) {
+            waitForLocalCloudConnectivityStep = new EventAwareSetupStep(
+                    waitForLocalCloudConnectivityStep, eventStream);
+            checkIfDeviceClaimedStep = new EventAwareSetupStep(checkIfDeviceClaimedStep, eventStream);
+        }
 
         return list(
-                configureAPStep,
-                connectDeviceToNetworkStep,
                 waitForDisconnectionFromDeviceStep,
                 ensureSoftApNotVisible,
                 waitForLocalCloudConnectivityStep,
                 checkIfDeviceClaimedStep
         );
+    }
+
+    /**
+     * Checkpoints the session each time a step is fulfilled, and notes when the phone has left the
+     * device's SoftAP (step 3, WaitForDisconnectionFromDeviceStep). Steps can be fulfilled out of
+     * order, so the checkpoint counts the steps fulfilled without a gap.
+     */
+    private SetupStep observeStep(SetupStep step, final int index, final ProvisioningPhase phase) {
+        return new ObservedSetupStep(step, new ObservedSetupStep.Listener() {
+            @Override
+            public void onStepFulfilled(SetupStep fulfilled) {
+                synchronized (mCheckpoint) {
+                    mStepsFulfilled[index] = true;
+                    while (mCheckpoint.completedSteps < mStepsFulfilled.length
+                            && mStepsFulfilled[mCheckpoint.completedSteps]) {
+                        mCheckpoint.completedSteps++;
+                    }
+                    saveCheckpoint(phase);
+                }
+                if (phase == ProvisioningPhase.WAIT_FOR_DISCONNECTION) {
+                    onSoftApPhaseFinished();
+                }
+            }
+        });
+    }
 
+    private void saveCheckpoint(ProvisioningPhase completedPhase) {
+        if (completedPhase.ordinal() < ProvisioningCheckpointStore.FIRST_STEP_PHASE.ordinal()) {
+            // the setup steps are recorded in completedSteps
+            mCheckpoint.completedPhase = completedPhase;
+        }
+        mCheckpointStore.save(mSessionId, mCheckpoint);
+        onPhaseCompleted(completedPhase);
     }
 
+    private synchronized void onPhaseCompleted(ProvisioningPhase phase) {
+        mCompletedPhases.add(phase);
+        ProvisioningFuture<ProvisioningPhase> future = mPhaseFutures.get(phase);
+        if (future != null) {
+            future.complete(phase);
+        }
+    }
+
+    /**
+     * Completes the phase stages still pending once the session is over, or fails them.
+     */
+    private synchronized void finishPhaseFutures(Exception error) {
+        for (Map.Entry<ProvisioningPhase, ProvisioningFuture<ProvisioningPhase>> entry : mPhaseFutures.entrySet()) {
+            if (error == null) {
+                entry.getValue().complete(entry.getKey());
+            } else {
+                entry.getValue().fail(error);
+            }
+        }
+    }
+
+    private StepConfig buildStepConfig(ProvisioningPhase phase, int resultCode, int stepId) {
+        return StepConfig.newBuilder()
+                .setMaxAttempts(mRetryPolicy.getMaxAttempts(phase))
+                .setResultCode(resultCode)
+                .setStepId(stepId)
+                .build();
+    }
+
+    private SetupStep withRetryPolicy(SetupStep step, ProvisioningPhase phase) {
+        return new RetryingSetupStep(step, phase, mRetryPolicy, mSessionStartedAt, mTimeline);
+    }
+
+    /**
+     * @return the session's event stream, created on first use; null if it is disabled or the
+     * device or token are not known
+     */
+    private synchronized DeviceEventStream getDeviceEventStream() {
+        if (mDeviceEventStream == null && mCloudEventStreamEnabled
+                && mDeviceToBeSetUpId != null && mParticleAccessToken != null) {
+            mDeviceEventStream = new DeviceEventStream(mDeviceToBeSetUpId, mParticleAccessToken,
+                    mContext == null ? null
+                            : (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE));
+        }
+        return mDeviceEventStream;
+    }
+
+    /**
+     * @return true once the session has created its event stream, i.e. its cloud steps also
+     * complete on the device's first event; see setCloudEventStreamEnabled()
+     */
+    synchronized boolean hasDeviceEventStream() {
+        return mDeviceEventStream != null;
+    }
+
+    private long getSessionElapsedMillis() {
+        return SystemClock.elapsedRealtime() - mSessionStartedAt;
+    }
+
+
+    private void onSoftApPhaseFinished() {
+        mSoftApPhaseFinished = true;
+        DeviceEventStream eventStream = getDeviceEventStream();
+        if (eventStream != null) {
+            // The phone is getting its internet connection back; the stream connects as soon as
+            // it has, while the device joins the network, so its online event is not missed.
+            eventStream.start();
+        }
+        if (mSoftApPhaseListener != null) {
+            mSoftApPhaseListener.onSoftApPhaseFinished(this);
+        }
+    }
 
     protected boolean canStartProcessAgain() {
-        return mDiscoverProcessAttempts < MAX_NUM_DISCOVER_PROCESS_ATTEMPTS;
+        return mDiscoverProcessAttempts < mRetryPolicy.getMaxAttempts(ProvisioningPhase.CONNECT_TO_SOFT_AP);
     }
 
     protected boolean canConnectToDeviceAgain(){
-        return mGetDeviceInfoAttempts < MAX_NUM_COMMUNICATION_ATTEMPTS;
+        return mGetDeviceInfoAttempts < mRetryPolicy.getMaxAttempts(ProvisioningPhase.DISCOVER_DEVICE);
     }
 
 
     public void connectToSoftApWithCallback(Context context, ConnectToAp.Client callback, Handler handler) {
+        if (isEnded()) {
+            return;
+        }
         mDiscoverProcessAttempts++;
+        mTimeline.recordAttempt(ProvisioningPhase.CONNECT_TO_SOFT_AP);
         WifiConfiguration wifiConfig = buildUnsecuredConfig(
                 mDeviceSoftApSsid, false);
-        softAPConfigRemover.onSoftApConfigured(wifiConfig.SSID);
+        mSoftApConfigRemover.onSoftApConfigured(wifiConfig.SSID);
+        ConnectToAp previous = mConnectToAp;
+        if (previous != null) {
+            // don't leave the last attempt's receiver registered
+            previous.cancel(mContext);
+        }
         ConnectToAp connection = new ConnectToAp(context, callback, handler);
-        connection.connectToAP(wifiConfig, CONNECT_TO_DEVICE_TIMEOUT_MILLIS, context);
+        connection.setTimeline(mTimeline);
+        mConnectToAp = connection;
+        connection.connectToAP(wifiConfig,
+                mRetryPolicy.getTimeoutMillis(ProvisioningPhase.CONNECT_TO_SOFT_AP), context);
     }
 
     /**
@@ -470,15 +1560,29 @@ public class WifiProvisionManager implements ConnectToAp.Client {
      * network, etc)
      */
     public static void resetSoftAp(Context context){
-        softAPConfigRemover = new SoftAPConfigRemover(context);
-        softAPConfigRemover.removeAllSoftApConfigs();
-        softAPConfigRemover.reenableWifiNetworks();
+        SoftAPConfigRemover remover = new SoftAPConfigRemover(context.getApplicationContext());
+        remover.removeAllSoftApConfigs();
+        remover.reenableWifiNetworks();
+    }
+
+    private void removeSoftApConfigs() {
+        mSoftApConfigRemover.removeAllSoftApConfigs();
+        mSoftApConfigRemover.reenableWifiNetworks();
     }
 
     public void reset(){
         mClaimCode = null;
         mPublicKey = null;
+        mPublicKeyFromCache = false;
+        mEncryptedSecret = null;
+        mEncryptedSecretKey = null;
         mDeviceToBeSetUpId = null;
+        synchronized (this) {
+            if (mDeviceEventStream != null) {
+                mDeviceEventStream.close();
+                mDeviceEventStream = null;
+            }
+        }
         mPreviouslyConnectedWifiNetwork = null;
         mDiscoverProcessAttempts = 0;
         mGetDeviceInfoAttempts = 0;
@@ -0,0 +1,211 @@
+package com.ciklum.pigabstractionlayer.WifiProvisioning;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * CloudAuthLoadGenerator
+ * Runs many concurrent simulated sessions of the cloud half of provisioning - the two legged
+ * authentication and the claim code - against a ParticleCloudStandInServer, to see how
+ * ParticleCloudAuthentication and the shared ParticleCloudTransport behave under contention and
+ * when the cloud throttles or fails. Reports throughput, error rates and tail latency.
+ *
+ * Each session retries the AUTH and CLAIM_CODE phases as the given RetryPolicy says, but never
+ * sooner than the Retry-After of a 429, so different backoff settings and concurrency levels can
+ * be compared against the same injected faults.
+ */
+public class CloudAuthLoadGenerator {
+
+    /**
+     * Outcome of one run.
+     */
+    public static class Result {
+
+        public final int sessions;
+        public final int failedSessions;
+        public final int retries;
+        public final double sessionsPerSecond;
+        public final long p50Millis;
+        public final long p99Millis;
+        public final long p999Millis;
+        public final long maxMillis;
+        public final int tokenRequests;
+        public final int customerRequests;
+        public final int claimCodeRequests;
+        public final int throttledResponses;
+        public final int serverErrorResponses;
+
+        Result(List<Long> sessionMillis, int failedSessions, int retries, long elapsedMillis,
+               ParticleCloudStandInServer cloud, String customersPath) {
+            List<Long> sorted = new ArrayList<Long>(sessionMillis);
+            Collections.sort(sorted);
+            this.sessions = sorted.size() + failedSessions;
+            this.failedSessions = failedSessions;
+            this.retries = retries;
+            this.sessionsPerSecond = elapsedMillis == 0 ? 0 : sorted.size() * 1000.0 / elapsedMillis;
+            this.p50Millis = ProvisioningBenchmark.percentile(sorted, 50);
+            this.p99Millis = ProvisioningBenchmark.percentile(sorted, 99);
+            this.p999Millis = ProvisioningBenchmark.percentile(sorted, 99.9);
+            this.maxMillis = sorted.isEmpty() ? 0 : sorted.get(sorted.size() - 1);
+            this.tokenRequests = cloud.getRequestCount("/oauth/token");
+            this.customerRequests = cloud.getRequestCount(customersPath);
+            this.claimCodeRequests = cloud.getRequestCount("/v1/device_claims");
+            this.throttledResponses = cloud.getThrottledResponses();
+            this.serverErrorResponses = cloud.getServerErrorResponses();
+        }
+
+        public double getErrorRate() {
+            return sessions == 0 ? 0 : (double) failedSessions / sessions;
+        }
+
+        @Override
+        public String toString() {
+            return "sessions=" + sessions + " failed=" + failedSessions
+                    + String.format(" (%.1f%%)", getErrorRate() * 100)
+                    + " retries=" + retries
+                    + String.format(" throughput=%.1f/s", sessionsPerSecond)
+                    + " p50=" + p50Millis + "ms p99=" + p99Millis + "ms p99.9=" + p999Millis
+                    + "ms max=" + maxMillis + "ms"
+                    + "\nrequests: token=" + tokenRequests + " customers=" + customerRequests
+                    + " claim=" + claimCodeRequests
+                    + "\ninjected: 429=" + throttledResponses + " 503=" + serverErrorResponses;
+        }
+    }
+
+    private final ParticleCloudStandInServer cloud;
+    private final RetryPolicy retryPolicy;
+
+    /**
+     * @param cloud already started
+     * @param retryPolicy applied to the AUTH and CLAIM_CODE phases of every session
+     */
+    public CloudAuthLoadGenerator(ParticleCloudStandInServer cloud, RetryPolicy retryPolicy) {
+        this.cloud = cloud;
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Runs the sessions on the given number of threads and waits for all of them. Points the
+     * process-wide ParticleCloudTransport at the stand-in server.
+     *
+     * @param sessions total number of sessions
+     * @param concurrency number of sessions in flight at once
+     * @return Result
+     */
+    public Result run(final int sessions, int concurrency) throws InterruptedException {
+        ParticleCloudTransport.configure(cloud.getBaseUrl(), null, null);
+
+        final List<Long> sessionMillis = Collections.synchronizedList(new ArrayList<Long>());
+        final AtomicInteger nextSession = new AtomicInteger();
+        final AtomicInteger failedSessions = new AtomicInteger();
+        final AtomicInteger retries = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(concurrency);
+
+        long startedAt = System.nanoTime();
+        for (int worker = 0; worker < concurrency; worker++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        int session;
+                        while ((session = nextSession.getAndIncrement()) < sessions) {
+                            long sessionStartedAt = System.nanoTime();
+                            try {
+                                runSession(session, sessionStartedAt, retries);
+                                sessionMillis.add(millisSince(sessionStartedAt));
+                            } catch (Exception e) {
+                                failedSessions.incrementAndGet();
+                            }
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "CloudAuthLoadGenerator-" + worker).start();
+        }
+        done.await();
+        long elapsedMillis = millisSince(startedAt);
+
+        return new Result(sessionMillis, failedSessions.get(), retries.get(), elapsedMillis, cloud,
+                ParticleCloudAuthentication.CREATE_USER_ENDPOINT);
+    }
+
+    private void runSession(int session, final long sessionStartedAt, AtomicInteger retries)
+            throws Exception {
+        final String email = "load" + session + "@example.com";
+        final ParticleAccessTokenCache.CachedToken token = withRetries(ProvisioningPhase.AUTH,
+                sessionStartedAt, retries, new Attempt<ParticleAccessTokenCache.CachedToken>() {
+                    @Override
+                    public ParticleAccessTokenCache.CachedToken run() throws Exception {
+                        return ParticleCloudAuthentication.getAccessTokenBlocking(email);
+                    }
+                });
+        withRetries(ProvisioningPhase.CLAIM_CODE, sessionStartedAt, retries, new Attempt<String>() {
+            @Override
+            public String run() throws Exception {
+                return ParticleCloudAuthentication.generateClaimCodeBlocking(token.accessToken);
+            }
+        });
+    }
+
+    private interface Attempt<T> {
+
+        T run() throws Exception;
+    }
+
+    private <T> T withRetries(ProvisioningPhase phase, long sessionStartedAt, AtomicInteger retries,
+                              Attempt<T> attempt) throws Exception {
+        int failedAttempts = 0;
+        while (true) {
+            try {
+                return attempt.run();
+            } catch (Exception e) {
+                failedAttempts++;
+                long delay = failedAttempts >= retryPolicy.getMaxAttempts(phase)
+                        ? RetryPolicy.STOP
+                        : retryPolicy.getRetryDelayMillis(phase, failedAttempts, millisSince(sessionStartedAt));
+                if (delay == RetryPolicy.STOP) {
+                    throw e;
+                }
+                // a throttling cloud says when it will take the next request
+                delay = Math.max(delay, ParticleCloudAuthentication.getRetryAfterMillis(e));
+                retries.incrementAndGet();
+                Thread.sleep(delay);
+            }
+        }
+    }
+
+    private static long millisSince(long nanoTime) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - nanoTime);
+    }
+
+    /**
+     * Usage: CloudAuthLoadGenerator [sessions] [concurrency] [429 share] [5xx share] [latency ms]
+     */
+    public static void main(String[] args) throws Exception {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        double throttled = args.length > 2 ? Double.parseDouble(args[2]) : 0.05;
+        double serverErrors = args.length > 3 ? Double.parseDouble(args[3]) : 0.01;
+        long latencyMillis = args.length > 4 ? Long.parseLong(args[4]) : 80;
+
+        ParticleCloudStandInServer cloud = new ParticleCloudStandInServer(null);
+        cloud.setResponseLatencyMillis(latencyMillis);
+        cloud.setResponseLatencyJitterMillis(latencyMillis);
+        cloud.setFaults(throttled, serverErrors);
+        cloud.start();
+        try {
+            RetryPolicy retryPolicy = ExponentialBackoffRetryPolicy.newBuilder()
+                    .setMaxAttempts(ProvisioningPhase.AUTH, 4)
+                    .setMaxAttempts(ProvisioningPhase.CLAIM_CODE, 4)
+                    .build();
+            System.out.println(new CloudAuthLoadGenerator(cloud, retryPolicy).run(sessions, concurrency));
+        } finally {
+            cloud.stop();
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package com.ciklum.pigabstractionlayer.WifiProvisioning;
+
+import android.app.Application;
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.wifi.WifiConfiguration;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowApplication;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.shadows.ShadowNetworkInfo;
+import org.robolectric.shadows.ShadowWifiInfo;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Drives the join state machine of ConnectToAp with NETWORK_STATE_CHANGED broadcasts. Below API 18
+ * the join disconnects from the current network first and waits for that to be confirmed.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 21)
+public class ConnectToApTest {
+
+    private static final String SOFT_AP_SSID = "Photon-A1B2";
+    private static final String HOME_SSID = "HomeWifi";
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private Application context;
+    private RecordingClient client;
+    private Handler handler;
+    private ConnectToAp connectToAp;
+    private WifiConfiguration config;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.application;
+        client = new RecordingClient();
+        handler = new Handler(Looper.getMainLooper());
+        connectToAp = new ConnectToAp(context, client, handler);
+        config = ConnectToAp.buildUnsecuredConfig(SOFT_AP_SSID, false);
+    }
+
+    @After
+    public void tearDown() {
+        connectToAp.cancel(context);
+    }
+
+    @Test
+    public void joinActionsRunAndBroadcastForSoftApSucceeds() {
+        connectToAp.connectToAP(config, TIMEOUT_MILLIS, context);
+        assertEquals(1, stateReceiverCount());
+        ShadowLooper.idleMainLooper();
+
+        // removeNetwork/addNetwork/enableNetwork need no broadcast on this API level
+        WifiManager wifiManager = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
+        assertNotNull(shadowOf(wifiManager).getLastEnabledNetwork());
+        assertEquals(0, client.successes);
+
+        context.sendBroadcast(stateChanged(SOFT_AP_SSID));
+        ShadowLooper.idleMainLooper();
+
+        assertEquals(1, client.successes);
+        assertEquals(0, client.failures);
+        assertEquals(0, stateReceiverCount());
+    }
+
+    @Test
+    public void broadcastForAnotherNetworkIsIgnored() {
+        connectToAp.connectToAP(config, TIMEOUT_MILLIS, context);
+        ShadowLooper.idleMainLooper();
+
+        context.sendBroadcast(stateChanged("HomeWifi"));
+        ShadowLooper.idleMainLooper();
+
+        assertEquals(0, client.successes);
+        assertEquals(1, stateReceiverCount());
+    }
+
+    @Test
+    public void timeoutFailsOnceAndUnregisters() {
+        connectToAp.connectToAP(config, TIMEOUT_MILLIS, context);
+        ShadowLooper.idleMainLooper(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+
+        assertEquals(1, client.failures);
+        assertEquals(0, stateReceiverCount());
+
+        // a late broadcast has nobody to reach
+        context.sendBroadcast(stateChanged(SOFT_AP_SSID));
+        ShadowLooper.idleMainLooper();
+        assertEquals(0, client.successes);
+    }
+
+    @Test
+    public void cancelUnregistersAndDropsPendingWork() {
+        connectToAp.connectToAP(config, TIMEOUT_MILLIS, context);
+        connectToAp.cancel(context);
+        assertEquals(0, stateReceiverCount());
+
+        context.sendBroadcast(stateChanged(SOFT_AP_SSID));
+        ShadowLooper.idleMainLooper(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+
+        assertEquals(0, client.successes);
+        assertEquals(0, client.failures);
+    }
+
+    @Test
+    public void broadcastIsHandledOnTheSessionLooper() {
+        HandlerThread sessionThread = new HandlerThread("session");
+        sessionThread.start();
+        try {
+            ConnectToAp sessionConnect = new ConnectToAp(context, client,
+                    new Handler(sessionThread.getLooper()));
+            sessionConnect.connectToAP(config, TIMEOUT_MILLIS, context);
+            shadowOf(sessionThread.getLooper()).idle();
+
+            context.sendBroadcast(stateChanged(SOFT_AP_SSID));
+            ShadowLooper.idleMainLooper();
+            shadowOf(sessionThread.getLooper()).idle();
+
+            assertEquals(1, client.successes);
+            assertSame(sessionThread, client.calledOn);
+        } finally {
+            sessionThread.quit();
+        }
+    }
+
+    @Test
+    @Config(sdk = 17)
+    public void disconnectBroadcastStartsTheNextActionRightAway() {
+        setConnectedTo(HOME_SSID);
+        connectToAp.connectToAP(config, TIMEOUT_MILLIS, context);
+        ShadowLooper.idleMainLooper();
+        // addNetwork has run; disconnect waits for its broadcast
+        assertNull(shadowOf(wifiManager()).getLastEnabledNetwork());
+
+        context.sendBroadcast(disconnected());
+        ShadowLooper.idleMainLooper();
+
+        // no time has passed, so the broadcast and not ACTION_TIMEOUT_MILLIS started enableNetwork
+        assertNotNull(shadowOf(wifiManager()).getLastEnabledNetwork());
+        assertEquals(0, client.failures);
+    }
+
+    @Test
+    @Config(sdk = 17)
+    public void unconfirmedDisconnectAdvancesAfterTheActionTimeout() {
+        setConnectedTo(HOME_SSID);
+        connectToAp.connectToAP(config, TIMEOUT_MILLIS, context);
+        ShadowLooper.idleMainLooper();
+
+        ShadowLooper.idleMainLooper(ConnectToAp.ACTION_TIMEOUT_MILLIS - 1, TimeUnit.MILLISECONDS);
+        assertNull(shadowOf(wifiManager()).getLastEnabledNetwork());
+
+        ShadowLooper.idleMainLooper(1, TimeUnit.MILLISECONDS);
+        assertNotNull(shadowOf(wifiManager()).getLastEnabledNetwork());
+        assertEquals(0, client.failures);
+        assertEquals(1, stateReceiverCount());
+    }
+
+    private WifiManager wifiManager() {
+        return (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
+    }
+
+    private void setConnectedTo(String ssid) {
+        WifiInfo wifiInfo = ShadowWifiInfo.newInstance();
+        shadowOf(wifiInfo).setSSID("\"" + ssid + "\"");
+        shadowOf(wifiInfo).setNetworkId(1);
+        shadowOf(wifiManager()).setConnectionInfo(wifiInfo);
+    }
+
+    private static Intent disconnected() {
+        NetworkInfo networkInfo = ShadowNetworkInfo.newInstance(NetworkInfo.DetailedState.DISCONNECTED,
+                ConnectivityManager.TYPE_WIFI, 0, true, NetworkInfo.State.DISCONNECTED);
+        Intent intent = new Intent(WifiManager.NETWORK_STATE_CHANGED_ACTION);
+        intent.putExtra(WifiManager.EXTRA_NETWORK_INFO, networkInfo);
+        return intent;
+    }
+
+    private int stateReceiverCount() {
+        int count = 0;
+        for (ShadowApplication.Wrapper wrapper : shadowOf(context).getRegisteredReceivers()) {
+            if (wrapper.intentFilter.hasAction(WifiManager.NETWORK_STATE_CHANGED_ACTION)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static Intent stateChanged(String ssid) {
+        NetworkInfo networkInfo = ShadowNetworkInfo.newInstance(NetworkInfo.DetailedState.CONNECTED,
+                ConnectivityManager.TYPE_WIFI, 0, true, NetworkInfo.State.CONNECTED);
+        WifiInfo wifiInfo = ShadowWifiInfo.newInstance();
+        shadowOf(wifiInfo).setSSID("\"" + ssid + "\"");
+        Intent intent = new Intent(WifiManager.NETWORK_STATE_CHANGED_ACTION);
+        intent.putExtra(WifiManager.EXTRA_NETWORK_INFO, networkInfo);
+        intent.putExtra(WifiManager.EXTRA_WIFI_INFO, wifiInfo);
+        assertTrue(networkInfo.isConnected());
+        return intent;
+    }
+
+    private static class RecordingClient implements ConnectToAp.Client {
+
+        volatile int successes;
+        volatile int failures;
+        volatile Thread calledOn;
+
+        @Override
+        public void onApConnectionSuccessful(WifiConfiguration config, Context context) {
+            successes++;
+            calledOn = Thread.currentThread();
+        }
+
+        @Override
+        public void onApConnectionFailed(WifiConfiguration config, Context context) {
+            failures++;
+            calledOn = Thread.currentThread();
+        }
+    }
+}
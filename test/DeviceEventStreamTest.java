@@ -0,0 +1,92 @@
+package com.ciklum.pigabstractionlayer.WifiProvisioning;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs DeviceEventStream against the ParticleCloudStandInServer on localhost.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 21)
+public class DeviceEventStreamTest {
+
+    private static final String DEVICE_ID = "0123456789abcdef01234567";
+    private static final long WAIT_MILLIS = 5000;
+
+    private ParticleCloudStandInServer server;
+    private DeviceEventStream stream;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ParticleCloudStandInServer(null);
+        server.start();
+        ParticleCloudTransport.configure(server.getBaseUrl(), null, null);
+        // no ConnectivityManager: the stream connects straight away
+        stream = new DeviceEventStream(DEVICE_ID, "token", null);
+    }
+
+    @After
+    public void tearDown() {
+        stream.close();
+        server.stop();
+        ParticleCloudTransport.configure(ParticleCloudTransport.DEFAULT_BASE_URL, null, null);
+    }
+
+    @Test
+    public void onlineEventOfTheDeviceEndsTheWait() throws Exception {
+        stream.start();
+        awaitOpenStreams(1);
+
+        server.publishEvent("spark/status", "ffffffffffffffffffffffff", "online");
+        server.publishEvent("spark/status", DEVICE_ID, "offline");
+        assertFalse(stream.awaitDeviceEvent(500));
+
+        server.publishEvent("spark/status", DEVICE_ID, "online");
+        assertTrue(stream.awaitDeviceEvent(WAIT_MILLIS));
+    }
+
+    @Test
+    public void reconnectsAfterTheCloudDropsTheStream() throws Exception {
+        stream.start();
+        awaitOpenStreams(1);
+
+        server.closeEventStreams();
+        // the first reconnect comes a second later
+        awaitOpenStreams(1);
+
+        server.publishEvent("spark/status", DEVICE_ID, "online");
+        assertTrue(stream.awaitDeviceEvent(WAIT_MILLIS));
+        assertTrue(server.getRequestCount(DeviceEventStream.EVENTS_ENDPOINT) >= 2);
+    }
+
+    @Test
+    public void closeStopsReconnecting() throws Exception {
+        stream.start();
+        awaitOpenStreams(1);
+
+        stream.close();
+        server.closeEventStreams();
+        Thread.sleep(1500);
+
+        assertEquals(0, server.getEventStreamCount());
+        assertFalse(stream.awaitDeviceEvent(WAIT_MILLIS));
+    }
+
+    private void awaitOpenStreams(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (server.getEventStreamCount() < count) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("No event stream opened");
+            }
+            Thread.sleep(20);
+        }
+    }
+}
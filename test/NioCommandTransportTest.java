@@ -0,0 +1,238 @@
+package com.ciklum.pigabstractionlayer.WifiProvisioning;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs NioCommandTransport against the PhotonSoftApSimulator on localhost: answered commands, many
+ * connections at once on the one selector thread, each of the connect, write and read deadlines,
+ * and close() of a connection with a command in flight.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 21)
+public class NioCommandTransportTest {
+
+    private static final String DEVICE_ID_FRAME = PhotonSoftApSimulator.DEVICE_ID + "\n0\n\n";
+    private static final long SHORT_TIMEOUT_MILLIS = 300;
+    private static final long WAIT_MILLIS = 10000;
+    private static final long COMMAND_LATENCY_MILLIS = 200;
+    private static final int CONCURRENT_CONNECTIONS = 20;
+
+    private final List<Socket> sockets = new ArrayList<Socket>();
+    private PhotonSoftApSimulator device;
+    private ServerSocket silentServer;
+
+    @After
+    public void tearDown() throws IOException {
+        if (device != null) {
+            device.stop();
+        }
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        if (silentServer != null) {
+            silentServer.close();
+        }
+    }
+
+    @Test
+    public void answersACommand() throws Exception {
+        startDevice(PhotonSoftApSimulator.newBuilder());
+        NioCommandTransport transport = newTransport(WAIT_MILLIS, WAIT_MILLIS, WAIT_MILLIS);
+
+        String raw = transport.open(device.getAddress(), null).exchange(DEVICE_ID_FRAME);
+
+        assertTrue(raw, raw.contains("\"id\""));
+        assertEquals(Collections.singletonList(PhotonSoftApSimulator.DEVICE_ID),
+                device.getReceivedCommands());
+    }
+
+    @Test
+    public void hangingDeviceFailsWithReadTimeout() throws Exception {
+        startDevice(PhotonSoftApSimulator.newBuilder()
+                .setFailureMode(PhotonSoftApSimulator.FailureMode.HANG, 1));
+        NioCommandTransport transport = newTransport(WAIT_MILLIS, WAIT_MILLIS, SHORT_TIMEOUT_MILLIS);
+
+        long startedAt = System.nanoTime();
+        try {
+            transport.open(device.getAddress(), null).exchange(DEVICE_ID_FRAME);
+            fail("The hanging device answered");
+        } catch (SocketTimeoutException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("READING"));
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+        assertTrue("Gave up after " + elapsedMillis + " ms",
+                elapsedMillis >= SHORT_TIMEOUT_MILLIS && elapsedMillis < WAIT_MILLIS);
+    }
+
+    @Test
+    public void concurrentConnectionsCompleteOnTheSelectorThread() throws Exception {
+        startDevice(PhotonSoftApSimulator.newBuilder().setCommandLatencyMillis(COMMAND_LATENCY_MILLIS));
+        NioCommandTransport transport = newTransport(WAIT_MILLIS, WAIT_MILLIS, WAIT_MILLIS);
+
+        final CountDownLatch done = new CountDownLatch(CONCURRENT_CONNECTIONS);
+        final Set<String> callbackThreads = Collections.synchronizedSet(new HashSet<String>());
+        final List<String> responses = Collections.synchronizedList(new ArrayList<String>());
+        final List<IOException> failures = Collections.synchronizedList(new ArrayList<IOException>());
+
+        long startedAt = System.nanoTime();
+        for (int i = 0; i < CONCURRENT_CONNECTIONS; i++) {
+            transport.open(device.getAddress(), null).send(DEVICE_ID_FRAME,
+                    new NioCommandTransport.Callback() {
+                        @Override
+                        public void onResponse(String rawResponse) {
+                            callbackThreads.add(Thread.currentThread().getName());
+                            responses.add(rawResponse);
+                            done.countDown();
+                        }
+
+                        @Override
+                        public void onFailure(IOException error) {
+                            callbackThreads.add(Thread.currentThread().getName());
+                            failures.add(error);
+                            done.countDown();
+                        }
+                    });
+        }
+        assertTrue(done.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+
+        assertEquals(failures.toString(), 0, failures.size());
+        assertEquals(CONCURRENT_CONNECTIONS, responses.size());
+        assertEquals(CONCURRENT_CONNECTIONS, device.getConnectionsAccepted());
+        assertEquals(Collections.singleton("NioCommandTransport"), callbackThreads);
+        // one command after the other would take CONCURRENT_CONNECTIONS * COMMAND_LATENCY_MILLIS
+        assertTrue("Took " + elapsedMillis + " ms",
+                elapsedMillis < CONCURRENT_CONNECTIONS * COMMAND_LATENCY_MILLIS / 2);
+    }
+
+    @Test
+    public void unansweredConnectFailsWithConnectTimeout() throws Exception {
+        // A listener that never accepts: once its backlog is full, further SYNs go unanswered.
+        silentServer = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        InetSocketAddress address = new InetSocketAddress(silentServer.getInetAddress(),
+                silentServer.getLocalPort());
+        Assume.assumeTrue("Could not fill the listen backlog", fillBacklog(address));
+        NioCommandTransport transport = newTransport(SHORT_TIMEOUT_MILLIS, WAIT_MILLIS, WAIT_MILLIS);
+
+        try {
+            transport.open(address, null).exchange(DEVICE_ID_FRAME);
+            fail("Connected to a full backlog");
+        } catch (SocketTimeoutException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("CONNECTING"));
+        }
+    }
+
+    @Test
+    public void unreadFrameFailsWithWriteTimeout() throws Exception {
+        // Accepts, but never reads, so the frame fills the socket buffers.
+        silentServer = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        InetSocketAddress address = new InetSocketAddress(silentServer.getInetAddress(),
+                silentServer.getLocalPort());
+        NioCommandTransport transport = newTransport(WAIT_MILLIS, SHORT_TIMEOUT_MILLIS, WAIT_MILLIS);
+        char[] payload = new char[16 * 1024 * 1024];
+        Arrays.fill(payload, 'x');
+
+        try {
+            transport.open(address, null).exchange(PhotonSoftApSimulator.SET + "\n"
+                    + payload.length + "\n\n" + new String(payload));
+            fail("The unread frame was written");
+        } catch (SocketTimeoutException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("WRITING"));
+        }
+    }
+
+    @Test
+    public void closeFailsTheCommandInFlight() throws Exception {
+        startDevice(PhotonSoftApSimulator.newBuilder()
+                .setFailureMode(PhotonSoftApSimulator.FailureMode.HANG, 1));
+        NioCommandTransport transport = newTransport(WAIT_MILLIS, WAIT_MILLIS, WAIT_MILLIS);
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final IOException[] failure = new IOException[1];
+        final boolean[] answered = new boolean[1];
+        NioCommandTransport.Connection connection = transport.open(device.getAddress(), null);
+        connection.send(DEVICE_ID_FRAME, new NioCommandTransport.Callback() {
+            @Override
+            public void onResponse(String rawResponse) {
+                answered[0] = true;
+                done.countDown();
+            }
+
+            @Override
+            public void onFailure(IOException error) {
+                failure[0] = error;
+                done.countDown();
+            }
+        });
+        awaitReceivedCommands(1);
+
+        connection.close();
+
+        assertTrue(done.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+        assertFalse(answered[0]);
+        assertFalse(failure[0] instanceof SocketTimeoutException);
+        assertEquals("Connection closed", failure[0].getMessage());
+    }
+
+    private void startDevice(PhotonSoftApSimulator.Builder builder) throws Exception {
+        device = builder.build();
+        device.start();
+    }
+
+    private static NioCommandTransport newTransport(long connectTimeoutMillis,
+                                                    long writeTimeoutMillis,
+                                                    long readTimeoutMillis) {
+        return new NioCommandTransport(connectTimeoutMillis, writeTimeoutMillis, readTimeoutMillis);
+    }
+
+    /**
+     * Connects plain sockets until one is no longer accepted into the backlog.
+     *
+     * @return whether the backlog is full
+     */
+    private boolean fillBacklog(InetSocketAddress address) throws IOException {
+        for (int i = 0; i < 64; i++) {
+            Socket socket = new Socket();
+            sockets.add(socket);
+            try {
+                socket.connect(address, (int) SHORT_TIMEOUT_MILLIS);
+            } catch (SocketTimeoutException e) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void awaitReceivedCommands(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (device.getReceivedCommands().size() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, device.getReceivedCommands().size());
+    }
+}
@@ -0,0 +1,419 @@
+package com.ciklum.pigabstractionlayer.WifiProvisioning;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ServerSocketFactory;
+
+/**
+ * ParticleCloudStandInServer
+ * A minimal HTTP/1.1 server answering the Particle cloud endpoints this library calls (/oauth/token,
+ * the product customers endpoint and /v1/device_claims), so that authentication and claim code
+ * generation can be benchmarked on localhost. Point the library at it with
+ * ParticleCloudTransport.configure(server.getBaseUrl(), ...).
+ *
+ * Connections are kept alive like the real cloud's, so the pooled transport is measured as it is
+ * used in production. Pass an SSLServerSocketFactory to serve HTTPS instead of plain HTTP.
+ *
+ * GET /v1/devices/events is served as a server-sent event stream; publishEvent() sends an event
+ * to every open stream, standing in for a device coming online or being claimed.
+ *
+ * To see how clients behave when the cloud is overloaded, the server can add random latency and
+ * answer a share of requests with 429 (with a Retry-After header) or 503.
+ *
+ * Only plain Java and org.json are used, so this runs on any JVM.
+ */
+public class ParticleCloudStandInServer {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final long TOKEN_LIFETIME_SECONDS = 90L * 24 * 60 * 60;
+
+    private final ServerSocketFactory serverSocketFactory;
+    private final boolean secure;
+    private final ExecutorService connectionExecutor = Executors.newCachedThreadPool();
+    private final Map<String, AtomicInteger> requestCounts = new HashMap<String, AtomicInteger>();
+
+    private final AtomicInteger connectionsAccepted = new AtomicInteger();
+    private final AtomicInteger throttledResponses = new AtomicInteger();
+    private final AtomicInteger serverErrorResponses = new AtomicInteger();
+    private final Random random = new Random();
+    private final List<OutputStream> eventStreams = new CopyOnWriteArrayList<OutputStream>();
+
+    private volatile long responseLatencyMillis;
+    private volatile long responseLatencyJitterMillis;
+    private volatile double throttleProbability;
+    private volatile double serverErrorProbability;
+    private volatile int retryAfterSeconds = 1;
+
+    private ServerSocket serverSocket;
+
+    /**
+     * @param serverSocketFactory null for plain HTTP
+     */
+    public ParticleCloudStandInServer(ServerSocketFactory serverSocketFactory) {
+        this.secure = serverSocketFactory != null;
+        this.serverSocketFactory = secure ? serverSocketFactory : ServerSocketFactory.getDefault();
+    }
+
+    /**
+     * @param responseLatencyMillis delay before every response, standing in for the round trip to
+     *                              the real cloud
+     */
+    public void setResponseLatencyMillis(long responseLatencyMillis) {
+        this.responseLatencyMillis = responseLatencyMillis;
+    }
+
+    /**
+     * @param jitterMillis up to this much extra delay, uniformly distributed, on top of the fixed
+     *                     latency
+     */
+    public void setResponseLatencyJitterMillis(long jitterMillis) {
+        this.responseLatencyJitterMillis = jitterMillis;
+    }
+
+    /**
+     * @param throttleProbability share of requests (0 to 1) answered with 429
+     * @param serverErrorProbability share of requests (0 to 1) answered with 503
+     */
+    public void setFaults(double throttleProbability, double serverErrorProbability) {
+        this.throttleProbability = throttleProbability;
+        this.serverErrorProbability = serverErrorProbability;
+    }
+
+    /**
+     * @param retryAfterSeconds value of the Retry-After header sent with 429 responses
+     */
+    public void setRetryAfterSeconds(int retryAfterSeconds) {
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public synchronized void start() throws IOException {
+        serverSocket = serverSocketFactory.createServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "ParticleCloudStandInServer");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public synchronized void stop() {
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException ignored) {
+        }
+        connectionExecutor.shutdownNow();
+    }
+
+    public String getBaseUrl() {
+        return (secure ? "https" : "http") + "://127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    /**
+     * @param path request path without the query string
+     * @return how many requests were made to it
+     */
+    public int getRequestCount(String path) {
+        synchronized (requestCounts) {
+            AtomicInteger count = requestCounts.get(path);
+            return count == null ? 0 : count.get();
+        }
+    }
+
+    /**
+     * Sends an event to every open event stream, formatted as the Particle cloud does.
+     *
+     * @param name e.g. spark/status
+     * @param deviceId
+     * @param data e.g. online
+     */
+    public void publishEvent(String name, String deviceId, String data) {
+        String event;
+        try {
+            event = "event: " + name + "\ndata: " + new JSONObject()
+                    .put("data", data)
+                    .put("ttl", 60)
+                    .put("published_at", System.currentTimeMillis())
+                    .put("coreid", deviceId) + "\n\n";
+        } catch (JSONException e) {
+            throw new IllegalArgumentException(e);
+        }
+        for (OutputStream stream : eventStreams) {
+            try {
+                synchronized (stream) {
+                    stream.write(event.getBytes(UTF8));
+                    stream.flush();
+                }
+            } catch (IOException e) {
+                eventStreams.remove(stream);
+            }
+        }
+    }
+
+    /**
+     * Hangs up every open event stream, standing in for the cloud dropping the connection.
+     */
+    public void closeEventStreams() {
+        for (OutputStream stream : eventStreams) {
+            eventStreams.remove(stream);
+            try {
+                synchronized (stream) {
+                    stream.close();
+                }
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * @return how many event streams are open
+     */
+    public int getEventStreamCount() {
+        return eventStreams.size();
+    }
+
+    /**
+     * @return how many connections the server has accepted, so reuse of pooled ones shows
+     */
+    public int getConnectionsAccepted() {
+        return connectionsAccepted.get();
+    }
+
+    public int getThrottledResponses() {
+        return throttledResponses.get();
+    }
+
+    public int getServerErrorResponses() {
+        return serverErrorResponses.get();
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            connectionsAccepted.incrementAndGet();
+            connectionExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            });
+        }
+    }
+
+    /**
+     * Answers requests on one connection until the client closes it.
+     */
+    private void serve(Socket socket) {
+        try {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            while (true) {
+                String requestLine = readLine(in);
+                if (requestLine == null || requestLine.isEmpty()) {
+                    return;
+                }
+                String[] parts = requestLine.split(" ");
+                String method = parts[0];
+                String path = parts.length > 1 ? parts[1].split("\\?")[0] : "/";
+
+                int contentLength = 0;
+                boolean close = false;
+                String header;
+                while ((header = readLine(in)) != null && !header.isEmpty()) {
+                    String lower = header.toLowerCase(Locale.US);
+                    if (lower.startsWith("content-length:")) {
+                        contentLength = Integer.parseInt(header.substring(15).trim());
+                    } else if (lower.startsWith("connection:") && lower.contains("close")) {
+                        close = true;
+                    }
+                }
+                skip(in, contentLength);
+                countRequest(path);
+
+                long latencyMillis = responseLatencyMillis + nextJitterMillis();
+                if (latencyMillis > 0) {
+                    Thread.sleep(latencyMillis);
+                }
+                if ("GET".equals(method) && DeviceEventStream.EVENTS_ENDPOINT.equals(path)) {
+                    serveEventStream(in, out);
+                    return;
+                }
+                writeResponse(out, method, maybeFault(route(method, path)));
+                if (close) {
+                    return;
+                }
+            }
+        } catch (IOException | JSONException | NumberFormatException | InterruptedException e) {
+            // connection dropped
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Keeps an event stream open until the client closes it. The stream has no length, so the
+     * connection is not reused afterwards.
+     */
+    private void serveEventStream(InputStream in, OutputStream out) throws IOException {
+        String head = "HTTP/1.1 200 OK\r\n"
+                + "Content-Type: text/event-stream\r\n"
+                + "Cache-Control: no-cache\r\n"
+                + "Connection: close\r\n"
+                + "\r\n"
+                + ":ok\n\n";
+        out.write(head.getBytes(UTF8));
+        out.flush();
+        eventStreams.add(out);
+        try {
+            while (in.read() != -1) {
+                // the client sends nothing more; wait for it to hang up
+            }
+        } finally {
+            eventStreams.remove(out);
+        }
+    }
+
+    /**
+     * Status code and body for a request, or null for 404.
+     */
+    Response route(String method, String path) throws JSONException {
+        if ("POST".equals(method) && ("/oauth/token".equals(path)
+                || (path.startsWith("/v1/products/") && path.endsWith("/customers")))) {
+            return new Response(200, new JSONObject()
+                    .put("access_token", UUID.randomUUID().toString().replace("-", ""))
+                    .put("token_type", "bearer")
+                    .put("expires_in", TOKEN_LIFETIME_SECONDS));
+        }
+        if ("POST".equals(method) && "/v1/device_claims".equals(path)) {
+            return new Response(200, new JSONObject()
+                    .put("claim_code", UUID.randomUUID().toString().replace("-", "")));
+        }
+        return new Response(404, new JSONObject().put("error", "not_found"));
+    }
+
+    private Response maybeFault(Response response) throws JSONException {
+        double roll;
+        synchronized (random) {
+            roll = random.nextDouble();
+        }
+        if (roll < throttleProbability) {
+            throttledResponses.incrementAndGet();
+            return new Response(429, new JSONObject().put("error", "rate_limited"),
+                    "Retry-After: " + retryAfterSeconds + "\r\n");
+        }
+        if (roll < throttleProbability + serverErrorProbability) {
+            serverErrorResponses.incrementAndGet();
+            return new Response(503, new JSONObject().put("error", "unavailable"));
+        }
+        return response;
+    }
+
+    private long nextJitterMillis() {
+        long jitter = responseLatencyJitterMillis;
+        if (jitter <= 0) {
+            return 0;
+        }
+        synchronized (random) {
+            return (long) (random.nextDouble() * jitter);
+        }
+    }
+
+    private void writeResponse(OutputStream out, String method, Response response) throws IOException {
+        byte[] body = response.body.toString().getBytes(UTF8);
+        String head = "HTTP/1.1 " + response.code + " " + (response.code < 300 ? "OK" : "Error") + "\r\n"
+                + "Content-Type: application/json\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + response.extraHeaders
+                + "\r\n";
+        out.write(head.getBytes(UTF8));
+        if (!"HEAD".equals(method)) {
+            out.write(body);
+        }
+        out.flush();
+    }
+
+    private void countRequest(String path) {
+        synchronized (requestCounts) {
+            AtomicInteger count = requestCounts.get(path);
+            if (count == null) {
+                count = new AtomicInteger();
+                requestCounts.put(path, count);
+            }
+            count.incrementAndGet();
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        return new String(line.toByteArray(), UTF8);
+    }
+
+    private static void skip(InputStream in, int length) throws IOException {
+        int remaining = length;
+        while (remaining > 0) {
+            if (in.read() == -1) {
+                throw new IOException("Connection closed inside a request body");
+            }
+            remaining--;
+        }
+    }
+
+
+    static class Response {
+
+        final int code;
+        final JSONObject body;
+        final String extraHeaders;
+
+        Response(int code, JSONObject body) {
+            this(code, body, "");
+        }
+
+        Response(int code, JSONObject body, String extraHeaders) {
+            this.code = code;
+            this.body = body;
+            this.extraHeaders = extraHeaders;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.ciklum.pigabstractionlayer.WifiProvisioning;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import okhttp3.tls.HandshakeCertificates;
+import okhttp3.tls.HeldCertificate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs ParticleCloudTransport against the ParticleCloudStandInServer over HTTPS, with a
+ * self-signed certificate for 127.0.0.1 that only the transport under test trusts.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 21)
+public class ParticleCloudTransportTest {
+
+    private static final String CLAIM_CODE_ENDPOINT = "POST /v1/device_claims";
+    private static final int REQUESTS = 5;
+    private static final long RESPONSE_LATENCY_MILLIS = 20;
+
+    private ParticleCloudStandInServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        HeldCertificate certificate = new HeldCertificate.Builder()
+                .addSubjectAlternativeName("127.0.0.1")
+                .build();
+        HandshakeCertificates serverCertificates = new HandshakeCertificates.Builder()
+                .heldCertificate(certificate)
+                .build();
+        HandshakeCertificates clientCertificates = new HandshakeCertificates.Builder()
+                .addTrustedCertificate(certificate.certificate())
+                .build();
+
+        server = new ParticleCloudStandInServer(
+                serverCertificates.sslContext().getServerSocketFactory());
+        server.setResponseLatencyMillis(RESPONSE_LATENCY_MILLIS);
+        server.start();
+        ParticleCloudTransport.configure(server.getBaseUrl(),
+                clientCertificates.sslSocketFactory(), clientCertificates.trustManager());
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+        ParticleCloudTransport.configure(ParticleCloudTransport.DEFAULT_BASE_URL, null, null);
+    }
+
+    @Test
+    public void requestsReuseThePooledTlsConnection() throws Exception {
+        assertTrue(server.getBaseUrl(), server.getBaseUrl().startsWith("https://"));
+
+        Set<String> claimCodes = new HashSet<String>();
+        for (int i = 0; i < REQUESTS; i++) {
+            claimCodes.add(ParticleCloudAuthentication.generateClaimCodeBlocking("token"));
+        }
+
+        assertEquals(REQUESTS, claimCodes.size());
+        assertEquals(REQUESTS, server.getRequestCount("/v1/device_claims"));
+        // one TLS handshake; every later request went over the pooled connection
+        assertEquals(1, server.getConnectionsAccepted());
+        assertEquals(1, ParticleCloudTransport.get().client().connectionPool().connectionCount());
+    }
+
+    @Test
+    public void latencyIsRecordedPerEndpoint() throws Exception {
+        for (int i = 0; i < REQUESTS; i++) {
+            ParticleCloudAuthentication.generateClaimCodeBlocking("token");
+        }
+
+        ParticleCloudTransport.LatencyStats.Entry entry =
+                ParticleCloudTransport.get().getLatencyStats().snapshot().get(CLAIM_CODE_ENDPOINT);
+        assertNotNull(entry);
+        assertEquals(REQUESTS, entry.count);
+        assertEquals(0, entry.failures);
+        assertTrue(entry.totalMillis + " ms in total", entry.totalMillis >= REQUESTS * RESPONSE_LATENCY_MILLIS);
+        assertTrue(entry.maxMillis >= entry.averageMillis());
+        assertTrue(entry.lastMillis >= RESPONSE_LATENCY_MILLIS);
+    }
+}
@@ -0,0 +1,356 @@
+package com.ciklum.pigabstractionlayer.WifiProvisioning;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * PhotonSoftApSimulator
+ * A stand-in for a Photon in listen mode, listening on localhost. It speaks the same SoftAP command
+ * protocol CommandClient uses: one command per TCP connection, sent as
+ *
+ *     command-name\n
+ *     payload-length\n
+ *     \n
+ *     json-payload
+ *
+ * and answered with "length\n\njson" before the device closes the connection. The supported
+ * commands are device-id, public-key, set, scan-ap, configure-ap and connect-ap.
+ *
+ * Latency, the RSA key size and failure behaviour are configurable, so the discovery and
+ * configuration flow can be exercised and timed without a physical device. This class only uses
+ * plain Java and org.json, so it runs on any JVM.
+ */
+public class PhotonSoftApSimulator {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static final String DEVICE_ID = "device-id";
+    public static final String PUBLIC_KEY = "public-key";
+    public static final String SET = "set";
+    public static final String SCAN_AP = "scan-ap";
+    public static final String CONFIGURE_AP = "configure-ap";
+    public static final String CONNECT_AP = "connect-ap";
+
+    /**
+     * What the simulator does with a command it has decided to fail.
+     */
+    public enum FailureMode {
+        // answer normally
+        NONE,
+        // close the connection without answering
+        DROP_CONNECTION,
+        // answer with a non-zero result code
+        ERROR_RESPONSE,
+        // keep the connection open without ever answering
+        HANG
+    }
+
+    private final String deviceId;
+    private final boolean claimed;
+    private final KeyPair keyPair;
+    private final long commandLatencyMillis;
+    private final FailureMode failureMode;
+    private final double failureProbability;
+    private final List<String> scannedNetworks;
+
+    private final Random random = new Random();
+    private final AtomicInteger connectionsAccepted = new AtomicInteger();
+    private final List<String> receivedCommands = Collections.synchronizedList(new ArrayList<String>());
+    private final ExecutorService connectionExecutor = Executors.newCachedThreadPool();
+
+    private volatile String claimCode;
+    private volatile JSONObject configuredNetwork;
+    private volatile boolean connectRequested;
+
+    private ServerSocket serverSocket;
+    private Thread acceptThread;
+
+    private PhotonSoftApSimulator(Builder builder) throws NoSuchAlgorithmException {
+        deviceId = builder.deviceId;
+        claimed = builder.claimed;
+        commandLatencyMillis = builder.commandLatencyMillis;
+        failureMode = builder.failureMode;
+        failureProbability = builder.failureProbability;
+        scannedNetworks = new ArrayList<String>(builder.scannedNetworks);
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(builder.keySizeBits);
+        keyPair = generator.generateKeyPair();
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * Starts listening on a free localhost port.
+     *
+     * @return the address CommandClient should connect to
+     * @throws IOException
+     */
+    public synchronized InetSocketAddress start() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "PhotonSoftApSimulator");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        return getAddress();
+    }
+
+    public synchronized void stop() {
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException ignored) {
+        }
+        connectionExecutor.shutdownNow();
+    }
+
+    public InetSocketAddress getAddress() {
+        return new InetSocketAddress(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+    }
+
+    public int getConnectionsAccepted() {
+        return connectionsAccepted.get();
+    }
+
+    public List<String> getReceivedCommands() {
+        synchronized (receivedCommands) {
+            return new ArrayList<String>(receivedCommands);
+        }
+    }
+
+    public String getClaimCode() {
+        return claimCode;
+    }
+
+    public JSONObject getConfiguredNetwork() {
+        return configuredNetwork;
+    }
+
+    public boolean isConnectRequested() {
+        return connectRequested;
+    }
+
+    public KeyPair getKeyPair() {
+        return keyPair;
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            connectionsAccepted.incrementAndGet();
+            connectionExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handle(socket);
+                }
+            });
+        }
+    }
+
+    private void handle(Socket socket) {
+        try {
+            InputStream in = socket.getInputStream();
+            String commandName = readLine(in);
+            if (commandName == null) {
+                // e.g. a readiness probe that only connects
+                return;
+            }
+            int payloadLength = Integer.parseInt(readLine(in).trim());
+            readLine(in);
+            byte[] payload = readFully(in, payloadLength);
+            receivedCommands.add(commandName);
+
+            if (commandLatencyMillis > 0) {
+                Thread.sleep(commandLatencyMillis);
+            }
+
+            boolean fail = failureMode != FailureMode.NONE && random.nextDouble() < failureProbability;
+            if (fail && failureMode == FailureMode.DROP_CONNECTION) {
+                return;
+            }
+            if (fail && failureMode == FailureMode.HANG) {
+                // wait until the client gives up
+                while (in.read() != -1) {
+                    // discard
+                }
+                return;
+            }
+
+            JSONObject response = fail
+                    ? new JSONObject().put("r", -1)
+                    : respond(commandName, payloadLength == 0 ? null : new JSONObject(new String(payload, UTF8)));
+            byte[] body = response.toString().getBytes(UTF8);
+            OutputStream out = socket.getOutputStream();
+            out.write((body.length + "\n\n").getBytes(UTF8));
+            out.write(body);
+            out.flush();
+        } catch (IOException | JSONException | NumberFormatException | InterruptedException e) {
+            // the client sees a dropped connection
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private JSONObject respond(String commandName, JSONObject args) throws JSONException {
+        if (DEVICE_ID.equals(commandName)) {
+            return new JSONObject().put("id", deviceId).put("c", claimed ? "1" : "0");
+
+        } else if (PUBLIC_KEY.equals(commandName)) {
+            return new JSONObject().put("r", 0).put("b", toHex(keyPair.getPublic().getEncoded()));
+
+        } else if (SET.equals(commandName)) {
+            if (args != null && "cc".equals(args.optString("k"))) {
+                claimCode = args.optString("v");
+            }
+            return new JSONObject().put("r", 0);
+
+        } else if (SCAN_AP.equals(commandName)) {
+            JSONArray scans = new JSONArray();
+            for (String ssid : scannedNetworks) {
+                scans.put(new JSONObject().put("ssid", ssid).put("sec", 4194310).put("ch", 6)
+                        .put("rssi", -50));
+            }
+            return new JSONObject().put("scans", scans);
+
+        } else if (CONFIGURE_AP.equals(commandName)) {
+            configuredNetwork = args;
+            return new JSONObject().put("r", 0);
+
+        } else if (CONNECT_AP.equals(commandName)) {
+            connectRequested = true;
+            return new JSONObject().put("r", 0);
+        }
+        return new JSONObject().put("r", -1);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        return new String(line.toByteArray(), UTF8);
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] buffer = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int count = in.read(buffer, read, length - read);
+            if (count == -1) {
+                throw new IOException("Connection closed after " + read + " of " + length + " bytes");
+            }
+            read += count;
+        }
+        return buffer;
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] digits = "0123456789abcdef".toCharArray();
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = digits[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = digits[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+
+    public static class Builder {
+
+        private String deviceId = "0123456789abcdef01234567";
+        private boolean claimed = false;
+        private int keySizeBits = 1024;
+        private long commandLatencyMillis = 0;
+        private FailureMode failureMode = FailureMode.NONE;
+        private double failureProbability = 0;
+        private List<String> scannedNetworks = Collections.singletonList("HomeNetwork");
+
+        private Builder() {
+        }
+
+        public Builder setDeviceId(String deviceId) {
+            this.deviceId = deviceId;
+            return this;
+        }
+
+        public Builder setClaimed(boolean claimed) {
+            this.claimed = claimed;
+            return this;
+        }
+
+        /**
+         * @param keySizeBits RSA key size; real Photons use 1024
+         */
+        public Builder setKeySizeBits(int keySizeBits) {
+            this.keySizeBits = keySizeBits;
+            return this;
+        }
+
+        /**
+         * @param commandLatencyMillis delay before each command is answered
+         */
+        public Builder setCommandLatencyMillis(long commandLatencyMillis) {
+            this.commandLatencyMillis = commandLatencyMillis;
+            return this;
+        }
+
+        /**
+         * @param failureMode what to do with a failed command
+         * @param probability chance (0 to 1) that any one command fails
+         */
+        public Builder setFailureMode(FailureMode failureMode, double probability) {
+            this.failureMode = failureMode;
+            this.failureProbability = probability;
+            return this;
+        }
+
+        public Builder setScannedNetworks(List<String> scannedNetworks) {
+            this.scannedNetworks = scannedNetworks;
+            return this;
+        }
+
+        public PhotonSoftApSimulator build() throws NoSuchAlgorithmException {
+            return new PhotonSoftApSimulator(this);
+        }
+    }
+}
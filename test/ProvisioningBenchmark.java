@@ -0,0 +1,216 @@
+package com.ciklum.pigabstractionlayer.WifiProvisioning;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.particle.android.sdk.devicesetup.SetupProcessException;
+import io.particle.android.sdk.devicesetup.commands.ScanApCommand;
+import io.particle.android.sdk.devicesetup.commands.data.WifiSecurity;
+
+/**
+ * ProvisioningBenchmark
+ * Runs complete provisioning sessions against a PhotonSoftApSimulator and a
+ * ParticleCloudStandInServer and reports the p50/p99 session time.
+ *
+ * A session does what a real one does once the phone is on the SoftAP: fetch an access token and
+ * a claim code through the ParticleCloudTransport, run the manager's DiscoverProcessWorker (device
+ * id, public key from the DeviceIdentityCache or the device, claim code), then run the steps
+ * buildSteps() builds for configure-ap and connect-ap, with the encryption started ahead by the
+ * worker, all over one CommandSession on the NioCommandTransport. Joining the SoftAP and the cloud
+ * polling steps need a real Wi-Fi radio and are not part of the measurement.
+ *
+ * Every failed session is counted by the kind of exception it failed with, and the first one of
+ * each kind is kept, so a run with failures says why. run() fails once more than
+ * MAX_FAILURE_RATE of the sessions failed, since the times of such a run mean little.
+ *
+ * It needs a Context for the checkpoint store and the DeviceIdentityCache; ProvisioningBenchmarkTest
+ * runs it under Robolectric, and an instrumentation test can run it on a phone.
+ */
+public class ProvisioningBenchmark {
+
+    private static final String TAG = "ProvisioningBenchmark";
+    private static final String NETWORK_SSID = "HomeNetwork";
+    private static final String NETWORK_SECRET = "benchmark-secret";
+    private static final int NETWORK_CHANNEL = 6;
+    private static final long STEPS_TIMEOUT_SECONDS = 60;
+    static final double MAX_FAILURE_RATE = 0.01;
+
+    /**
+     * Session times of one run, in milliseconds.
+     */
+    public static class Result {
+
+        public final int sessions;
+        public final int failures;
+        public final long p50Millis;
+        public final long p99Millis;
+        public final long maxMillis;
+        public final double roundTripsPerSession;
+        public final double connectionsPerSession;
+        // Failed sessions by exception class, and the first exception of each class.
+        public final Map<String, Integer> failuresByKind;
+        public final Map<String, Exception> firstFailures;
+
+        Result(List<Long> sessionMillis, Map<String, Integer> failuresByKind,
+               Map<String, Exception> firstFailures, int roundTrips, int connectionsOpened) {
+            List<Long> sorted = new ArrayList<Long>(sessionMillis);
+            Collections.sort(sorted);
+            int failed = 0;
+            for (int count : failuresByKind.values()) {
+                failed += count;
+            }
+            this.sessions = sessionMillis.size() + failed;
+            this.failures = failed;
+            this.p50Millis = percentile(sorted, 50);
+            this.p99Millis = percentile(sorted, 99);
+            this.maxMillis = sorted.isEmpty() ? 0 : sorted.get(sorted.size() - 1);
+            this.roundTripsPerSession = sessions == 0 ? 0 : (double) roundTrips / sessions;
+            this.connectionsPerSession = sessions == 0 ? 0 : (double) connectionsOpened / sessions;
+            this.failuresByKind = failuresByKind;
+            this.firstFailures = firstFailures;
+        }
+
+        public double getFailureRate() {
+            return sessions == 0 ? 0 : (double) failures / sessions;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder result = new StringBuilder("sessions=" + sessions + " failures=" + failures
+                    + " p50=" + p50Millis + "ms p99=" + p99Millis + "ms max=" + maxMillis + "ms"
+                    + String.format(" roundTrips/session=%.1f connections/session=%.1f",
+                    roundTripsPerSession, connectionsPerSession));
+            for (Map.Entry<String, Integer> kind : failuresByKind.entrySet()) {
+                result.append("\n  ").append(kind.getValue()).append("x ").append(kind.getKey())
+                        .append(": ").append(firstFailures.get(kind.getKey()).getMessage());
+            }
+            return result.toString();
+        }
+    }
+
+    private final Context context;
+    private final PhotonSoftApSimulator device;
+    private final ParticleCloudStandInServer cloud;
+
+    private int roundTrips;
+    private int connectionsOpened;
+
+    /**
+     * Both servers must already be started.
+     *
+     * @param context
+     * @param device
+     * @param cloud
+     */
+    public ProvisioningBenchmark(Context context, PhotonSoftApSimulator device,
+                                 ParticleCloudStandInServer cloud) {
+        this.context = context;
+        this.device = device;
+        this.cloud = cloud;
+    }
+
+    /**
+     * Runs the sessions one after the other. Points the process-wide ParticleCloudTransport at the
+     * stand-in server.
+     *
+     * @param sessions
+     * @return Result
+     * @throws IllegalStateException if more than MAX_FAILURE_RATE of the sessions failed; the
+     *                               first failure is its cause
+     */
+    public Result run(int sessions) {
+        ParticleCloudTransport.configure(cloud.getBaseUrl(), null, null);
+        CommandSession.Connector connector = NioCommandTransport.get().connector(null);
+
+        List<Long> sessionMillis = new ArrayList<Long>();
+        Map<String, Integer> failuresByKind = new LinkedHashMap<String, Integer>();
+        Map<String, Exception> firstFailures = new LinkedHashMap<String, Exception>();
+        Exception firstFailure = null;
+        roundTrips = 0;
+        connectionsOpened = 0;
+        for (int i = 0; i < sessions; i++) {
+            long startedAt = System.nanoTime();
+            try {
+                runSession(i, connector);
+                sessionMillis.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+            } catch (Exception e) {
+                String kind = e.getClass().getName();
+                Integer count = failuresByKind.get(kind);
+                failuresByKind.put(kind, count == null ? 1 : count + 1);
+                if (!firstFailures.containsKey(kind)) {
+                    firstFailures.put(kind, e);
+                    Log.w(TAG, "Session " + i + " failed", e);
+                }
+                if (firstFailure == null) {
+                    firstFailure = e;
+                }
+            }
+        }
+        Result result = new Result(sessionMillis, failuresByKind, firstFailures, roundTrips,
+                connectionsOpened);
+        if (result.getFailureRate() > MAX_FAILURE_RATE) {
+            throw new IllegalStateException("Too many failed sessions: " + result, firstFailure);
+        }
+        return result;
+    }
+
+    private void runSession(int index, CommandSession.Connector connector) throws Exception {
+        ParticleAccessTokenCache.CachedToken token =
+                ParticleCloudAuthentication.getAccessTokenBlocking("benchmark" + index + "@example.com");
+
+        WifiProvisionManager manager = new WifiProvisionManager();
+        manager.mClaimCode = ParticleCloudAuthentication.generateClaimCodeBlocking(token.accessToken);
+        manager.mNetworkToConnectTo = new ScanApCommand.Scan(NETWORK_SSID,
+                WifiSecurity.WPA2_AES_PSK.asInt(), NETWORK_CHANNEL);
+        manager.mNetworkSecretPlaintext = NETWORK_SECRET;
+
+        CommandSession session = new CommandSession(connector, device.getAddress());
+        manager.attachCommandSession(context, session);
+        try {
+            manager.getDiscoverProcessWorker().doTheThing();
+            runSteps(manager.buildDeviceSteps());
+        } finally {
+            session.close();
+            WifiProvisionManager.discardSession(context, manager.getSessionId());
+            roundTrips += session.getRoundTrips();
+            connectionsOpened += session.getConnectionsOpened();
+        }
+    }
+
+    private static void runSteps(ParallelStepRunner runner) throws Exception {
+        final CountDownLatch finished = new CountDownLatch(1);
+        final AtomicReference<SetupProcessException> failure = new AtomicReference<SetupProcessException>();
+        runner.start(new ParallelStepRunner.Listener() {
+            @Override
+            public void onFinished(SetupProcessException error) {
+                failure.set(error);
+                finished.countDown();
+            }
+        });
+        if (!finished.await(STEPS_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            runner.cancel();
+            throw new IllegalStateException("Setup steps did not finish in "
+                    + STEPS_TIMEOUT_SECONDS + "s");
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    static long percentile(List<Long> sorted, double percentile) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(sorted.size() * percentile / 100.0);
+        return sorted.get(Math.max(0, rank - 1));
+    }
+}
@@ -0,0 +1,63 @@
+package com.ciklum.pigabstractionlayer.WifiProvisioning;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a short ProvisioningBenchmark against the simulator and the stand-in cloud on localhost, so
+ * that the benchmark keeps working as the session code changes. The numbers are printed, not
+ * checked; run more sessions with real latencies to compare them.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 21)
+public class ProvisioningBenchmarkTest {
+
+    private static final int SESSIONS = 20;
+
+    private PhotonSoftApSimulator device;
+    private ParticleCloudStandInServer cloud;
+
+    @Before
+    public void setUp() throws Exception {
+        // a device id of its own, so no other test has put its key in the DeviceIdentityCache
+        device = PhotonSoftApSimulator.newBuilder()
+                .setDeviceId(String.format("%024x", System.nanoTime()))
+                .build();
+        cloud = new ParticleCloudStandInServer(null);
+        device.start();
+        cloud.start();
+    }
+
+    @After
+    public void tearDown() {
+        device.stop();
+        cloud.stop();
+        ParticleCloudTransport.configure(ParticleCloudTransport.DEFAULT_BASE_URL, null, null);
+    }
+
+    @Test
+    public void sessionsSucceedAndReuseTheCachedPublicKey() {
+        ProvisioningBenchmark.Result result = new ProvisioningBenchmark(
+                RuntimeEnvironment.application, device, cloud).run(SESSIONS);
+        System.out.println(result);
+
+        assertEquals(result.toString(), 0, result.failures);
+        assertEquals(SESSIONS, result.sessions);
+        // only the first session asks the device for its key; the rest take it from the cache
+        assertEquals(1, Collections.frequency(device.getReceivedCommands(),
+                PhotonSoftApSimulator.PUBLIC_KEY));
+        assertEquals(SESSIONS, Collections.frequency(device.getReceivedCommands(),
+                PhotonSoftApSimulator.CONNECT_AP));
+        assertTrue(device.isConnectRequested());
+    }
+}
@@ -0,0 +1,326 @@
+package com.ciklum.pigabstractionlayer.WifiProvisioning;
+
+import android.os.Debug;
+
+import com.google.gson.Gson;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import io.particle.android.sdk.devicesetup.commands.DeviceIdCommand;
+import io.particle.android.sdk.devicesetup.commands.PublicKeyCommand;
+import io.particle.android.sdk.devicesetup.commands.SetCommand;
+import io.particle.android.sdk.utils.Crypto;
+
+/**
+ * ProvisioningCodecBenchmark
+ * Throughput and allocation rate of the CPU-bound work in a session: parsing the device's DER
+ * public key, encrypting the Wi-Fi secret as ConfigureAPStep does, encoding and decoding command
+ * frames as CommandSession does, and parsing the cloud's token response.
+ *
+ * Each benchmark is warmed up and then run for a fixed time; allocation is read from the JVM's
+ * per-thread counter on HotSpot and from android.os.Debug's per-thread allocation counting on ART,
+ * and reported as -1 on runtimes that have neither. Run it with the same runtime the numbers are
+ * meant for, e.g. from a debug build on a low-end phone.
+ *
+ * Numbers only mean something against earlier numbers from the same phone, so a run can be
+ * recorded as a baseline file and later runs compared with it: an operation regresses when its
+ * throughput drops, or its allocation grows, by more than the tolerance.
+ */
+public class ProvisioningCodecBenchmark {
+
+    private static final long WARMUP_MILLIS = TimeUnit.SECONDS.toMillis(2);
+    private static final long MEASURE_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    // ART and Dalvik both report themselves as Dalvik
+    private static final boolean ON_ANDROID_RUNTIME = "Dalvik".equals(System.getProperty("java.vm.name"));
+    // Share by which a result may be worse than the baseline before it counts as a regression.
+    static final double DEFAULT_TOLERANCE = 0.15;
+    // Allocation differences below this are noise, e.g. for operations that allocate nothing.
+    private static final double MIN_BYTES_PER_OP_DIFFERENCE = 16;
+    private static final String OPS_PER_SECOND = ".opsPerSecond";
+    private static final String BYTES_PER_OP = ".bytesPerOp";
+
+    private static final String TOKEN_RESPONSE = "{\"token_type\":\"bearer\","
+            + "\"access_token\":\"254406f79c1999af65a7df4388971354f85cfee9\","
+            + "\"expires_in\":7776000,"
+            + "\"refresh_token\":\"b5b901e8760164e134199bc2c3dd1d228acf2d90\"}";
+    private static final String DEVICE_ID_RESPONSE = "{\"id\":\"0123456789abcdef01234567\",\"c\":\"0\"}";
+
+    /**
+     * One benchmarked operation. The result is consumed so the work cannot be optimised away.
+     */
+    interface Operation {
+
+        Object run() throws Exception;
+    }
+
+    /**
+     * Measured numbers of one operation.
+     */
+    public static class Result {
+
+        public final String name;
+        public final double opsPerSecond;
+        // -1 when the runtime cannot count allocated bytes
+        public final double bytesPerOp;
+
+        Result(String name, double opsPerSecond, double bytesPerOp) {
+            this.name = name;
+            this.opsPerSecond = opsPerSecond;
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-20s %12.0f ops/s %10.0f B/op", name, opsPerSecond, bytesPerOp);
+        }
+    }
+
+    private final Gson gson = new Gson();
+    private final PublicKey publicKey;
+    private final String publicKeyHex;
+    private final String publicKeyResponse;
+
+    private volatile int sink;
+
+    public ProvisioningCodecBenchmark() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        // same key size as a Photon
+        generator.initialize(1024);
+        publicKey = generator.generateKeyPair().getPublic();
+        publicKeyHex = PhotonSoftApSimulator.toHex(publicKey.getEncoded());
+        publicKeyResponse = "{\"r\":0,\"b\":\"" + publicKeyHex + "\"}";
+    }
+
+    public List<Result> runAll() throws Exception {
+        List<Result> results = new ArrayList<Result>();
+
+        results.add(measure("parsePublicKey", new Operation() {
+            @Override
+            public Object run() throws Exception {
+                return Crypto.readPublicKeyFromHexEncodedDerString(publicKeyHex);
+            }
+        }));
+
+        results.add(measure("encryptCredentials", new Operation() {
+            @Override
+            public Object run() throws Exception {
+                return Crypto.encryptAndEncodeToHex("correct horse battery staple", publicKey);
+            }
+        }));
+
+        results.add(measure("encodeSetCommand", new Operation() {
+            @Override
+            public Object run() throws Exception {
+                return CommandSession.encode(new SetCommand("cc", "5d8f04b3a9e2c1f0c6b7a8d9e0f1a2b3"));
+            }
+        }));
+
+        results.add(measure("encodeDeviceId", new Operation() {
+            @Override
+            public Object run() throws Exception {
+                return CommandSession.encode(new DeviceIdCommand());
+            }
+        }));
+
+        results.add(measure("decodeDeviceId", new Operation() {
+            @Override
+            public Object run() throws Exception {
+                return gson.fromJson(DEVICE_ID_RESPONSE, DeviceIdCommand.Response.class);
+            }
+        }));
+
+        results.add(measure("decodePublicKey", new Operation() {
+            @Override
+            public Object run() throws Exception {
+                return gson.fromJson(publicKeyResponse, PublicKeyCommand.Response.class);
+            }
+        }));
+
+        results.add(measure("parseToken", new Operation() {
+            @Override
+            public Object run() throws Exception {
+                return ParticleCloudAuthentication.parseToken(TOKEN_RESPONSE);
+            }
+        }));
+
+        return results;
+    }
+
+    Result measure(String name, Operation operation) throws Exception {
+        runFor(operation, WARMUP_MILLIS);
+
+        long bytesBefore;
+        long bytesAfter;
+        long startedAt;
+        long ops;
+        long elapsedNanos;
+        boolean countOnArt = ON_ANDROID_RUNTIME && threadAllocatedBytes() < 0;
+        if (countOnArt) {
+            Debug.resetThreadAllocSize();
+            Debug.startAllocCounting();
+        }
+        try {
+            bytesBefore = allocatedBytes(countOnArt);
+            startedAt = System.nanoTime();
+            ops = runFor(operation, MEASURE_MILLIS);
+            elapsedNanos = System.nanoTime() - startedAt;
+            bytesAfter = allocatedBytes(countOnArt);
+        } finally {
+            if (countOnArt) {
+                Debug.stopAllocCounting();
+            }
+        }
+
+        double opsPerSecond = ops * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+        double bytesPerOp = bytesBefore < 0 || bytesAfter < 0 ? -1 : (bytesAfter - bytesBefore) / (double) ops;
+        return new Result(name, opsPerSecond, bytesPerOp);
+    }
+
+    private long runFor(Operation operation, long millis) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        long ops = 0;
+        int hash = 0;
+        // check the clock every 64 operations so reading it does not dominate cheap operations
+        while ((ops & 63) != 0 || System.nanoTime() < deadline) {
+            hash += System.identityHashCode(operation.run());
+            ops++;
+        }
+        sink = hash;
+        return ops;
+    }
+
+    /**
+     * Bytes allocated so far by the current thread.
+     *
+     * @param countOnArt whether Debug allocation counting was started for this thread
+     * @return bytes, or -1 if the runtime does not count them
+     */
+    private static long allocatedBytes(boolean countOnArt) {
+        if (countOnArt) {
+            return Debug.getThreadAllocSize();
+        }
+        return threadAllocatedBytes();
+    }
+
+    /**
+     * Bytes allocated so far by the current thread, via com.sun.management.ThreadMXBean. Looked up
+     * reflectively since java.lang.management does not exist on Android.
+     *
+     * @return bytes, or -1 if the runtime does not count them
+     */
+    private static long threadAllocatedBytes() {
+        try {
+            Class<?> factory = Class.forName("java.lang.management.ManagementFactory");
+            Object threadBean = factory.getMethod("getThreadMXBean").invoke(null);
+            Method method = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) method.invoke(threadBean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Writes the results as a baseline for compare().
+     *
+     * @param results
+     * @param file
+     * @throws IOException
+     */
+    static void saveBaseline(List<Result> results, File file) throws IOException {
+        Properties baseline = new Properties();
+        for (Result result : results) {
+            baseline.setProperty(result.name + OPS_PER_SECOND, Double.toString(result.opsPerSecond));
+            baseline.setProperty(result.name + BYTES_PER_OP, Double.toString(result.bytesPerOp));
+        }
+        OutputStream out = new FileOutputStream(file);
+        try {
+            baseline.store(out, "ProvisioningCodecBenchmark baseline");
+        } finally {
+            out.close();
+        }
+    }
+
+    static Properties loadBaseline(File file) throws IOException {
+        Properties baseline = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            baseline.load(in);
+        } finally {
+            in.close();
+        }
+        return baseline;
+    }
+
+    /**
+     * Compares results with a baseline recorded by saveBaseline(). Operations missing from the
+     * baseline, and allocation where either run could not count it, are not compared.
+     *
+     * @param results
+     * @param baseline
+     * @param tolerance e.g. 0.15 for 15%
+     * @return one line per regression, empty if there is none
+     */
+    static List<String> compare(List<Result> results, Properties baseline, double tolerance) {
+        List<String> regressions = new ArrayList<String>();
+        for (Result result : results) {
+            String baseOps = baseline.getProperty(result.name + OPS_PER_SECOND);
+            if (baseOps != null && result.opsPerSecond < Double.parseDouble(baseOps) * (1 - tolerance)) {
+                regressions.add(String.format("%s: %.0f ops/s, baseline %s", result.name,
+                        result.opsPerSecond, baseOps));
+            }
+            String baseBytes = baseline.getProperty(result.name + BYTES_PER_OP);
+            if (baseBytes == null || result.bytesPerOp < 0 || Double.parseDouble(baseBytes) < 0) {
+                continue;
+            }
+            double allowed = Double.parseDouble(baseBytes);
+            allowed += Math.max(allowed * tolerance, MIN_BYTES_PER_OP_DIFFERENCE);
+            if (result.bytesPerOp > allowed) {
+                regressions.add(String.format("%s: %.0f B/op, baseline %s", result.name,
+                        result.bytesPerOp, baseBytes));
+            }
+        }
+        return regressions;
+    }
+
+    /**
+     * Usage: ProvisioningCodecBenchmark [baseline file [--record]]
+     *
+     * Without a file the results are only printed. With --record they are written to the file;
+     * otherwise they are compared with it, and the process exits with 1 if anything regressed.
+     */
+    public static void main(String[] args) throws Exception {
+        List<Result> results = new ProvisioningCodecBenchmark().runAll();
+        for (Result result : results) {
+            System.out.println(result);
+        }
+        if (args.length == 0) {
+            return;
+        }
+        File baselineFile = new File(args[0]);
+        if (args.length > 1 && "--record".equals(args[1])) {
+            saveBaseline(results, baselineFile);
+            System.out.println("Recorded baseline " + baselineFile);
+            return;
+        }
+        List<String> regressions = compare(results, loadBaseline(baselineFile), DEFAULT_TOLERANCE);
+        for (String regression : regressions) {
+            System.out.println("REGRESSION " + regression);
+        }
+        if (!regressions.isEmpty()) {
+            System.exit(1);
+        }
+    }
+}
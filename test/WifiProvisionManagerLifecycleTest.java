@@ -0,0 +1,372 @@
+package com.ciklum.pigabstractionlayer.WifiProvisioning;
+
+import android.app.Application;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+
+import com.ciklum.pigabstractionlayer.PiggyBank;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowApplication;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.shadows.ShadowNetworkInfo;
+import org.robolectric.shadows.ShadowWifiInfo;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import io.particle.android.sdk.cloud.ParticleCloudSDK;
+import io.particle.android.sdk.devicesetup.commands.ScanApCommand;
+import io.particle.android.sdk.devicesetup.commands.data.WifiSecurity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Runs WifiProvisionManager sessions against the ParticleCloudStandInServer and the
+ * PhotonSoftApSimulator, and checks that a session leaves nothing registered behind: no broadcast
+ * receiver, no pending handler work, no callback after the one ending it, and no reference that
+ * keeps the session alive. Sessions are cancelled while joining the SoftAP, or run through the
+ * join, discovery and the setup steps to succeed or fail.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 21)
+public class WifiProvisionManagerLifecycleTest {
+
+    private static final String EMAIL = "lifecycle@example.com";
+    private static final String SOFT_AP_SSID = "Photon-A1B2";
+    private static final long WAIT_MILLIS = 10000;
+    private static final long DEADLINE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final int SESSIONS = 1000;
+    // Sessions still referenced by work the background pool had not run yet when the check began.
+    private static final int MAX_SESSIONS_STILL_REACHABLE = 4;
+    private static final int SESSIONS_PER_ENDING = 4;
+    private static final String NETWORK_SSID = "HomeNetwork";
+    private static final String NETWORK_SECRET = "secret";
+    // One discovery attempt, so a device that drops every connection fails the session at once.
+    private static final RetryPolicy RETRY_POLICY = ExponentialBackoffRetryPolicy.newBuilder()
+            .setMaxAttempts(ProvisioningPhase.DISCOVER_DEVICE, 1)
+            .build();
+
+    /**
+     * How a session driven through the phases ends.
+     */
+    private enum Ending {
+        // the device comes online on the event stream once the steps run
+        SUCCESS,
+        // the device drops the discovery commands
+        FAILURE_IN_DISCOVERY,
+        // the device never shows up on the cloud; the steps or the deadline give up
+        FAILURE_IN_STEPS
+    }
+
+    private Application context;
+    private ParticleCloudStandInServer server;
+    private RecordingCallback callback;
+    private String deviceId;
+    private PhotonSoftApSimulator device;
+    private PhotonSoftApSimulator droppingDevice;
+
+    @Before
+    public void setUp() throws Exception {
+        context = RuntimeEnvironment.application;
+        ParticleCloudSDK.init(context);
+        server = new ParticleCloudStandInServer(null);
+        server.start();
+        ParticleCloudTransport.configure(server.getBaseUrl(), null, null);
+        callback = new RecordingCallback();
+        // a device id of its own, so no other test has put its key in the DeviceIdentityCache
+        deviceId = String.format("%024x", System.nanoTime());
+        device = PhotonSoftApSimulator.newBuilder()
+                .setDeviceId(deviceId)
+                .build();
+        droppingDevice = PhotonSoftApSimulator.newBuilder()
+                .setDeviceId(deviceId)
+                .setFailureMode(PhotonSoftApSimulator.FailureMode.DROP_CONNECTION, 1)
+                .build();
+        device.start();
+        droppingDevice.start();
+    }
+
+    @After
+    public void tearDown() {
+        device.stop();
+        droppingDevice.stop();
+        server.stop();
+        ParticleCloudTransport.configure(ParticleCloudTransport.DEFAULT_BASE_URL, null, null);
+        WifiProvisionManager.discardAllSessions(context);
+    }
+
+    @Test
+    public void cancelWhileJoiningUnregistersReceiverAndCallbacks() throws Exception {
+        ProvisioningHandle handle = newSession().start(EMAIL, context, callback,
+                System.currentTimeMillis() + DEADLINE_MILLIS);
+        awaitStateReceivers(1);
+        assertEquals(1, callback.twoLeggedAuths);
+
+        handle.cancel();
+
+        assertEquals(0, stateReceiverCount());
+        assertEquals(1, callback.failures);
+
+        // neither a late broadcast, the join timeout nor the session deadline reach the callback
+        context.sendBroadcast(new Intent(WifiManager.NETWORK_STATE_CHANGED_ACTION));
+        ShadowLooper.idleMainLooper(DEADLINE_MILLIS, TimeUnit.MILLISECONDS);
+        assertEquals(1, callback.failures);
+        assertEquals(0, callback.softApConnections);
+        assertEquals(0, callback.successes);
+    }
+
+    @Test
+    public void repeatedSessionsDoNotAccumulate() throws Exception {
+        List<WeakReference<WifiProvisionManager>> sessions =
+                new ArrayList<WeakReference<WifiProvisionManager>>();
+        for (int i = 0; i < SESSIONS; i++) {
+            WifiProvisionManager session = newSession();
+            session.start(EMAIL, context, callback,
+                    System.currentTimeMillis() + DEADLINE_MILLIS).cancel();
+            sessions.add(new WeakReference<WifiProvisionManager>(session));
+        }
+        ShadowLooper.idleMainLooper(DEADLINE_MILLIS, TimeUnit.MILLISECONDS);
+
+        assertEquals(0, stateReceiverCount());
+        assertEquals(SESSIONS, callback.failures);
+        assertEquals(0, callback.successes);
+
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        int reachable;
+        do {
+            System.gc();
+            Thread.sleep(50);
+            reachable = countReachable(sessions);
+        } while (reachable > MAX_SESSIONS_STILL_REACHABLE && System.currentTimeMillis() < deadline);
+        assertTrue(reachable + " of " + SESSIONS + " sessions are still reachable",
+                reachable <= MAX_SESSIONS_STILL_REACHABLE);
+    }
+
+    @Test
+    public void sessionsEndingInEveryPhaseDoNotAccumulate() throws Exception {
+        List<WeakReference<WifiProvisionManager>> sessions =
+                new ArrayList<WeakReference<WifiProvisionManager>>();
+        int expectedSuccesses = 0;
+        for (int i = 0; i < SESSIONS_PER_ENDING; i++) {
+            for (Ending ending : Ending.values()) {
+                sessions.add(new WeakReference<WifiProvisionManager>(runSession(ending)));
+                if (ending == Ending.SUCCESS) {
+                    expectedSuccesses++;
+                }
+                assertEquals(ending.toString(), 0, stateReceiverCount());
+            }
+        }
+        int expectedFailures = sessions.size() - expectedSuccesses;
+        assertEquals(expectedSuccesses, callback.successes);
+        assertEquals(expectedFailures, callback.failures);
+        assertEquals(sessions.size(), callback.softApConnections);
+
+        // neither a late broadcast nor the session deadlines reach the callback any more
+        context.sendBroadcast(stateChanged(SOFT_AP_SSID));
+        ShadowLooper.idleMainLooper(DEADLINE_MILLIS, TimeUnit.MILLISECONDS);
+        assertEquals(expectedSuccesses, callback.successes);
+        assertEquals(expectedFailures, callback.failures);
+
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        int reachable;
+        do {
+            System.gc();
+            Thread.sleep(50);
+            reachable = countReachable(sessions);
+        } while (reachable > MAX_SESSIONS_STILL_REACHABLE && System.currentTimeMillis() < deadline);
+        assertTrue(reachable + " of " + sessions.size() + " sessions are still reachable",
+                reachable <= MAX_SESSIONS_STILL_REACHABLE);
+    }
+
+    /**
+     * Starts a session, joins it to the SoftAP and lets it talk to the simulator until it ends as
+     * asked.
+     *
+     * @return the ended session
+     */
+    private WifiProvisionManager runSession(Ending ending) throws Exception {
+        PhotonSoftApSimulator target = ending == Ending.FAILURE_IN_DISCOVERY ? droppingDevice : device;
+        WifiProvisionManager session = newSession();
+        session.mDeviceAddress = target.getAddress();
+        session.mNetworkToConnectTo = new ScanApCommand.Scan(NETWORK_SSID,
+                WifiSecurity.WPA2_AES_PSK.asInt(), 6);
+        session.mNetworkSecretPlaintext = NETWORK_SECRET;
+        session.setCloudEventStreamEnabled(true);
+        session.setRetryPolicy(RETRY_POLICY);
+
+        int successes = callback.successes;
+        int ended = successes + callback.failures;
+        int softApConnections = callback.softApConnections;
+        int connectApCommands = countCommands(device, PhotonSoftApSimulator.CONNECT_AP);
+        int eventStreams = server.getEventStreamCount();
+        session.start(EMAIL, context, callback, System.currentTimeMillis() + DEADLINE_MILLIS);
+
+        joinSoftAp(softApConnections + 1);
+        switch (ending) {
+            case SUCCESS:
+                // the stream connects once the phone has left the SoftAP
+                awaitEventStreams(eventStreams + 1);
+                server.publishEvent("spark/status", deviceId, "online");
+                break;
+            case FAILURE_IN_STEPS:
+                awaitCommands(device, PhotonSoftApSimulator.CONNECT_AP, connectApCommands + 1);
+                ShadowLooper.idleMainLooper(DEADLINE_MILLIS, TimeUnit.MILLISECONDS);
+                break;
+            default:
+                // the single discovery attempt fails by itself
+                break;
+        }
+        awaitEndedSessions(ended + 1);
+        assertEquals(ending.toString(), ending == Ending.SUCCESS ? successes + 1 : successes,
+                callback.successes);
+        return session;
+    }
+
+    private WifiProvisionManager newSession() {
+        WifiProvisionManager session = new WifiProvisionManager();
+        session.mDeviceSoftApSsid = SOFT_AP_SSID;
+        // callbacks run inline, so they are counted without idling the main looper
+        session.setCallbackExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        return session;
+    }
+
+    private void awaitStateReceivers(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (stateReceiverCount() != expected && System.currentTimeMillis() < deadline) {
+            ShadowLooper.idleMainLooper();
+            Thread.sleep(10);
+        }
+        assertEquals(expected, stateReceiverCount());
+    }
+
+    /**
+     * Reports the SoftAP as joined until the session has reached the device.
+     */
+    private void joinSoftAp(int expectedSoftApConnections) throws InterruptedException {
+        awaitStateReceivers(1);
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (callback.softApConnections < expectedSoftApConnections
+                && System.currentTimeMillis() < deadline) {
+            // repeated, in case the join was still running its actions
+            context.sendBroadcast(stateChanged(SOFT_AP_SSID));
+            ShadowLooper.idleMainLooper();
+            Thread.sleep(10);
+        }
+        assertEquals(expectedSoftApConnections, callback.softApConnections);
+    }
+
+    private void awaitEventStreams(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (server.getEventStreamCount() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(server.getEventStreamCount() >= expected);
+    }
+
+    private static void awaitCommands(PhotonSoftApSimulator simulator, String command, int expected)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (countCommands(simulator, command) < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, countCommands(simulator, command));
+    }
+
+    private static int countCommands(PhotonSoftApSimulator simulator, String command) {
+        return Collections.frequency(simulator.getReceivedCommands(), command);
+    }
+
+    private void awaitEndedSessions(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (callback.successes + callback.failures < expected
+                && System.currentTimeMillis() < deadline) {
+            ShadowLooper.idleMainLooper();
+            Thread.sleep(10);
+        }
+        assertEquals(expected, callback.successes + callback.failures);
+    }
+
+    private int stateReceiverCount() {
+        int count = 0;
+        for (ShadowApplication.Wrapper wrapper : shadowOf(context).getRegisteredReceivers()) {
+            if (wrapper.intentFilter.hasAction(WifiManager.NETWORK_STATE_CHANGED_ACTION)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static Intent stateChanged(String ssid) {
+        NetworkInfo networkInfo = ShadowNetworkInfo.newInstance(NetworkInfo.DetailedState.CONNECTED,
+                ConnectivityManager.TYPE_WIFI, 0, true, NetworkInfo.State.CONNECTED);
+        WifiInfo wifiInfo = ShadowWifiInfo.newInstance();
+        shadowOf(wifiInfo).setSSID("\"" + ssid + "\"");
+        Intent intent = new Intent(WifiManager.NETWORK_STATE_CHANGED_ACTION);
+        intent.putExtra(WifiManager.EXTRA_NETWORK_INFO, networkInfo);
+        intent.putExtra(WifiManager.EXTRA_WIFI_INFO, wifiInfo);
+        return intent;
+    }
+
+    private static int countReachable(List<WeakReference<WifiProvisionManager>> sessions) {
+        int reachable = 0;
+        for (WeakReference<WifiProvisionManager> session : sessions) {
+            if (session.get() != null) {
+                reachable++;
+            }
+        }
+        return reachable;
+    }
+
+    private static class RecordingCallback implements WifiProvisionCallback {
+
+        volatile int twoLeggedAuths;
+        volatile int softApConnections;
+        volatile int successes;
+        volatile int failures;
+
+        @Override
+        public void onTwoLeggedAuth() {
+            twoLeggedAuths++;
+        }
+
+        @Override
+        public void onSoftApConnected() {
+            softApConnections++;
+        }
+
+        @Override
+        public void onDeviceInfoReturned() {
+        }
+
+        @Override
+        public void onSuccess(PiggyBank pig) {
+            successes++;
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+            failures++;
+        }
+    }
+}